@@ -2,15 +2,18 @@ package com.krister.avatar.api;
 
 import com.krister.avatar.shared.RedisJobStore;
 import com.krister.avatar.shared.RedisJobStore.DlqEntry;
+import com.krister.avatar.shared.RedisJobStore.JobRecord;
+import com.krister.avatar.shared.RedisJobStore.QueueStats;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
 
 // Admin endpoints for managing the Dead Letter Queue (DLQ) — jobs that failed all retry
-// attempts. These endpoints are protected by the same API key as the main job API.
+// attempts — and for inspecting the work queue. These endpoints are protected by the same
+// API key as the main job API.
 @RestController
-@RequestMapping("/api/admin/jobs/failed")
+@RequestMapping("/api/admin")
 public class AdminController {
 
     private final RedisJobStore jobStore;
@@ -19,22 +22,37 @@ public class AdminController {
         this.jobStore = jobStore;
     }
 
-    @GetMapping
+    @GetMapping("/jobs/failed")
     public List<DlqEntry> listFailed() {
         return jobStore.listDlq();
     }
 
     // 204 No Content is the standard success response for operations that don't return a body.
     // 404 communicates the job wasn't in the DLQ (already requeued or never existed).
-    @PostMapping("/{jobId}/requeue")
+    @PostMapping("/jobs/failed/{jobId}/requeue")
     public ResponseEntity<Void> requeue(@PathVariable String jobId) {
         boolean found = jobStore.requeueFromDlq(jobId);
         return found ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
     }
 
-    @DeleteMapping("/{jobId}")
+    @DeleteMapping("/jobs/failed/{jobId}")
     public ResponseEntity<Void> delete(@PathVariable String jobId) {
         boolean found = jobStore.removeFromDlq(jobId);
         return found ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
     }
+
+    // The full job record — timings, attempt and the worker that ran it. The public
+    // GET /api/jobs/{jobId} deliberately stays a bare status string for existing clients.
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<JobRecord> job(@PathVariable String jobId) {
+        JobRecord job = jobStore.getJob(jobId);
+        return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
+    }
+
+    // Waiting and in-flight counts plus which consumer (pid@hostname) holds how many jobs —
+    // the first place to look when jobs seem stuck.
+    @GetMapping("/queue")
+    public QueueStats queueStats() {
+        return jobStore.queueStats();
+    }
 }
@@ -29,28 +29,37 @@ class GlobalJobQuota {
 
     // Returns true if a slot is available (and consumes it), false if today's quota is exhausted.
     boolean tryConsume() {
+        return tryConsume(1) == 1;
+    }
+
+    // Reserves up to `slots` in a single INCRBY and returns how many were granted — fewer than
+    // requested when the batch straddles the limit, 0 when the quota is already exhausted.
+    // Like the single-slot path, slots that were not granted are not handed back: the counter
+    // only ever needs to be compared against the limit, so overshooting it is harmless.
+    int tryConsume(int slots) {
         try {
             // The key includes today's UTC date, so it resets automatically at midnight
             // with no scheduled task — a new key is just created the following day.
             String key = "global:jobs:daily:" + LocalDate.now(ZoneOffset.UTC);
 
-            // INCR is atomic in Redis — even with multiple API processes running simultaneously,
+            // INCRBY is atomic in Redis — even with multiple API processes running simultaneously,
             // each increment is guaranteed to see the correct previous value. No race condition.
-            Long count = redis.opsForValue().increment(key);
+            Long count = redis.opsForValue().increment(key, slots);
 
-            // Set the TTL only on the very first increment (count == 1) to avoid resetting the
-            // expiry on every request. 2 days ensures the prior day's key is gone before it could
-            // wrap around to the same date key again.
-            if (count == 1) {
+            // Set the TTL only on the first increment of the day (the counter started at 0) to
+            // avoid resetting the expiry on every request. 2 days ensures the prior day's key is
+            // gone before it could wrap around to the same date key again.
+            if (count == slots) {
                 redis.expire(key, Duration.ofDays(2));
             }
-            return count <= dailyLimit;
+            long before = count - slots;
+            return (int) Math.max(0, Math.min(slots, dailyLimit - before));
         } catch (Exception e) {
             // Fail open: if Redis is temporarily unavailable, allow the request through.
             // Blocking all submissions because of a quota outage would be worse than
             // briefly exceeding the daily limit during a Redis hiccup.
             log.warn("GlobalJobQuota Redis error — failing open: {}", e.getMessage());
-            return true;
+            return slots;
         }
     }
 }
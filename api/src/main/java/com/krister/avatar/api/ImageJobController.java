@@ -1,21 +1,32 @@
 package com.krister.avatar.api;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
+import com.krister.avatar.api.ImageJobService.Reservation;
 import com.krister.avatar.shared.JobStatus;
 import com.krister.avatar.shared.ProcessingResult;
+import com.krister.avatar.shared.RedisJobStore.IdempotencyKeyConflictException;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -38,6 +49,13 @@ public class ImageJobController {
     // auto-configures it to export to Prometheus, which Grafana then reads.
     private final MeterRegistry meterRegistry;
 
+    @Value("${job.batch.max-size:500}")
+    private int maxBatchSize;
+
+    // Clients send a fresh random key (a UUID) per submission and the same key on its retries.
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
     public ImageJobController(ImageJobService jobService, IpRateLimiter rateLimiter,
                               GlobalJobQuota globalQuota, MeterRegistry meterRegistry) {
         this.jobService = jobService;
@@ -48,8 +66,48 @@ public class ImageJobController {
 
     // ResponseEntity<?> — the wildcard lets this method return either a Map (for error JSON)
     // or a Map<String,String> (for the success jobId). Spring serializes both to JSON.
+    //
+    // deadlineSeconds (optional, here and on the other submit endpoints) is how long the client
+    // will wait for the result. A job still queued when it passes is dropped unprocessed and
+    // its status becomes EXPIRED. Relative rather than a timestamp, so client clock skew
+    // doesn't matter.
+    //
+    // Idempotency-Key (optional, here and on uploads) makes retries safe: a repeat of a
+    // submission that already created a job gets that job's ID back, with an
+    // Idempotent-Replayed header, and nothing is queued or uploaded again. Keys are per client
+    // (IP), like the rate limit. The key is reserved before the rate limiter and quota, so a
+    // retry — even one racing the original — is never throttled or charged for it; if the
+    // request is then rejected, the key is released again. Reusing a key for a different URL
+    // or file returns 422, and repeating it while the original is still creating its job
+    // returns 409.
     @PostMapping
-    public ResponseEntity<?> submitJob(@RequestParam String url, HttpServletRequest request) {
+    public ResponseEntity<?> submitJob(@RequestParam String url,
+                                       @RequestParam(required = false) Long deadlineSeconds,
+                                       @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false)
+                                       String idempotencyKey,
+                                       HttpServletRequest request) {
+        if (!validDeadline(deadlineSeconds)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "deadlineSeconds must be positive"));
+        }
+        if (!validIdempotencyKey(idempotencyKey)) {
+            return invalidIdempotencyKey();
+        }
+        String tenant = IpRateLimiter.clientIp(request);
+        Reservation reservation = null;
+        if (idempotencyKey != null) {
+            try {
+                reservation = jobService.reserveJob(idempotencyKey, tenant, url);
+            } catch (IdempotencyKeyConflictException e) {
+                return idempotencyKeyConflict(e);
+            }
+            if (reservation.replay()) return replayed(reservation.jobId());
+        }
+        Reservation reserved = reservation;
+        return releasingUnlessCreated(reservation, () -> submitUrl(url, tenant, deadlineSeconds, reserved, request));
+    }
+
+    private ResponseEntity<?> submitUrl(String url, String tenant, Long deadlineSeconds, Reservation reservation,
+                                        HttpServletRequest request) {
         // Rate limit checked first — before URL validation — so throttled requests never
         // trigger DNS resolution or any downstream work.
         if (!rateLimiter.tryConsume(request)) {
@@ -66,7 +124,7 @@ public class ImageJobController {
         }
         try {
             UrlValidator.validate(url);
-            String jobId = jobService.createJob(url);
+            String jobId = jobService.createJob(url, tenant, deadline(deadlineSeconds), reservation);
             meterRegistry.counter("jobs.submitted").increment();
             return ResponseEntity.ok(Map.of("jobId", jobId));
         } catch (IllegalArgumentException e) {
@@ -75,11 +133,98 @@ public class ImageJobController {
         }
     }
 
+    // Submits many URL jobs in one request, e.g. refreshing a whole guild's avatars. The batch
+    // costs one rate-limiter token, one concurrent round of URL validation, one INCRBY against
+    // the daily quota (only for the URLs that passed validation), and one pipelined Redis write.
+    //
+    // Per-item outcomes come back in request order: {"url", "jobId"} when queued, or
+    // {"url", "error"} when the URL was invalid or the daily quota ran out part-way through.
+    // Only failures that apply to the whole request (rate limit, bad body) use an error status.
+    @PostMapping("/batch")
+    public ResponseEntity<?> submitBatch(@RequestBody BatchRequest batch, HttpServletRequest request) {
+        if (!validDeadline(batch.deadlineSeconds())) {
+            return ResponseEntity.badRequest().body(Map.of("error", "deadlineSeconds must be positive"));
+        }
+        if (!rateLimiter.tryConsume(request)) {
+            meterRegistry.counter("jobs.rejected", "reason", "rate_limited").increment();
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .body(Map.of("error", "Rate limit exceeded — try again later"));
+        }
+        List<String> urls = batch.urls();
+        if (urls == null || urls.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "urls must not be empty"));
+        }
+        if (urls.size() > maxBatchSize) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "At most " + maxBatchSize + " URLs per batch"));
+        }
+
+        List<String> errors = new ArrayList<>(UrlValidator.validateAll(urls));
+        List<String> valid = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            if (errors.get(i) == null) valid.add(urls.get(i));
+        }
+        meterRegistry.counter("jobs.rejected", "reason", "invalid_url").increment(urls.size() - valid.size());
+
+        // Slots are granted in request order: valid URLs past the granted count are rejected.
+        int granted = valid.isEmpty() ? 0 : globalQuota.tryConsume(valid.size());
+        meterRegistry.counter("jobs.rejected", "reason", "quota_exceeded").increment(valid.size() - granted);
+        List<String> jobIds = jobService.createJobs(valid.subList(0, granted), IpRateLimiter.clientIp(request),
+                deadline(batch.deadlineSeconds()));
+        meterRegistry.counter("jobs.submitted").increment(granted);
+
+        List<Map<String, String>> results = new ArrayList<>(urls.size());
+        int next = 0;
+        for (int i = 0; i < urls.size(); i++) {
+            Map<String, String> item = new LinkedHashMap<>();
+            item.put("url", urls.get(i));
+            if (errors.get(i) != null) {
+                item.put("error", errors.get(i));
+            } else if (next < granted) {
+                item.put("jobId", jobIds.get(next++));
+            } else {
+                item.put("error", "Daily processing limit reached — try again tomorrow");
+            }
+            results.add(item);
+        }
+        return ResponseEntity.ok(Map.of("jobs", results));
+    }
+
+    // deadlineSeconds is optional and applies to every job in the batch.
+    public record BatchRequest(List<String> urls, Long deadlineSeconds) {}
+
     // MultipartFile is Spring's abstraction over a file sent via a multipart/form-data POST.
     // It gives access to the filename, content type, and raw bytes without manual HTTP parsing.
     @PostMapping("/upload")
     public ResponseEntity<?> uploadJob(@RequestParam("file") MultipartFile file,
+                                       @RequestParam(required = false) Long deadlineSeconds,
+                                       @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false)
+                                       String idempotencyKey,
                                        HttpServletRequest request) {
+        if (!validDeadline(deadlineSeconds)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "deadlineSeconds must be positive"));
+        }
+        if (!validIdempotencyKey(idempotencyKey)) {
+            return invalidIdempotencyKey();
+        }
+        String tenant = IpRateLimiter.clientIp(request);
+        Reservation reservation = null;
+        if (idempotencyKey != null) {
+            try {
+                reservation = jobService.reserveUpload(idempotencyKey, tenant, file.getBytes());
+            } catch (IdempotencyKeyConflictException e) {
+                return idempotencyKeyConflict(e);
+            } catch (IOException e) {
+                return ResponseEntity.internalServerError().body(Map.of("error", "Failed to read uploaded file"));
+            }
+            if (reservation.replay()) return replayed(reservation.jobId());
+        }
+        Reservation reserved = reservation;
+        return releasingUnlessCreated(reservation, () -> submitUpload(file, tenant, deadlineSeconds, reserved, request));
+    }
+
+    private ResponseEntity<?> submitUpload(MultipartFile file, String tenant, Long deadlineSeconds,
+                                           Reservation reservation, HttpServletRequest request) {
         if (!rateLimiter.tryConsume(request)) {
             meterRegistry.counter("jobs.rejected", "reason", "rate_limited").increment();
             return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
@@ -98,7 +243,8 @@ public class ImageJobController {
             return ResponseEntity.badRequest().body(Map.of("error", "File must be an image"));
         }
         try {
-            String jobId = jobService.createJobFromUpload(file.getBytes(), contentType);
+            String jobId = jobService.createJobFromUpload(file.getBytes(), contentType, tenant,
+                    deadline(deadlineSeconds), reservation);
             meterRegistry.counter("jobs.submitted").increment();
             return ResponseEntity.ok(Map.of("jobId", jobId));
         } catch (IOException e) {
@@ -106,6 +252,56 @@ public class ImageJobController {
         }
     }
 
+    // A reserved Idempotency-Key is released unless the submission created its job — whether
+    // it was rate limited, refused or threw — so the client's retry is processed normally.
+    private ResponseEntity<?> releasingUnlessCreated(Reservation reservation, Supplier<ResponseEntity<?>> submit) {
+        ResponseEntity<?> response = null;
+        try {
+            response = submit.get();
+            return response;
+        } finally {
+            if (response == null || !response.getStatusCode().is2xxSuccessful()) jobService.release(reservation);
+        }
+    }
+
+    // Absent, or 1–255 characters that aren't all whitespace.
+    private static boolean validIdempotencyKey(String idempotencyKey) {
+        return idempotencyKey == null
+                || (!idempotencyKey.isBlank() && idempotencyKey.length() <= MAX_IDEMPOTENCY_KEY_LENGTH);
+    }
+
+    private static ResponseEntity<?> invalidIdempotencyKey() {
+        return ResponseEntity.badRequest().body(Map.of("error",
+                IDEMPOTENCY_KEY_HEADER + " must be 1–" + MAX_IDEMPOTENCY_KEY_LENGTH + " characters"));
+    }
+
+    // A retry that races the original can find the key reserved before the original has
+    // created its job. It gets 409 with Retry-After until the job exists, rather than an ID
+    // that would read as not found — or never exist, if the original then fails.
+    private ResponseEntity<?> replayed(String jobId) {
+        if (jobService.getStatus(jobId) == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).header(HttpHeaders.RETRY_AFTER, "1")
+                    .body(Map.of("error", "The original request with this " + IDEMPOTENCY_KEY_HEADER
+                            + " is still in progress"));
+        }
+        return ResponseEntity.ok().header("Idempotent-Replayed", "true").body(Map.of("jobId", jobId));
+    }
+
+    // 422: the request is well-formed, but its key already belongs to another submission.
+    private static ResponseEntity<?> idempotencyKeyConflict(IdempotencyKeyConflictException e) {
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(Map.of("error", e.getMessage()));
+    }
+
+    // Checked before the rate limiter and quota, so a malformed request costs the client nothing.
+    private static boolean validDeadline(Long deadlineSeconds) {
+        return deadlineSeconds == null || deadlineSeconds > 0;
+    }
+
+    // Epoch ms, or 0 for no deadline.
+    private static long deadline(Long deadlineSeconds) {
+        return deadlineSeconds == null ? 0 : System.currentTimeMillis() + deadlineSeconds * 1000;
+    }
+
     // @PathVariable binds the {jobId} segment of the URL path to the method parameter.
     @GetMapping("/{jobId}")
     public ResponseEntity<String> getStatus(@PathVariable String jobId) {
@@ -119,6 +315,24 @@ public class ImageJobController {
         return ResponseEntity.ok(status.toString());
     }
 
+    // Cancels a job that has not finished. A queued job is dropped when a worker reaches it; a
+    // running one stops at its next stage or GIF frame. A cancelled job is never retried and
+    // its status reads CANCELLED. Cancelling twice is fine; a job that already finished is
+    // left alone, and its status comes back with 409. Cancelling one part of a split GIF
+    // cancels the whole GIF.
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<String> cancelJob(@PathVariable String jobId) {
+        JobStatus status = jobService.cancelJob(jobId);
+        if (status == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (status != JobStatus.CANCELLED) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(status.toString());
+        }
+        log.info("Job cancelled jobId={}", jobId);
+        return ResponseEntity.ok(status.toString());
+    }
+
     @GetMapping("/{jobId}/result")
     public ResponseEntity<byte[]> getResult(@PathVariable String jobId) {
         if (jobService.getStatus(jobId) != JobStatus.COMPLETED) {
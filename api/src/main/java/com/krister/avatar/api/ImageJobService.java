@@ -1,14 +1,28 @@
 package com.krister.avatar.api;
 
+import com.krister.avatar.core.ImageProbe;
+import com.krister.avatar.shared.JobLane;
 import com.krister.avatar.shared.JobStatus;
 import com.krister.avatar.shared.ProcessingResult;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import com.krister.avatar.shared.RedisJobStore.Submission;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.S3ResultStore;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // @Service is semantically equivalent to @Component — both register the class as a
 // Spring-managed singleton. @Service signals intent: this class contains business logic
@@ -20,40 +34,189 @@ public class ImageJobService {
 
     private final RedisJobStore jobStore;
     private final S3ResultStore s3ResultStore;
+    // Single submissions go through the coalescer, which batches them with concurrent ones
+    // when job.submit.coalesce.enabled is on and writes straight through otherwise.
+    private final SubmissionCoalescer coalescer;
+    private final ResultCache resultCache;
+    private final MeterRegistry meterRegistry;
 
-    public ImageJobService(RedisJobStore jobStore, S3ResultStore s3ResultStore) {
+    // Under shortest-job-first scheduling every job needs a cost estimate before it is queued;
+    // for a URL that means fetching the image header (see estimateCost).
+    @Value("${job.queue.scheduling:fifo}")
+    private String scheduling;
+
+    @Value("${job.queue.sjf.probe-timeout-ms:1000}")
+    private int probeTimeoutMs;
+
+    // When on, a URL already being processed for another client is not processed twice; the
+    // new job waits for that one's result (see RedisJobStore.attachFollower).
+    @Value("${job.submit.single-flight.enabled:false}")
+    private boolean singleFlight;
+
+    public ImageJobService(RedisJobStore jobStore, S3ResultStore s3ResultStore,
+                           SubmissionCoalescer coalescer, ResultCache resultCache,
+                           MeterRegistry meterRegistry) {
         this.jobStore = jobStore;
         this.s3ResultStore = s3ResultStore;
+        this.coalescer = coalescer;
+        this.resultCache = resultCache;
+        this.meterRegistry = meterRegistry;
     }
 
-    public String createJob(String url) {
-        // UUID (Universally Unique Identifier) generates a random 128-bit ID that is
-        // practically guaranteed to be unique globally — no database sequence or coordination
-        // between servers needed. Format: "xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx".
-        String jobId = UUID.randomUUID().toString();
-        jobStore.setStatus(jobId, JobStatus.PENDING);
-        jobStore.enqueue(jobId, url);
-        log.info("Job created jobId={}", jobId);
+    // tenant identifies the submitting client (its IP) for fair-share scheduling. deadline is
+    // the epoch ms after which the result is no longer wanted, 0 for none. reservation is the
+    // request's reserved Idempotency-Key (see reserveJob), or null; the job takes its ID.
+    public String createJob(String url, String tenant, long deadline, Reservation reservation) {
+        String jobId = jobId(reservation);
+        if (singleFlight) {
+            String leader = jobStore.attachFollower(jobId, url, JobLane.INTERACTIVE, deadline);
+            if (leader != null) {
+                meterRegistry.counter("jobs.singleflight.followers").increment();
+                log.info("Job attached to in-flight job for the same URL jobId={} leader={}", jobId, leader);
+                return jobId;
+            }
+        }
+        int cost = estimateCost(url);
+        coalescer.createJob(jobId, url, tenant, cost, deadline);
+        log.info("Job created jobId={} cost={}", jobId, cost);
         return jobId;
     }
 
-    public String createJobFromUpload(byte[] data, String contentType) {
-        String jobId = UUID.randomUUID().toString();
+    // Creates all jobs with a single pipelined write; returns their IDs in the order given.
+    // Batches go to the bulk lane so they never delay single interactive submissions. They
+    // are not single-flighted: that would cost a round-trip per URL, and the duplicates it
+    // targets come from many clients submitting one link each.
+    public List<String> createJobs(List<String> urls, String tenant, long deadline) {
+        List<Integer> costs = estimateCosts(urls);
+        List<Submission> jobs = new ArrayList<>(urls.size());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < urls.size(); i++) {
+            JobRequest job = new JobRequest(UUID.randomUUID().toString(), urls.get(i), 1, JobLane.BULK, now, deadline);
+            jobs.add(new Submission(job, tenant, costs.get(i)));
+        }
+        jobStore.submitJobs(jobs);
+        log.info("Batch created jobs={}", jobs.size());
+        return jobs.stream().map(submission -> submission.job().jobId()).toList();
+    }
+
+    public String createJobFromUpload(byte[] data, String contentType, String tenant, long deadline,
+                                      Reservation reservation) {
+        String jobId = jobId(reservation);
+        String hash = resultCache.isEnabled() ? ResultCache.hash(data) : null;
+        // The bytes are already here, so a repeat upload can be answered before it is stored
+        // or queued: the job is created COMPLETED with the cached result copied to it.
+        if (resultCache.isEnabled()) {
+            long cached = resultCache.copyTo(hash, jobId);
+            if (cached >= 0) {
+                // A miss is counted by the worker, which looks the bytes up again.
+                meterRegistry.counter("jobs.cache", "result", "hit").increment();
+                jobStore.createCompletedJob(jobId, "s3://uploads/" + jobId, cached);
+                log.info("Upload job completed from the result cache jobId={}", jobId);
+                return jobId;
+            }
+        }
         // Upload bytes are stored in S3 first, before touching the queue, so the worker
         // never dequeues a job whose source data hasn't been written yet.
         s3ResultStore.storeUpload(jobId, data, contentType);
-        jobStore.setStatus(jobId, JobStatus.PENDING);
         // The "s3://uploads/" scheme is an internal convention — not a real S3 URL —
         // that tells the worker to fetch bytes from S3 rather than from an HTTP URL.
-        jobStore.enqueue(jobId, "s3://uploads/" + jobId);
-        log.info("Upload job created jobId={}", jobId);
+        // The bytes are already in memory, so the upload's cost is always read from its header.
+        int cost = ImageProbe.probe(data).cost();
+        coalescer.createJob(jobId, "s3://uploads/" + jobId, tenant, cost, deadline);
+        log.info("Upload job created jobId={} cost={}", jobId, cost);
+        return jobId;
+    }
+
+    // Clients retry a submission when its response is lost to a timeout, and without a key
+    // each retry is another job. With one, the controller reserves the key for a new job ID
+    // before it rate limits, charges quota or stores anything, so a retry — even one racing
+    // the original — gets the original's job back and is never charged for it. The key is
+    // scoped to the tenant that sent it. Throws IdempotencyKeyConflictException if the key
+    // was used for a different request.
+    public Reservation reserveJob(String idempotencyKey, String tenant, String url) {
+        return reserve(idempotencyKey, tenant, urlFingerprint(url));
+    }
+
+    // An upload's fingerprint is the hash of its bytes, the same one the result cache uses.
+    public Reservation reserveUpload(String idempotencyKey, String tenant, byte[] data) {
+        return reserve(idempotencyKey, tenant, ResultCache.hash(data));
+    }
+
+    // For a reservation whose job was never created (the request was rejected or failed), so
+    // the client's retry creates it rather than being told about a job that doesn't exist.
+    public void release(Reservation reservation) {
+        if (reservation == null || reservation.replay()) return;
+        jobStore.releaseIdempotencyKey(reservation.tenant(), reservation.idempotencyKey(), reservation.jobId());
+    }
+
+    private Reservation reserve(String idempotencyKey, String tenant, String fingerprint) {
+        // UUID (Universally Unique Identifier) generates a random 128-bit ID that is
+        // practically guaranteed to be unique globally — no database sequence or coordination
+        // between servers needed. Format: "xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx".
+        String jobId = UUID.randomUUID().toString();
+        String earlier = jobStore.reserveIdempotencyKey(tenant, idempotencyKey, jobId, fingerprint);
+        if (earlier == null) return new Reservation(idempotencyKey, tenant, jobId, false);
+        return new Reservation(idempotencyKey, tenant, replayed(earlier), true);
+    }
+
+    private static String jobId(Reservation reservation) {
+        return reservation != null ? reservation.jobId() : UUID.randomUUID().toString();
+    }
+
+    // An Idempotency-Key reserved for jobId, or — when replay is set — already used by the
+    // earlier submission that created jobId.
+    public record Reservation(String idempotencyKey, String tenant, String jobId, boolean replay) {}
+
+    private String replayed(String jobId) {
+        meterRegistry.counter("jobs.idempotent.replayed").increment();
+        log.info("Repeated submission answered with its earlier job jobId={}", jobId);
         return jobId;
     }
 
+    // The URL exactly as sent: a retry sends the same string.
+    private static String urlFingerprint(String url) {
+        return ResultCache.hash(url.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Fetches the first few KB of the image to read its dimensions and, for a GIF, estimate its
+    // frame count. This costs the submitting request one round-trip to the image host, so it
+    // only happens when the estimate is going to be used; otherwise every job costs 1.
+    private int estimateCost(String url) {
+        if (!"sjf".equalsIgnoreCase(scheduling)) return 1;
+        return ImageProbe.probeUrl(url, probeTimeoutMs).cost();
+    }
+
+    // Probes a batch concurrently on virtual threads, like UrlValidator.validateAll, so the
+    // batch waits about as long as its slowest image host rather than the sum of them.
+    private List<Integer> estimateCosts(List<String> urls) {
+        if (!"sjf".equalsIgnoreCase(scheduling)) return urls.stream().map(url -> 1).toList();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> probes = new ArrayList<>(urls.size());
+            for (String url : urls) {
+                probes.add(executor.submit(() -> estimateCost(url)));
+            }
+            List<Integer> costs = new ArrayList<>(urls.size());
+            for (Future<Integer> probe : probes) {
+                costs.add(probe.get());
+            }
+            return costs;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Cost estimation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while estimating job costs", e);
+        }
+    }
+
     public JobStatus getStatus(String jobId) {
         return jobStore.getStatus(jobId);
     }
 
+    // CANCELLED, the final status the job had already reached, or null for an unknown job.
+    public JobStatus cancelJob(String jobId) {
+        return jobStore.cancel(jobId);
+    }
+
     public ProcessingResult claimResult(String jobId) {
         return s3ResultStore.claimResult(jobId);
     }
@@ -26,7 +26,7 @@ class IpRateLimiter {
 
     // Returns true if the request is within the caller's rate limit, false if throttled.
     boolean tryConsume(HttpServletRequest request) {
-        String ip = resolveClientIp(request);
+        String ip = clientIp(request);
         // computeIfAbsent is thread-safe: it atomically creates the bucket only if one doesn't
         // exist yet, so two simultaneous first requests from the same IP can't create two buckets.
         Bucket bucket = buckets.computeIfAbsent(ip, k -> newBucket());
@@ -50,7 +50,8 @@ class IpRateLimiter {
     // Caveat: X-Forwarded-For can be spoofed by clients if the proxy is misconfigured to
     // forward existing headers rather than overwrite them. Properly configured proxies
     // always set this header themselves, making spoofing impossible.
-    private static String resolveClientIp(HttpServletRequest request) {
+    // Also the tenant that fair-share scheduling groups a client's jobs under.
+    static String clientIp(HttpServletRequest request) {
         String forwarded = request.getHeader("X-Forwarded-For");
         if (forwarded != null && !forwarded.isBlank()) {
             return forwarded.split(",")[0].trim();
@@ -0,0 +1,68 @@
+package com.krister.avatar.api;
+
+import com.krister.avatar.shared.RedisJobStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// In reliable-queue mode, returns jobs whose lease has expired back to the work queue.
+// A lease expires when the worker holding the job stops renewing it — the process was
+// killed, the node was preempted, or the JVM hung — so the job is retried elsewhere within
+// a few seconds instead of sitting in PROCESSING until its status TTL runs out.
+//
+// Every API and worker instance runs a reaper; the reap script is atomic, so two reapers
+// racing on the same expired lease can't requeue the job twice.
+@Component
+public class LeaseReaper {
+
+    private static final Logger log = LoggerFactory.getLogger(LeaseReaper.class);
+    private static final int REAP_BATCH_SIZE = 100;
+
+    private final RedisJobStore jobStore;
+    private final long intervalMs;
+    private volatile boolean running = true;
+
+    public LeaseReaper(RedisJobStore jobStore,
+                       @Value("${job.queue.reap-interval-ms:2000}") long intervalMs) {
+        this.jobStore = jobStore;
+        this.intervalMs = intervalMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!jobStore.isReliable()) return;
+        Thread.ofPlatform()
+                .name("lease-reaper")
+                .daemon(true)
+                .start(this::loop);
+        log.info("Lease reaper started intervalMs={}", intervalMs);
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                int reaped;
+                // Keep going while full batches come back so a mass expiry drains quickly.
+                do {
+                    reaped = jobStore.reapExpiredLeases(REAP_BATCH_SIZE);
+                    if (reaped > 0) log.warn("Requeued jobs with expired leases count={}", reaped);
+                } while (reaped == REAP_BATCH_SIZE);
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Lease reaper error", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        log.info("Lease reaper shutting down");
+    }
+}
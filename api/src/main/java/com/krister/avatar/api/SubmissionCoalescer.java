@@ -0,0 +1,165 @@
+package com.krister.avatar.api;
+
+import com.krister.avatar.shared.JobLane;
+import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import com.krister.avatar.shared.RedisJobStore.Submission;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Micro-batches job creation writes from concurrent submissions. Every POST /api/jobs writes
+// the job record and pushes the job; on its own that is one Redis round-trip per request,
+// paid on the Tomcat thread. With coalescing on (job.submit.coalesce.enabled=true), request
+// threads hand their job to a single flusher thread and wait; the flusher collects jobs for
+// up to max-wait-micros or until max-batch are waiting, writes them all with one pipelined
+// RedisJobStore.submitJobs call, and then releases every waiting request.
+//
+// Under a submission burst this turns N round-trips into roughly N / max-batch, and requests
+// that arrive while a flush is in flight naturally queue up for the next one. When traffic is
+// light it only adds up to max-wait-micros of latency per request, which is why it is off by
+// default.
+@Component
+public class SubmissionCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(SubmissionCoalescer.class);
+
+    private final RedisJobStore jobStore;
+    private final boolean enabled;
+    private final long maxWaitNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final DistributionSummary batchSizes;
+    private volatile boolean running = true;
+    private Thread flusher;
+
+    public SubmissionCoalescer(RedisJobStore jobStore, MeterRegistry meterRegistry,
+                               @Value("${job.submit.coalesce.enabled:false}") boolean enabled,
+                               @Value("${job.submit.coalesce.max-wait-micros:200}") long maxWaitMicros,
+                               @Value("${job.submit.coalesce.max-batch:64}") int maxBatch) {
+        this.jobStore = jobStore;
+        this.enabled = enabled;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.maxBatch = maxBatch;
+        // How many submissions each flush carried — the payoff of coalescing at a glance.
+        this.batchSizes = DistributionSummary.builder("jobs.submit.coalesced_batch_size")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) return;
+        flusher = Thread.ofPlatform()
+                .name("submission-coalescer")
+                .daemon(true)
+                .start(this::loop);
+        log.info("Submission coalescer started maxWaitMicros={} maxBatch={}",
+                TimeUnit.NANOSECONDS.toMicros(maxWaitNanos), maxBatch);
+    }
+
+    // Creates the job record and queues the job, returning once the write has reached Redis —
+    // the same contract as RedisJobStore.submitJobs, whether or not coalescing is on. Once
+    // stop() has run, requests still being served during shutdown write straight through.
+    public void createJob(String jobId, String url, String tenant, int cost, long deadline) {
+        Submission job = new Submission(new JobRequest(jobId, url, 1, JobLane.INTERACTIVE,
+                System.currentTimeMillis(), deadline), tenant, cost);
+        if (!enabled || !running) {
+            jobStore.submitJobs(List.of(job));
+            return;
+        }
+        Pending submission = new Pending(job, new CompletableFuture<>());
+        pending.add(submission);
+        // stop() may have let the flusher exit between the check above and the add. Take the
+        // submission back and write it here, unless the flusher already took it to flush.
+        if (!running && pending.remove(submission)) {
+            jobStore.submitJobs(List.of(job));
+            return;
+        }
+        try {
+            submission.done().join();
+        } catch (CompletionException e) {
+            // Rethrow the flush failure itself so callers see the same exception as an
+            // uncoalesced write would have thrown.
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    private void loop() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running || !pending.isEmpty()) {
+            try {
+                // Block for the first submission, then gather more until the batch is full
+                // or the wait window (measured from that first submission) closes.
+                Pending first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0
+                            ? pending.poll(remaining, TimeUnit.NANOSECONDS)
+                            : pending.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                // Nothing interrupts the flusher in normal operation; if something does, fail
+                // the submissions it was holding rather than leave their callers waiting.
+                IllegalStateException stopped = new IllegalStateException("Submission coalescer interrupted");
+                batch.forEach(submission -> submission.done().completeExceptionally(stopped));
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        List<Submission> jobs = new ArrayList<>(batch.size());
+        for (Pending submission : batch) {
+            jobs.add(submission.job());
+        }
+        try {
+            jobStore.submitJobs(jobs);
+            batchSizes.record(batch.size());
+            for (Pending submission : batch) {
+                submission.done().complete(null);
+            }
+        } catch (Exception e) {
+            log.error("Coalesced job submission failed jobs={}", batch.size(), e);
+            for (Pending submission : batch) {
+                submission.done().completeExceptionally(e);
+            }
+        }
+    }
+
+    // The flusher is not interrupted: it finishes the flush in progress and drains whatever is
+    // still queued before exiting, so no request thread is left waiting on a submission that
+    // will never be written. Its idle poll wakes every 100 ms to notice the flag. Submissions
+    // that arrive afterwards don't queue for it (see createJob).
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (flusher == null) return;
+        running = false;
+        flusher.join(5_000);
+        log.info("Submission coalescer stopped");
+    }
+
+    private record Pending(Submission job, CompletableFuture<Void> done) {}
+}
@@ -1,7 +1,13 @@
 package com.krister.avatar.api;
 
+import com.krister.avatar.shared.JobCancellations;
+import com.krister.avatar.shared.JobQueue;
+import com.krister.avatar.shared.JobStatus;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.RedisJobStore.DlqEntry;
+import com.krister.avatar.shared.RedisJobStore.JobRecord;
+import com.krister.avatar.shared.RedisJobStore.QueueStats;
 import com.krister.avatar.shared.S3ResultStore;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,7 +15,9 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
@@ -22,11 +30,16 @@ class AdminControllerTest {
 
     @Autowired MockMvc mvc;
     @MockBean RedisJobStore jobStore;
+    @MockBean JobQueue jobQueue;
+    @MockBean JobCancellations jobCancellations;
+    @MockBean ResultCache resultCache;
     @MockBean S3ResultStore s3ResultStore;
     @MockBean GlobalJobQuota globalQuota;
     @MockBean JobProcessor jobProcessor;
     @MockBean JobWorkerPool jobWorkerPool;
     @MockBean RetryPromoter retryPromoter;
+    @MockBean StagedJobDispatcher stagedJobDispatcher;
+    @MockBean LeaseReaper leaseReaper;
 
     @Test
     void listFailed_returnsEntries() throws Exception {
@@ -82,4 +95,43 @@ class AdminControllerTest {
         mvc.perform(delete("/api/admin/jobs/failed/missing").header("X-Api-Key", API_KEY))
                 .andExpect(status().isNotFound());
     }
+
+    @Test
+    void queueStats_returnsCountsPerConsumer() throws Exception {
+        when(jobStore.queueStats()).thenReturn(
+                new QueueStats("stream", 12, Map.of("interactive", 2L, "retry", 0L, "bulk", 10L),
+                        3, Map.of("1@worker-a", 2L, "7@worker-b", 1L)));
+
+        mvc.perform(get("/api/admin/queue").header("X-Api-Key", API_KEY))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.backend").value("stream"))
+                .andExpect(jsonPath("$.waiting").value(12))
+                .andExpect(jsonPath("$.waitingByLane.bulk").value(10))
+                .andExpect(jsonPath("$.inFlight").value(3))
+                .andExpect(jsonPath("$.inFlightByConsumer['1@worker-a']").value(2));
+    }
+
+    @Test
+    void job_returnsRecord() throws Exception {
+        when(jobStore.getJob("job-1")).thenReturn(new JobRecord("job-1", JobStatus.COMPLETED,
+                "https://1.1.1.1/img.png", Instant.ofEpochMilli(1_700_000_000_000L),
+                Instant.ofEpochMilli(1_700_000_001_000L), Instant.ofEpochMilli(1_700_000_002_000L),
+                1, "1@worker-a", 4096L, 3));
+
+        mvc.perform(get("/api/admin/jobs/job-1").header("X-Api-Key", API_KEY))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("COMPLETED"))
+                .andExpect(jsonPath("$.worker").value("1@worker-a"))
+                .andExpect(jsonPath("$.outputBytes").value(4096))
+                .andExpect(jsonPath("$.cost").value(3))
+                .andExpect(jsonPath("$.startedAt").value("2023-11-14T22:13:21Z"));
+    }
+
+    @Test
+    void job_unknownJob_returns404() throws Exception {
+        when(jobStore.getJob("missing")).thenReturn(null);
+
+        mvc.perform(get("/api/admin/jobs/missing").header("X-Api-Key", API_KEY))
+                .andExpect(status().isNotFound());
+    }
 }
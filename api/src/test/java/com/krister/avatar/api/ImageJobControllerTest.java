@@ -1,8 +1,13 @@
 package com.krister.avatar.api;
 
+import com.krister.avatar.shared.JobCancellations;
+import com.krister.avatar.shared.JobQueue;
 import com.krister.avatar.shared.JobStatus;
 import com.krister.avatar.shared.ProcessingResult;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.api.ImageJobService.Reservation;
+import com.krister.avatar.shared.RedisJobStore.IdempotencyKeyConflictException;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.S3ResultStore;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
@@ -14,12 +19,19 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.util.Collections;
+import java.util.List;
+
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -42,8 +54,12 @@ class ImageJobControllerTest {
     @MockBean ImageJobService jobService;
     @MockBean IpRateLimiter rateLimiter;
     @MockBean GlobalJobQuota globalQuota;
-    // RedisJobStore and S3ResultStore are in the shared component scan path; mock both to
-    // prevent context startup failures (@PostConstruct on S3ResultStore calls S3).
+    // JobQueue, RedisJobStore, S3ResultStore and JobCancellations are in the shared component
+    // scan path; mock them to prevent context startup failures (@PostConstruct on
+    // S3ResultStore calls S3, and on JobCancellations subscribes to Redis).
+    @MockBean JobQueue jobQueue;
+    @MockBean JobCancellations jobCancellations;
+    @MockBean ResultCache resultCache;
     @MockBean RedisJobStore redisJobStore;
     @MockBean S3ResultStore s3ResultStore;
     // JobProcessor, JobWorkerPool, RetryPromoter are now @Components in the api package.
@@ -52,6 +68,8 @@ class ImageJobControllerTest {
     @MockBean JobProcessor jobProcessor;
     @MockBean JobWorkerPool jobWorkerPool;
     @MockBean RetryPromoter retryPromoter;
+    @MockBean StagedJobDispatcher stagedJobDispatcher;
+    @MockBean LeaseReaper leaseReaper;
 
     // --- Authentication ---
 
@@ -114,7 +132,7 @@ class ImageJobControllerTest {
     void submitJob_validUrl_returnsJobId() throws Exception {
         when(rateLimiter.tryConsume(any())).thenReturn(true);
         when(globalQuota.tryConsume()).thenReturn(true);
-        when(jobService.createJob(anyString())).thenReturn("job-abc");
+        when(jobService.createJob("https://1.1.1.1/img.png", "127.0.0.1", 0L, null)).thenReturn("job-abc");
         try (MockedStatic<UrlValidator> validator = mockStatic(UrlValidator.class)) {
             // validate() is void — by default the mock does nothing (URL passes)
 
@@ -126,6 +144,238 @@ class ImageJobControllerTest {
         }
     }
 
+    @Test
+    void submitJob_usesForwardedClientIpAsTenant() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+        when(globalQuota.tryConsume()).thenReturn(true);
+        when(jobService.createJob(anyString(), anyString(), anyLong(), isNull())).thenReturn("job-abc");
+        try (MockedStatic<UrlValidator> validator = mockStatic(UrlValidator.class)) {
+            mvc.perform(post("/api/jobs")
+                            .header("X-Api-Key", API_KEY)
+                            .header("X-Forwarded-For", "203.0.113.7, 10.0.0.1")
+                            .param("url", "https://1.1.1.1/img.png"))
+                    .andExpect(status().isOk());
+        }
+
+        verify(jobService).createJob("https://1.1.1.1/img.png", "203.0.113.7", 0L, null);
+    }
+
+    @Test
+    void submitJob_deadlineSeconds_passesAbsoluteDeadline() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+        when(globalQuota.tryConsume()).thenReturn(true);
+        when(jobService.createJob(anyString(), anyString(), anyLong(), isNull())).thenReturn("job-abc");
+        long before = System.currentTimeMillis();
+        try (MockedStatic<UrlValidator> validator = mockStatic(UrlValidator.class)) {
+            mvc.perform(post("/api/jobs")
+                            .header("X-Api-Key", API_KEY)
+                            .param("url", "https://1.1.1.1/img.png")
+                            .param("deadlineSeconds", "60"))
+                    .andExpect(status().isOk());
+        }
+
+        verify(jobService).createJob(eq("https://1.1.1.1/img.png"), anyString(),
+                longThat(deadline -> deadline >= before + 60_000 && deadline <= System.currentTimeMillis() + 60_000), isNull());
+    }
+
+    @Test
+    void submitJob_repeatedIdempotencyKey_returnsEarlierJobBeforeRateLimit() throws Exception {
+        when(jobService.reserveJob("key-1", "127.0.0.1", "https://1.1.1.1/img.png"))
+                .thenReturn(new Reservation("key-1", "127.0.0.1", "job-abc", true));
+        when(jobService.getStatus("job-abc")).thenReturn(JobStatus.PENDING);
+
+        mvc.perform(post("/api/jobs")
+                        .header("X-Api-Key", API_KEY)
+                        .header("Idempotency-Key", "key-1")
+                        .param("url", "https://1.1.1.1/img.png"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andExpect(jsonPath("$.jobId").value("job-abc"));
+
+        verifyNoInteractions(rateLimiter, globalQuota);
+        verify(jobService, never()).createJob(any(), any(), anyLong(), any());
+    }
+
+    @Test
+    void submitJob_repeatedIdempotencyKeyBeforeJobExists_returnsConflictToRetry() throws Exception {
+        when(jobService.reserveJob("key-1", "127.0.0.1", "https://1.1.1.1/img.png"))
+                .thenReturn(new Reservation("key-1", "127.0.0.1", "job-abc", true));
+
+        mvc.perform(post("/api/jobs")
+                        .header("X-Api-Key", API_KEY)
+                        .header("Idempotency-Key", "key-1")
+                        .param("url", "https://1.1.1.1/img.png"))
+                .andExpect(status().isConflict())
+                .andExpect(header().string("Retry-After", "1"))
+                .andExpect(jsonPath("$.jobId").doesNotExist());
+
+        verifyNoInteractions(rateLimiter, globalQuota);
+        verify(jobService, never()).release(any());
+    }
+
+    @Test
+    void submitJob_newIdempotencyKey_createsJobUnderReservation() throws Exception {
+        Reservation reservation = new Reservation("key-1", "127.0.0.1", "job-abc", false);
+        when(jobService.reserveJob("key-1", "127.0.0.1", "https://1.1.1.1/img.png")).thenReturn(reservation);
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+        when(globalQuota.tryConsume()).thenReturn(true);
+        when(jobService.createJob("https://1.1.1.1/img.png", "127.0.0.1", 0L, reservation)).thenReturn("job-abc");
+        try (MockedStatic<UrlValidator> validator = mockStatic(UrlValidator.class)) {
+            mvc.perform(post("/api/jobs")
+                            .header("X-Api-Key", API_KEY)
+                            .header("Idempotency-Key", "key-1")
+                            .param("url", "https://1.1.1.1/img.png"))
+                    .andExpect(status().isOk())
+                    .andExpect(header().doesNotExist("Idempotent-Replayed"))
+                    .andExpect(jsonPath("$.jobId").value("job-abc"));
+        }
+        verify(jobService, never()).release(any());
+    }
+
+    @Test
+    void submitJob_idempotencyKeyRateLimited_releasesReservation() throws Exception {
+        Reservation reservation = new Reservation("key-1", "127.0.0.1", "job-abc", false);
+        when(jobService.reserveJob("key-1", "127.0.0.1", "https://1.1.1.1/img.png")).thenReturn(reservation);
+        when(rateLimiter.tryConsume(any())).thenReturn(false);
+
+        mvc.perform(post("/api/jobs")
+                        .header("X-Api-Key", API_KEY)
+                        .header("Idempotency-Key", "key-1")
+                        .param("url", "https://1.1.1.1/img.png"))
+                .andExpect(status().isTooManyRequests());
+
+        verify(jobService).release(reservation);
+        verifyNoInteractions(globalQuota);
+    }
+
+    @Test
+    void submitJob_idempotencyKeyUsedForOtherUrl_returns422() throws Exception {
+        when(jobService.reserveJob("key-1", "127.0.0.1", "https://1.1.1.1/other.png"))
+                .thenThrow(new IdempotencyKeyConflictException());
+
+        mvc.perform(post("/api/jobs")
+                        .header("X-Api-Key", API_KEY)
+                        .header("Idempotency-Key", "key-1")
+                        .param("url", "https://1.1.1.1/other.png"))
+                .andExpect(status().isUnprocessableEntity())
+                .andExpect(jsonPath("$.error").value("Idempotency-Key was already used for a different request"));
+        verifyNoInteractions(rateLimiter, globalQuota);
+    }
+
+    @Test
+    void submitJob_blankIdempotencyKey_returns400() throws Exception {
+        mvc.perform(post("/api/jobs")
+                        .header("X-Api-Key", API_KEY)
+                        .header("Idempotency-Key", " ")
+                        .param("url", "https://1.1.1.1/img.png"))
+                .andExpect(status().isBadRequest());
+
+        verifyNoInteractions(jobService, rateLimiter);
+    }
+
+    @Test
+    void uploadJob_repeatedIdempotencyKey_returnsEarlierJobWithoutStoring() throws Exception {
+        byte[] data = {1, 2, 3};
+        when(jobService.reserveUpload("key-1", "127.0.0.1", data))
+                .thenReturn(new Reservation("key-1", "127.0.0.1", "job-abc", true));
+        when(jobService.getStatus("job-abc")).thenReturn(JobStatus.PENDING);
+
+        mvc.perform(multipart("/api/jobs/upload")
+                        .file(new MockMultipartFile("file", "a.png", "image/png", data))
+                        .header("X-Api-Key", API_KEY)
+                        .header("Idempotency-Key", "key-1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.jobId").value("job-abc"));
+
+        verify(jobService, never()).createJobFromUpload(any(), any(), any(), anyLong(), any());
+        verifyNoInteractions(globalQuota);
+    }
+
+    @Test
+    void submitJob_nonPositiveDeadline_returns400BeforeRateLimit() throws Exception {
+        mvc.perform(post("/api/jobs")
+                        .header("X-Api-Key", API_KEY)
+                        .param("url", "https://1.1.1.1/img.png")
+                        .param("deadlineSeconds", "0"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("deadlineSeconds must be positive"));
+        verifyNoInteractions(rateLimiter, jobService);
+    }
+
+    // --- POST /api/jobs/batch ---
+    // IP-literal URLs are validated for real: no DNS lookup happens, and a static mock would
+    // not reach the virtual threads validateAll runs on anyway.
+
+    @Test
+    void submitBatch_returnsPerItemResultsInOrder() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+        when(globalQuota.tryConsume(2)).thenReturn(2);
+        when(jobService.createJobs(List.of("https://1.1.1.1/a.png", "https://8.8.8.8/c.png"), "127.0.0.1", 0L))
+                .thenReturn(List.of("job-a", "job-c"));
+
+        mvc.perform(post("/api/jobs/batch")
+                        .header("X-Api-Key", API_KEY)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"urls\":[\"https://1.1.1.1/a.png\",\"http://10.0.0.1/b.png\",\"https://8.8.8.8/c.png\"]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.jobs[0].jobId").value("job-a"))
+                .andExpect(jsonPath("$.jobs[1].url").value("http://10.0.0.1/b.png"))
+                .andExpect(jsonPath("$.jobs[1].error").value("URL is not allowed"))
+                .andExpect(jsonPath("$.jobs[2].jobId").value("job-c"));
+    }
+
+    @Test
+    void submitBatch_quotaRunsOut_rejectsRemainingItems() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+        when(globalQuota.tryConsume(2)).thenReturn(1);
+        when(jobService.createJobs(List.of("https://1.1.1.1/a.png"), "127.0.0.1", 0L)).thenReturn(List.of("job-a"));
+
+        mvc.perform(post("/api/jobs/batch")
+                        .header("X-Api-Key", API_KEY)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"urls\":[\"https://1.1.1.1/a.png\",\"https://1.1.1.1/b.png\"]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.jobs[0].jobId").value("job-a"))
+                .andExpect(jsonPath("$.jobs[1].error").value("Daily processing limit reached — try again tomorrow"));
+    }
+
+    @Test
+    void submitBatch_rateLimited_returns429() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(false);
+
+        mvc.perform(post("/api/jobs/batch")
+                        .header("X-Api-Key", API_KEY)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"urls\":[\"https://1.1.1.1/a.png\"]}"))
+                .andExpect(status().isTooManyRequests());
+        verifyNoInteractions(globalQuota, jobService);
+    }
+
+    @Test
+    void submitBatch_empty_returns400() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+
+        mvc.perform(post("/api/jobs/batch")
+                        .header("X-Api-Key", API_KEY)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"urls\":[]}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void submitBatch_tooLarge_returns400() throws Exception {
+        when(rateLimiter.tryConsume(any())).thenReturn(true);
+        String urls = String.join(",", Collections.nCopies(501, "\"https://1.1.1.1/a.png\""));
+
+        mvc.perform(post("/api/jobs/batch")
+                        .header("X-Api-Key", API_KEY)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"urls\":[" + urls + "]}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("At most 500 URLs per batch"));
+        verifyNoInteractions(globalQuota);
+    }
+
     // --- GET /api/jobs/{jobId} ---
 
     @Test
@@ -145,6 +395,34 @@ class ImageJobControllerTest {
                 .andExpect(content().string("PROCESSING"));
     }
 
+    // --- DELETE /api/jobs/{jobId} ---
+
+    @Test
+    void cancelJob_unfinishedJob_returnsCancelled() throws Exception {
+        when(jobService.cancelJob("job-1")).thenReturn(JobStatus.CANCELLED);
+
+        mvc.perform(delete("/api/jobs/job-1").header("X-Api-Key", API_KEY))
+                .andExpect(status().isOk())
+                .andExpect(content().string("CANCELLED"));
+    }
+
+    @Test
+    void cancelJob_alreadyFinished_returns409WithStatus() throws Exception {
+        when(jobService.cancelJob("job-1")).thenReturn(JobStatus.COMPLETED);
+
+        mvc.perform(delete("/api/jobs/job-1").header("X-Api-Key", API_KEY))
+                .andExpect(status().isConflict())
+                .andExpect(content().string("COMPLETED"));
+    }
+
+    @Test
+    void cancelJob_unknownJob_returns404() throws Exception {
+        when(jobService.cancelJob("missing")).thenReturn(null);
+
+        mvc.perform(delete("/api/jobs/missing").header("X-Api-Key", API_KEY))
+                .andExpect(status().isNotFound());
+    }
+
     // --- GET /api/jobs/{jobId}/result ---
 
     @Test
@@ -1,37 +1,136 @@
 package com.krister.avatar.api;
 
-import com.krister.avatar.shared.JobStatus;
+import com.krister.avatar.api.ImageJobService.Reservation;
+import com.krister.avatar.shared.JobLane;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.S3ResultStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Mockito.verify;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
 class ImageJobServiceTest {
 
     @Mock RedisJobStore jobStore;
     @Mock S3ResultStore s3ResultStore;
+    @Mock SubmissionCoalescer coalescer;
+    @Mock ResultCache resultCache;
 
     ImageJobService service;
 
     @BeforeEach
     void setUp() {
-        service = new ImageJobService(jobStore, s3ResultStore);
+        service = new ImageJobService(jobStore, s3ResultStore, coalescer, resultCache, new SimpleMeterRegistry());
     }
 
     @Test
-    void createJob_setsStatusPendingAndEnqueues() {
-        String jobId = service.createJob("https://1.1.1.1/img.png");
+    void createJob_writesRecordAndEnqueues() {
+        String jobId = service.createJob("https://1.1.1.1/img.png", "203.0.113.7", 0, null);
 
         assertThat(jobId).isNotBlank();
-        verify(jobStore).setStatus(jobId, JobStatus.PENDING);
-        verify(jobStore).enqueue(jobId, "https://1.1.1.1/img.png");
+        verify(coalescer).createJob(jobId, "https://1.1.1.1/img.png", "203.0.113.7", 1, 0);
+    }
+
+    @Test
+    void createJob_urlAlreadyInFlight_attachesWithoutQueueing() {
+        ReflectionTestUtils.setField(service, "singleFlight", true);
+        when(jobStore.attachFollower(anyString(), eq("https://1.1.1.1/img.png"), eq(JobLane.INTERACTIVE), eq(0L)))
+                .thenReturn("leader-1");
+
+        String jobId = service.createJob("https://1.1.1.1/img.png", "203.0.113.7", 0, null);
+
+        verify(jobStore).attachFollower(jobId, "https://1.1.1.1/img.png", JobLane.INTERACTIVE, 0L);
+        verifyNoInteractions(coalescer);
+    }
+
+    @Test
+    void createJob_firstSubmissionOfUrl_isQueuedAsLeader() {
+        ReflectionTestUtils.setField(service, "singleFlight", true);
+
+        String jobId = service.createJob("https://1.1.1.1/img.png", "203.0.113.7", 0, null);
+
+        verify(coalescer).createJob(jobId, "https://1.1.1.1/img.png", "203.0.113.7", 1, 0);
+    }
+
+    @Test
+    void createJobFromUpload_estimatesCostFromImageHeader() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB), "png", png);
+
+        String jobId = service.createJobFromUpload(png.toByteArray(), "image/png", "203.0.113.7", 0, null);
+
+        verify(coalescer).createJob(jobId, "s3://uploads/" + jobId, "203.0.113.7", 4, 0);
+    }
+
+    @Test
+    void createJobFromUpload_cachedSource_completesWithoutStoringOrQueueing() {
+        byte[] data = {1, 2, 3};
+        when(resultCache.isEnabled()).thenReturn(true);
+        when(resultCache.copyTo(eq(ResultCache.hash(data)), anyString())).thenReturn(2048L);
+
+        String jobId = service.createJobFromUpload(data, "image/png", "203.0.113.7", 0, null);
+
+        verify(resultCache).copyTo(ResultCache.hash(data), jobId);
+        verify(jobStore).createCompletedJob(jobId, "s3://uploads/" + jobId, 2048L);
+        verify(s3ResultStore, never()).storeUpload(any(), any(), any());
+        verifyNoInteractions(coalescer);
+    }
+
+    @Test
+    void reserveJob_idempotencyKeyAlreadyUsed_returnsEarlierJob() {
+        when(jobStore.reserveIdempotencyKey(eq("203.0.113.7"), eq("key-1"), anyString(), anyString()))
+                .thenReturn("job-earlier");
+
+        Reservation reservation = service.reserveJob("key-1", "203.0.113.7", "https://1.1.1.1/img.png");
+
+        assertThat(reservation.replay()).isTrue();
+        assertThat(reservation.jobId()).isEqualTo("job-earlier");
+    }
+
+    @Test
+    void createJob_underReservation_usesItsJobId() {
+        ArgumentCaptor<String> reserved = ArgumentCaptor.forClass(String.class);
+        Reservation reservation = service.reserveJob("key-1", "203.0.113.7", "https://1.1.1.1/img.png");
+        verify(jobStore).reserveIdempotencyKey(eq("203.0.113.7"), eq("key-1"), reserved.capture(), anyString());
+
+        String jobId = service.createJob("https://1.1.1.1/img.png", "203.0.113.7", 0, reservation);
+
+        assertThat(jobId).isEqualTo(reserved.getValue());
+        verify(coalescer).createJob(jobId, "https://1.1.1.1/img.png", "203.0.113.7", 1, 0);
+    }
+
+    @Test
+    void release_onlyReleasesKeysThisRequestReserved() {
+        service.release(new Reservation("key-1", "203.0.113.7", "job-earlier", true));
+        service.release(null);
+        verifyNoInteractions(jobStore);
+
+        service.release(new Reservation("key-1", "203.0.113.7", "job-1", false));
+        verify(jobStore).releaseIdempotencyKey("203.0.113.7", "key-1", "job-1");
+    }
+
+    @Test
+    void reserveUpload_fingerprintsTheBytes() {
+        byte[] data = {1, 2, 3};
+        when(jobStore.reserveIdempotencyKey(eq("203.0.113.7"), eq("key-1"), anyString(), eq(ResultCache.hash(data))))
+                .thenReturn("job-earlier");
+
+        assertThat(service.reserveUpload("key-1", "203.0.113.7", data).jobId()).isEqualTo("job-earlier");
     }
 
     @Test
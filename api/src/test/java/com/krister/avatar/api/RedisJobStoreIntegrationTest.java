@@ -1,24 +1,41 @@
 package com.krister.avatar.api;
 
+import com.krister.avatar.shared.GifPart;
+import com.krister.avatar.shared.JobCodec;
+import com.krister.avatar.shared.JobLane;
+import com.krister.avatar.shared.JobQueue;
 import com.krister.avatar.shared.JobStatus;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.RedisListJobQueue;
+import com.krister.avatar.shared.ProcessingResult;
+import com.krister.avatar.shared.RedisStreamJobQueue;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.S3ResultStore;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.redis.connection.RedisListCommands.Direction;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.when;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
 @Testcontainers(disabledWithoutDocker = true)
@@ -36,9 +53,14 @@ class RedisJobStoreIntegrationTest {
 
     // S3ResultStore.@PostConstruct would try to reach S3 — replace it with a mock.
     @MockBean S3ResultStore s3ResultStore;
+    // The real promoter would win leadership and promote retries behind the tests' backs.
+    @MockBean RetryPromoter retryPromoter;
 
     @Autowired RedisJobStore jobStore;
+    @Autowired JobQueue jobQueue;
     @Autowired StringRedisTemplate stringRedis;
+    @Autowired JobCodec codec;
+    @Autowired ResultCache resultCache;
 
     @BeforeEach
     void flushRedis() {
@@ -48,6 +70,15 @@ class RedisJobStoreIntegrationTest {
         });
     }
 
+    // The queue is a shared Spring singleton — undo any per-test mode switches.
+    @AfterEach
+    void resetMode() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", false);
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 30L);
+        ReflectionTestUtils.setField(jobStore, "fairShare", false);
+        ReflectionTestUtils.setField(jobStore, "scheduling", "fifo");
+    }
+
     // --- status ---
 
     @Test
@@ -64,6 +95,439 @@ class RedisJobStoreIntegrationTest {
         assertThat(jobStore.getStatus("nonexistent")).isNull();
     }
 
+    @Test
+    void getStatus_fallsBackToLegacyStatusKey() {
+        stringRedis.opsForValue().set("job:job-1:status", "PROCESSING");
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.PROCESSING);
+    }
+
+    // --- job record ---
+
+    @Test
+    void createJob_writesRecordWithTtlAndQueuesJob() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+
+        RedisJobStore.JobRecord job = jobStore.getJob("job-1");
+        assertThat(job.status()).isEqualTo(JobStatus.PENDING);
+        assertThat(job.url()).isEqualTo("https://1.1.1.1/img.png");
+        assertThat(job.createdAt()).isNotNull();
+        assertThat(job.startedAt()).isNull();
+        assertThat(job.attempt()).isEqualTo(1);
+        assertThat(stringRedis.getExpire("job:job-1")).isPositive();
+
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+    }
+
+    @Test
+    void createJobs_writesEveryRecordAndQueuesInOrder() {
+        jobStore.createJobs(List.of(
+                new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/a.png", 1),
+                new RedisJobStore.JobRequest("job-2", "https://1.1.1.1/b.png", 1),
+                new RedisJobStore.JobRequest("job-3", "https://1.1.1.1/c.png", 1)));
+
+        assertThat(jobStore.getStatus("job-2")).isEqualTo(JobStatus.PENDING);
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500)))
+                .extracting(RedisJobStore.JobRequest::jobId)
+                .containsExactly("job-1", "job-2", "job-3");
+    }
+
+    @Test
+    void markStartedAndCompleted_recordTimingsAndOutput() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        jobStore.markStarted("job-1", 2);
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.PROCESSING);
+
+        jobStore.markCompleted("job-1", 4096);
+
+        RedisJobStore.JobRecord job = jobStore.getJob("job-1");
+        assertThat(job.status()).isEqualTo(JobStatus.COMPLETED);
+        assertThat(job.attempt()).isEqualTo(2);
+        assertThat(job.worker()).contains("@");
+        assertThat(job.outputBytes()).isEqualTo(4096L);
+        assertThat(job.finishedAt()).isAfterOrEqualTo(job.startedAt());
+        assertThat(job.startedAt()).isAfterOrEqualTo(job.createdAt());
+    }
+
+    @Test
+    void markStarted_recordExpired_returnsNullWithoutRecreatingIt() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        stringRedis.delete("job:job-1");
+
+        assertThat(jobStore.markStarted("job-1", 1)).isNull();
+        assertThat(stringRedis.hasKey("job:job-1")).isFalse();
+    }
+
+    @Test
+    void markExpired_setsExpiredStatus() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+
+        jobStore.markExpired("job-1");
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.EXPIRED);
+        assertThat(jobStore.getJob("job-1").finishedAt()).isNotNull();
+    }
+
+    @Test
+    void scheduleRetry_carriesClientDeadline() {
+        givenRunningJobs("job-1");
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L, 1_900_000_000_000L);
+        jobStore.promoteRetries(100);
+
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).deadline()).isEqualTo(1_900_000_000_000L);
+    }
+
+    @Test
+    void markFailed_setsFailedAndWritesDlqEntry() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+
+        jobStore.markFailed("job-1", "https://1.1.1.1/img.png", 3, "network error");
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.FAILED);
+        assertThat(jobStore.getJob("job-1").finishedAt()).isNotNull();
+        assertThat(jobStore.listDlq()).extracting(RedisJobStore.DlqEntry::error)
+                .containsExactly("network error");
+    }
+
+    @Test
+    void markFailed_cancelledJob_keepsCancelledWithoutDlqEntry() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        jobStore.cancel("job-1");
+
+        jobStore.markFailed("job-1", "https://1.1.1.1/img.png", 3, "network error");
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.CANCELLED);
+        assertThat(jobStore.listDlq()).isEmpty();
+    }
+
+    @Test
+    void markFailed_expiredJob_isNotRecreatedOrDeadLettered() {
+        jobStore.markFailed("job-1", "https://1.1.1.1/img.png", 3, "network error");
+
+        assertThat(stringRedis.hasKey("job:job-1")).isFalse();
+        assertThat(jobStore.listDlq()).isEmpty();
+    }
+
+    @Test
+    void scheduleRetry_setsRecordBackToPending() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        jobStore.markStarted("job-1", 1);
+
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 3600L);
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.PENDING);
+        assertThat(stringRedis.getExpire("job:job-1")).isPositive();
+    }
+
+    @Test
+    void cancel_pendingJob_marksCancelledAndWorkerCannotStartIt() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+
+        assertThat(jobStore.cancel("job-1")).isEqualTo(JobStatus.CANCELLED);
+
+        assertThat(jobStore.markStarted("job-1", 1)).isEqualTo(JobStatus.CANCELLED);
+        jobStore.markCompleted("job-1", 10);
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.CANCELLED);
+        assertThat(jobStore.getJob("job-1").finishedAt()).isNotNull();
+    }
+
+    @Test
+    void cancel_jobWaitingToRetry_removesItFromRetrySet() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        jobStore.markStarted("job-1", 1);
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
+
+        assertThat(jobStore.cancel("job-1")).isEqualTo(JobStatus.CANCELLED);
+
+        assertThat(stringRedis.opsForZSet().zCard("jobs:retry")).isZero();
+        assertThat(jobStore.promoteRetries(100).promoted()).isZero();
+    }
+
+    @Test
+    void scheduleRetry_recordExpired_isNotScheduledOrRecreated() {
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
+
+        assertThat(stringRedis.opsForZSet().zCard("jobs:retry")).isZero();
+        assertThat(stringRedis.hasKey("job:job-1")).isFalse();
+    }
+
+    @Test
+    void markStarted_onlyLegacyStatusKey_treatsRecordAsExpired() {
+        stringRedis.opsForValue().set("job:job-1:status", "PENDING");
+
+        assertThat(jobStore.markStarted("job-1", 1)).isNull();
+        assertThat(stringRedis.hasKey("job:job-1")).isFalse();
+    }
+
+    @Test
+    void scheduleRetry_afterCancel_isNotScheduled() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        jobStore.markStarted("job-1", 1);
+        jobStore.cancel("job-1");
+
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
+
+        assertThat(stringRedis.opsForZSet().zCard("jobs:retry")).isZero();
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.CANCELLED);
+    }
+
+    @Test
+    void cancel_finishedOrUnknownJob_leavesItAlone() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png");
+        jobStore.markCompleted("job-1", 10);
+
+        assertThat(jobStore.cancel("job-1")).isEqualTo(JobStatus.COMPLETED);
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.COMPLETED);
+        assertThat(jobStore.cancel("nonexistent")).isNull();
+    }
+
+    // --- split GIFs ---
+
+    private List<GifPart> splitGif(String jobId, int parts) {
+        jobStore.createJob(jobId, "https://1.1.1.1/anim.gif");
+        jobStore.markStarted(jobId, 1);
+        jobStore.dequeue(Duration.ofMillis(100));
+        List<GifPart> split = new ArrayList<>();
+        for (int i = 0; i < parts; i++) {
+            split.add(new GifPart(jobId, i, parts, i * 50, (i + 1) * 50, 0, 0, 100, 100));
+        }
+        jobStore.splitJob(new RedisJobStore.JobRequest(jobId, "https://1.1.1.1/anim.gif", 1,
+                JobLane.BULK, 0L, 1_900_000_000_000L), split);
+        return split;
+    }
+
+    @Test
+    void splitJob_queuesPartsAndOnlyLastCompletionStitches() {
+        List<GifPart> parts = splitGif("job-1", 3);
+
+        List<RedisJobStore.JobRequest> queued = List.of(jobStore.dequeue(Duration.ofMillis(500)),
+                jobStore.dequeue(Duration.ofMillis(500)), jobStore.dequeue(Duration.ofMillis(500)));
+        assertThat(queued).extracting(RedisJobStore.JobRequest::jobId, RedisJobStore.JobRequest::lane,
+                        RedisJobStore.JobRequest::deadline)
+                .containsExactlyInAnyOrder(tuple("job-1-part-0", JobLane.INTERACTIVE, 1_900_000_000_000L),
+                        tuple("job-1-part-1", JobLane.INTERACTIVE, 1_900_000_000_000L),
+                        tuple("job-1-part-2", JobLane.INTERACTIVE, 1_900_000_000_000L));
+        assertThat(GifPart.parse(queued.get(0).url())).isIn(parts);
+        assertThat(jobStore.getStatus("job-1-part-0")).isEqualTo(JobStatus.PENDING);
+
+        assertThat(jobStore.completePart(parts.get(2))).isFalse();
+        assertThat(jobStore.completePart(parts.get(0))).isFalse();
+        // A retry of a part already counted changes nothing.
+        assertThat(jobStore.completePart(parts.get(0))).isFalse();
+        assertThat(jobStore.completePart(parts.get(1))).isTrue();
+        assertThat(jobStore.getStatus("job-1-part-1")).isEqualTo(JobStatus.COMPLETED);
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.PROCESSING);
+
+        jobStore.markCompleted("job-1", 100);
+        assertThat(jobStore.completePart(parts.get(1))).isFalse();
+    }
+
+    @Test
+    void cancel_splitJob_cancelsEveryPart() {
+        List<GifPart> parts = splitGif("job-1", 2);
+        jobStore.completePart(parts.get(0));
+
+        assertThat(jobStore.cancel("job-1")).isEqualTo(JobStatus.CANCELLED);
+
+        assertThat(jobStore.getStatus("job-1-part-0")).isEqualTo(JobStatus.COMPLETED);
+        assertThat(jobStore.getStatus("job-1-part-1")).isEqualTo(JobStatus.CANCELLED);
+        assertThat(jobStore.markStarted("job-1-part-1", 1)).isEqualTo(JobStatus.CANCELLED);
+        assertThat(jobStore.completePart(parts.get(1))).isFalse();
+    }
+
+    @Test
+    void cancel_part_cancelsItsWholeGif() {
+        List<GifPart> parts = splitGif("job-1", 2);
+
+        assertThat(jobStore.cancel(parts.get(1).jobId())).isEqualTo(JobStatus.CANCELLED);
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.CANCELLED);
+        assertThat(jobStore.getStatus("job-1-part-0")).isEqualTo(JobStatus.CANCELLED);
+        assertThat(jobStore.getStatus("job-1-part-1")).isEqualTo(JobStatus.CANCELLED);
+    }
+
+    @Test
+    void failSplitJob_failsParentWithDlqEntryForWholeGif() {
+        List<GifPart> parts = splitGif("job-1", 2);
+
+        jobStore.failSplitJob(parts.get(1), 3, "decode error");
+
+        assertThat(jobStore.getStatus("job-1-part-1")).isEqualTo(JobStatus.FAILED);
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.FAILED);
+        assertThat(jobStore.listDlq()).extracting(RedisJobStore.DlqEntry::jobId, RedisJobStore.DlqEntry::url,
+                        RedisJobStore.DlqEntry::error)
+                .containsExactly(tuple("job-1", "https://1.1.1.1/anim.gif", "Frames 50-100 failed: decode error"));
+
+        jobStore.failSplitJob(parts.get(0), 3, "decode error");
+        assertThat(jobStore.listDlq()).hasSize(1);
+    }
+
+    @Test
+    void failSplitJob_expiredPart_isNotRecreated() {
+        List<GifPart> parts = splitGif("job-1", 2);
+        stringRedis.delete("job:job-1-part-1");
+
+        jobStore.failSplitJob(parts.get(1), 3, "decode error");
+
+        assertThat(stringRedis.hasKey("job:job-1-part-1")).isFalse();
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.FAILED);
+    }
+
+    // --- single-flight ---
+
+    @Test
+    void attachFollower_sameUrlWrittenDifferently_attachesToUnfinishedLeader() {
+        assertThat(jobStore.attachFollower("job-1", "https://CDN.example.com:443/a.png?s=1#x", JobLane.INTERACTIVE, 0)).isNull();
+        jobStore.createJob("job-1", "https://CDN.example.com:443/a.png?s=1#x");
+
+        assertThat(jobStore.attachFollower("job-2", "https://cdn.example.com/a.png?s=1", JobLane.INTERACTIVE, 0))
+                .isEqualTo("job-1");
+        assertThat(jobStore.attachFollower("job-3", "https://cdn.example.com/A.png?s=1", JobLane.INTERACTIVE, 0))
+                .isNull();
+
+        assertThat(jobStore.getStatus("job-2")).isEqualTo(JobStatus.PENDING);
+        jobStore.markStarted("job-1", 1);
+        assertThat(jobStore.getStatus("job-2")).isEqualTo(JobStatus.PROCESSING);
+        assertThat(jobStore.getJob("job-2").status()).isEqualTo(JobStatus.PENDING);
+    }
+
+    @Test
+    void releaseFollowers_clearsMarkerAndHandsBackFollowersOnce() {
+        String url = "https://1.1.1.1/img.png";
+        jobStore.attachFollower("job-1", url, JobLane.INTERACTIVE, 0);
+        jobStore.createJob("job-1", url);
+        jobStore.attachFollower("job-2", url, JobLane.INTERACTIVE, 0);
+        jobStore.attachFollower("job-3", url, JobLane.INTERACTIVE, 0);
+
+        assertThat(jobStore.releaseFollowers("job-1", url)).containsExactlyInAnyOrder("job-2", "job-3");
+        assertThat(jobStore.releaseFollowers("job-1", url)).isEmpty();
+        // The next submission starts a new job.
+        assertThat(jobStore.attachFollower("job-4", url, JobLane.INTERACTIVE, 0)).isNull();
+    }
+
+    @Test
+    void attachFollower_leaderAlreadyFinished_becomesNewLeader() {
+        String url = "https://1.1.1.1/img.png";
+        jobStore.attachFollower("job-1", url, JobLane.INTERACTIVE, 0);
+        jobStore.createJob("job-1", url);
+        jobStore.markCompleted("job-1", 10);
+
+        assertThat(jobStore.attachFollower("job-2", url, JobLane.INTERACTIVE, 0)).isNull();
+        jobStore.createJob("job-2", url);
+        assertThat(jobStore.attachFollower("job-3", url, JobLane.INTERACTIVE, 0)).isEqualTo("job-2");
+    }
+
+    @Test
+    void markFailed_leader_queuesWaitingFollowersOnTheirOwn() {
+        String url = "https://1.1.1.1/img.png";
+        jobStore.attachFollower("job-1", url, JobLane.INTERACTIVE, 0);
+        jobStore.createJob("job-1", url);
+        jobStore.dequeue(Duration.ofMillis(100));
+        jobStore.attachFollower("job-2", url, JobLane.BULK, 1_900_000_000_000L);
+        jobStore.attachFollower("job-3", url, JobLane.INTERACTIVE, 0);
+        jobStore.cancel("job-3");
+
+        jobStore.markFailed("job-1", url, 3, "network error");
+
+        RedisJobStore.JobRequest requeued = jobStore.dequeue(Duration.ofMillis(500));
+        assertThat(requeued.jobId()).isEqualTo("job-2");
+        assertThat(requeued.lane()).isEqualTo(JobLane.BULK);
+        assertThat(requeued.deadline()).isEqualTo(1_900_000_000_000L);
+        assertThat(jobStore.dequeue(Duration.ofMillis(100))).isNull();
+        assertThat(jobStore.getStatus("job-3")).isEqualTo(JobStatus.CANCELLED);
+    }
+
+    @Test
+    void cancel_leader_queuesFollowersInsteadOfCancellingThem() {
+        String url = "https://1.1.1.1/img.png";
+        jobStore.attachFollower("job-1", url, JobLane.INTERACTIVE, 0);
+        jobStore.createJob("job-1", url);
+        jobStore.dequeue(Duration.ofMillis(100));
+        jobStore.attachFollower("job-2", url, JobLane.INTERACTIVE, 0);
+
+        jobStore.cancel("job-1");
+
+        assertThat(jobStore.getStatus("job-2")).isEqualTo(JobStatus.PENDING);
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-2");
+    }
+
+    // --- idempotency keys ---
+
+    @Test
+    void reserveIdempotencyKey_secondAttempt_getsFirstJob() {
+        assertThat(jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-1", "fp-a")).isNull();
+
+        assertThat(jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-2", "fp-a")).isEqualTo("job-1");
+        assertThat(stringRedis.keys("jobs:idempotency:*"))
+                .singleElement().satisfies(key -> assertThat(stringRedis.getExpire(key)).isPositive());
+    }
+
+    @Test
+    void reserveIdempotencyKey_differentRequest_isRefused() {
+        jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-1", "fp-a");
+
+        assertThatThrownBy(() -> jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-2", "fp-b"))
+                .isInstanceOf(RedisJobStore.IdempotencyKeyConflictException.class);
+    }
+
+    @Test
+    void reserveIdempotencyKey_sameKeyFromAnotherTenant_isIndependent() {
+        jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-1", "fp-a");
+
+        assertThat(jobStore.reserveIdempotencyKey("198.51.100.2", "key-1", "job-2", "fp-b")).isNull();
+        assertThat(jobStore.reserveIdempotencyKey("198.51.100.2", "key-1", "job-3", "fp-b")).isEqualTo("job-2");
+    }
+
+    @Test
+    void releaseIdempotencyKey_onlyReleasesItsOwnReservation() {
+        jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-1", "fp-a");
+
+        jobStore.releaseIdempotencyKey("203.0.113.7", "key-1", "job-2");
+        assertThat(jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-3", "fp-a")).isEqualTo("job-1");
+
+        jobStore.releaseIdempotencyKey("203.0.113.7", "key-1", "job-1");
+        assertThat(jobStore.reserveIdempotencyKey("203.0.113.7", "key-1", "job-3", "fp-a")).isNull();
+    }
+
+    // --- result cache ---
+
+    @Test
+    void resultCache_putThenCopyTo_returnsCachedSize() {
+        String hash = ResultCache.hash(new byte[]{1, 2, 3});
+        when(s3ResultStore.copyCached(hash, "job-2")).thenReturn(true);
+
+        assertThat(resultCache.copyTo(hash, "job-1")).isEqualTo(-1);
+        resultCache.put(hash, new ProcessingResult(new byte[2048], "image/png"));
+
+        assertThat(resultCache.copyTo(hash, "job-2")).isEqualTo(2048);
+        assertThat(stringRedis.getExpire("results:cache:v1:" + hash)).isPositive();
+    }
+
+    @Test
+    void resultCache_cachedObjectGone_dropsIndexEntry() {
+        String hash = ResultCache.hash(new byte[]{1, 2, 3});
+        resultCache.put(hash, new ProcessingResult(new byte[2048], "image/png"));
+
+        assertThat(resultCache.copyTo(hash, "job-1")).isEqualTo(-1);
+        assertThat(stringRedis.hasKey("results:cache:v1:" + hash)).isFalse();
+    }
+
+    @Test
+    void createCompletedJob_writesFinishedRecordWithoutQueueing() {
+        jobStore.createCompletedJob("job-1", "s3://uploads/job-1", 2048);
+
+        RedisJobStore.JobRecord job = jobStore.getJob("job-1");
+        assertThat(job.status()).isEqualTo(JobStatus.COMPLETED);
+        assertThat(job.outputBytes()).isEqualTo(2048L);
+        assertThat(stringRedis.getExpire("job:job-1")).isPositive();
+        assertThat(jobStore.dequeue(Duration.ofMillis(100))).isNull();
+    }
+
+    @Test
+    void getJob_unknownJob_returnsNull() {
+        assertThat(jobStore.getJob("nonexistent")).isNull();
+    }
+
     // --- queue ---
 
     @Test
@@ -78,15 +542,670 @@ class RedisJobStoreIntegrationTest {
         assertThat(req.attempt()).isEqualTo(1);
     }
 
+    @Test
+    void dequeue_readsLegacyJsonPayload() {
+        // written by a version that still stored JSON
+        stringRedis.opsForList().leftPush(RedisJobStore.QUEUE_KEY,
+                "{\"jobId\":\"job-1\",\"url\":\"https://1.1.1.1/img.png\",\"attempt\":2}");
+
+        RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
+
+        assertThat(req.jobId()).isEqualTo("job-1");
+        assertThat(req.attempt()).isEqualTo(2);
+    }
+
     @Test
     void dequeue_emptyQueue_returnsNull() {
         assertThat(jobStore.dequeue(Duration.ofMillis(100))).isNull();
     }
 
+    @Test
+    void dequeueBatch_claimsUpToMaxInFifoOrder() {
+        jobStore.enqueue("job-1", "https://1.1.1.1/a.png");
+        jobStore.enqueue("job-2", "https://1.1.1.1/b.png");
+        jobStore.enqueue("job-3", "https://1.1.1.1/c.png");
+
+        var batch = jobStore.dequeueBatch(2, Duration.ofMillis(500));
+
+        assertThat(batch).extracting(RedisJobStore.JobRequest::jobId).containsExactly("job-1", "job-2");
+        assertThat(stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY)).isEqualTo(1);
+    }
+
+    @Test
+    void dequeueBatch_emptyQueue_returnsEmptyList() {
+        assertThat(jobStore.dequeueBatch(5, Duration.ofMillis(100))).isEmpty();
+    }
+
+    @Test
+    void release_putsJobsBackAtFrontOfQueue() {
+        jobStore.enqueue("job-1", "https://1.1.1.1/a.png");
+        jobStore.enqueue("job-2", "https://1.1.1.1/b.png");
+        var claimed = jobStore.dequeueBatch(1, Duration.ofMillis(500));
+
+        jobStore.release(claimed);
+
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+    }
+
+    // --- reliable queue ---
+
+    @Test
+    void reliableDequeueBatch_leasesEveryClaimedJob() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.enqueue("job-1", "https://1.1.1.1/a.png");
+        jobStore.enqueue("job-2", "https://1.1.1.1/b.png");
+
+        var batch = jobStore.dequeueBatch(5, Duration.ofMillis(500));
+
+        assertThat(batch).extracting(RedisJobStore.JobRequest::jobId).containsExactly("job-1", "job-2");
+        assertThat(stringRedis.opsForZSet().size("jobs:leases")).isEqualTo(2);
+    }
+
+    @Test
+    void reliableRelease_requeuesAndDropsLease() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.enqueue("job-1", "https://1.1.1.1/a.png");
+        var claimed = jobStore.dequeueBatch(1, Duration.ofMillis(500));
+
+        jobStore.release(claimed);
+
+        assertThat(stringRedis.opsForZSet().size("jobs:leases")).isZero();
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+    }
+
+    @Test
+    void reliableDequeue_keepsJobLeasedUntilAck() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.enqueue("job-1", "https://1.1.1.1/img.png");
+
+        RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
+
+        assertThat(req.jobId()).isEqualTo("job-1");
+        assertThat(stringRedis.opsForZSet().score("jobs:leases", "job-1")).isNotNull();
+
+        jobStore.ack("job-1");
+
+        assertThat(stringRedis.opsForZSet().score("jobs:leases", "job-1")).isNull();
+        assertThat(jobStore.reapExpiredLeases(100)).isZero();
+    }
+
+    @Test
+    void reapExpiredLeases_requeuesJobFromDeadWorker() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        // zero-length lease → expires immediately, as if the worker died right after dequeue
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 0L);
+        jobStore.enqueue("job-1", "https://1.1.1.1/img.png");
+        jobStore.dequeue(Duration.ofMillis(500));
+
+        int reaped = jobStore.reapExpiredLeases(100);
+        assertThat(reaped).isEqualTo(1);
+
+        RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
+        assertThat(req).isNotNull();
+        assertThat(req.jobId()).isEqualTo("job-1");
+        assertThat(req.attempt()).isEqualTo(1);
+    }
+
+    @Test
+    void renewLeases_keepsLiveJobFromBeingReaped() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 0L);
+        jobStore.enqueue("job-1", "https://1.1.1.1/img.png");
+        jobStore.dequeue(Duration.ofMillis(500));
+
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 30L);
+        jobStore.renewLeases(List.of("job-1"));
+
+        assertThat(jobStore.reapExpiredLeases(100)).isZero();
+    }
+
+    @Test
+    void reapExpiredLeases_requeuesClaimOfWorkerThatDiedBeforeRecordingItsLease() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.enqueue("job-1", "https://1.1.1.1/img.png", JobLane.BULK);
+        // A dead process moved the job into its processing list and stopped there.
+        stringRedis.opsForList().move("jobs:queue:bulk", Direction.RIGHT,
+                "jobs:processing:1@dead-host", Direction.LEFT);
+        stringRedis.opsForZSet().add("jobs:consumers", "1@dead-host", System.currentTimeMillis() - 60_000);
+
+        assertThat(jobStore.reapExpiredLeases(100)).isEqualTo(1);
+
+        assertThat(stringRedis.opsForList().size("jobs:processing:1@dead-host")).isZero();
+        assertThat(stringRedis.opsForZSet().score("jobs:consumers", "1@dead-host")).isNull();
+        RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
+        assertThat(req.jobId()).isEqualTo("job-1");
+        assertThat(req.lane()).isEqualTo(JobLane.BULK);
+    }
+
+    @Test
+    void reapExpiredLeases_leavesProcessingListOfLiveWorker() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.enqueue("job-1", "https://1.1.1.1/img.png");
+        stringRedis.opsForList().move("jobs:queue", Direction.RIGHT, "jobs:processing:1@busy-host", Direction.LEFT);
+        stringRedis.opsForZSet().add("jobs:consumers", "1@busy-host", System.currentTimeMillis());
+
+        assertThat(jobStore.reapExpiredLeases(100)).isZero();
+        assertThat(stringRedis.opsForList().size("jobs:processing:1@busy-host")).isEqualTo(1);
+    }
+
+    @Test
+    void ack_afterLeaseWasReapedAndReclaimed_leavesNewOwnersClaim() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 0L);
+        jobStore.enqueue("job-1", "https://1.1.1.1/img.png");
+        jobStore.dequeue(Duration.ofMillis(500));
+        assertThat(jobStore.reapExpiredLeases(100)).isEqualTo(1);
+
+        RedisListJobQueue otherQueue = new RedisListJobQueue(stringRedis, codec);
+        ReflectionTestUtils.setField(otherQueue, "reliable", true);
+        ReflectionTestUtils.setField(otherQueue, "consumerId", "2@other-host");
+        RedisJobStore other = new RedisJobStore(stringRedis, codec, otherQueue);
+        assertThat(other.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+
+        // The stalled first worker finishes late.
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 30L);
+        jobStore.ack("job-1");
+        jobStore.renewLeases(List.of("job-1"));
+
+        assertThat(stringRedis.opsForHash().get("jobs:lease-owners", "job-1")).isEqualTo("jobs:processing:2@other-host");
+        assertThat(stringRedis.opsForList().size("jobs:processing:2@other-host")).isEqualTo(1);
+        other.ack("job-1");
+        assertThat(stringRedis.opsForZSet().score("jobs:leases", "job-1")).isNull();
+        assertThat(stringRedis.opsForList().size("jobs:processing:2@other-host")).isZero();
+    }
+
+    // --- stream backend ---
+
+    // The context runs the default list backend, so these tests wrap a stream queue in a
+    // store of their own.
+    private RedisStreamJobQueue streamQueue(long leaseSeconds) {
+        RedisStreamJobQueue queue = new RedisStreamJobQueue(stringRedis, codec);
+        ReflectionTestUtils.setField(queue, "leaseSeconds", leaseSeconds);
+        queue.createGroup();
+        return queue;
+    }
+
+    @Test
+    void streamDequeueBatch_claimsInFifoOrderAndTracksPending() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        store.enqueue("job-1", "https://1.1.1.1/a.png");
+        store.enqueue("job-2", "https://1.1.1.1/b.png");
+        store.enqueue("job-3", "https://1.1.1.1/c.png");
+
+        var batch = store.dequeueBatch(2, Duration.ofMillis(500));
+
+        assertThat(batch).extracting(RedisJobStore.JobRequest::jobId).containsExactly("job-1", "job-2");
+        var stats = store.queueStats();
+        assertThat(stats.waiting()).isEqualTo(1);
+        assertThat(stats.inFlight()).isEqualTo(2);
+        assertThat(stats.inFlightByConsumer().values()).containsExactly(2L);
+    }
+
+    @Test
+    void streamAck_removesEntryFromStream() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        store.enqueue("job-1", "https://1.1.1.1/a.png");
+        store.dequeue(Duration.ofMillis(500));
+
+        store.ack("job-1");
+
+        assertThat(stringRedis.opsForStream().size(RedisStreamJobQueue.STREAM_KEY)).isZero();
+        assertThat(store.queueStats().inFlight()).isZero();
+        assertThat(store.reapExpiredLeases(100)).isZero();
+    }
+
+    @Test
+    void streamReapExpiredLeases_requeuesJobFromDeadWorker() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(0));
+        store.enqueue("job-1", "https://1.1.1.1/img.png");
+        store.dequeue(Duration.ofMillis(500));
+
+        assertThat(store.reapExpiredLeases(100)).isEqualTo(1);
+
+        RedisJobStore.JobRequest req = store.dequeue(Duration.ofMillis(500));
+        assertThat(req).isNotNull();
+        assertThat(req.jobId()).isEqualTo("job-1");
+        assertThat(store.queueStats().inFlight()).isEqualTo(1);
+    }
+
+    @Test
+    void streamRenewLeases_keepsLiveJobFromBeingReaped() throws InterruptedException {
+        RedisStreamJobQueue queue = streamQueue(1);
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, queue);
+        store.enqueue("job-1", "https://1.1.1.1/img.png");
+        store.dequeue(Duration.ofMillis(500));
+
+        Thread.sleep(700);
+        store.renewLeases(List.of("job-1"));
+        Thread.sleep(700);
+
+        assertThat(store.reapExpiredLeases(100)).isZero();
+    }
+
+    @Test
+    void streamRelease_requeuesClaimedJobs() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        store.enqueue("job-1", "https://1.1.1.1/a.png");
+        var claimed = store.dequeueBatch(1, Duration.ofMillis(500));
+
+        store.release(claimed);
+
+        assertThat(store.queueStats().inFlight()).isZero();
+        assertThat(store.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+    }
+
+    @Test
+    void streamPromoteRetries_addsDueJobsToStream() {
+        givenRunningJobs("job-1");
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        store.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
+
+        assertThat(store.promoteRetries(100).promoted()).isEqualTo(1);
+
+        RedisJobStore.JobRequest req = store.dequeue(Duration.ofMillis(500));
+        assertThat(req.jobId()).isEqualTo("job-1");
+        assertThat(req.attempt()).isEqualTo(2);
+    }
+
+    @Test
+    void streamCreateJob_writesRecordAndAddsToStream() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        ReflectionTestUtils.setField(store, "ttlMinutes", 60L);
+
+        store.createJob("job-1", "https://1.1.1.1/img.png");
+
+        assertThat(store.getStatus("job-1")).isEqualTo(JobStatus.PENDING);
+        assertThat(store.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+    }
+
+    @Test
+    void streamDequeue_recreatesGroupAfterFlush() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        flushRedis();
+
+        assertThat(store.dequeue(Duration.ofMillis(100))).isNull();
+        store.enqueue("job-1", "https://1.1.1.1/img.png");
+        assertThat(store.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-1");
+    }
+
+    // --- lanes ---
+
+    @Test
+    void createJob_pushesToItsLane() {
+        jobStore.createJob("job-1", "https://1.1.1.1/img.png", JobLane.BULK);
+
+        assertThat(stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY)).isZero();
+        assertThat(stringRedis.opsForList().size("jobs:queue:bulk")).isEqualTo(1);
+    }
+
+    @Test
+    void dequeueBatch_drainsInteractiveBeforeBulk() {
+        jobStore.enqueue("bulk-1", "https://1.1.1.1/a.png", JobLane.BULK);
+        jobStore.enqueue("int-1", "https://1.1.1.1/b.png", JobLane.INTERACTIVE);
+        jobStore.enqueue("int-2", "https://1.1.1.1/c.png", JobLane.INTERACTIVE);
+
+        var batch = jobStore.dequeueBatch(10, Duration.ofMillis(500));
+
+        assertThat(batch).extracting(RedisJobStore.JobRequest::jobId)
+                .containsExactly("int-1", "int-2", "bulk-1");
+        assertThat(batch).extracting(RedisJobStore.JobRequest::lane)
+                .containsExactly(JobLane.INTERACTIVE, JobLane.INTERACTIVE, JobLane.BULK);
+    }
+
+    @Test
+    void dequeueBatch_followsGivenLaneOrder() {
+        jobStore.enqueue("int-1", "https://1.1.1.1/a.png", JobLane.INTERACTIVE);
+        jobStore.enqueue("bulk-1", "https://1.1.1.1/b.png", JobLane.BULK);
+
+        var batch = jobStore.dequeueBatch(1, Duration.ofMillis(500),
+                List.of(JobLane.BULK, JobLane.INTERACTIVE, JobLane.RETRY));
+
+        assertThat(batch).extracting(RedisJobStore.JobRequest::jobId).containsExactly("bulk-1");
+    }
+
+    @Test
+    void dequeue_blocksOnEveryLane() {
+        jobStore.enqueue("bulk-1", "https://1.1.1.1/a.png", JobLane.BULK);
+
+        RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
+
+        assertThat(req.jobId()).isEqualTo("bulk-1");
+        assertThat(req.enqueuedAt()).isPositive();
+    }
+
+    @Test
+    void promoteRetries_heavyRetry_goesBackToHeavyLane() {
+        givenRunningJobs("job-1", "job-2");
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/anim.gif", 2, -10L, 0L, JobLane.HEAVY);
+        jobStore.scheduleRetry("job-2", "https://1.1.1.1/img.png", 2, -5L, 0L, JobLane.INTERACTIVE);
+
+        assertThat(jobStore.promoteRetries(100).promoted()).isEqualTo(2);
+
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500), List.of(JobLane.HEAVY)))
+                .extracting(RedisJobStore.JobRequest::jobId, RedisJobStore.JobRequest::lane)
+                .containsExactly(tuple("job-1", JobLane.HEAVY));
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-2");
+    }
+
+    @Test
+    void promoteRetries_limitSpansBothRetrySets() {
+        givenRunningJobs("job-1", "job-2");
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
+        jobStore.scheduleRetry("job-2", "https://1.1.1.1/anim.gif", 2, 3600L, 0L, JobLane.HEAVY);
+
+        var result = jobStore.promoteRetries(1);
+
+        assertThat(result.promoted()).isEqualTo(1);
+        assertThat(result.nextDueAt()).isAfter(Instant.now().plusSeconds(3500));
+    }
+
+    @Test
+    void cancel_heavyJobWaitingToRetry_removesItFromHeavyRetrySet() {
+        jobStore.createJob("job-1", "https://1.1.1.1/anim.gif");
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/anim.gif", 2, -10L, 0L, JobLane.HEAVY);
+
+        assertThat(jobStore.cancel("job-1")).isEqualTo(JobStatus.CANCELLED);
+
+        assertThat(stringRedis.opsForZSet().zCard("jobs:retry:heavy")).isZero();
+        assertThat(jobStore.promoteRetries(100).promoted()).isZero();
+    }
+
+    @Test
+    void promoteRetries_pushesToRetryLane() {
+        givenRunningJobs("job-1");
+        jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
+
+        jobStore.promoteRetries(100);
+
+        assertThat(stringRedis.opsForList().size("jobs:queue:retry")).isEqualTo(1);
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).lane()).isEqualTo(JobLane.RETRY);
+    }
+
+    @Test
+    void queueStats_reportsWaitingPerLane() {
+        jobStore.enqueue("int-1", "https://1.1.1.1/a.png", JobLane.INTERACTIVE);
+        jobStore.enqueue("bulk-1", "https://1.1.1.1/b.png", JobLane.BULK);
+        jobStore.enqueue("bulk-2", "https://1.1.1.1/c.png", JobLane.BULK);
+
+        var stats = jobStore.queueStats();
+
+        assertThat(stats.waiting()).isEqualTo(3);
+        assertThat(stats.waitingByLane())
+                .containsEntry("interactive", 1L)
+                .containsEntry("retry", 0L)
+                .containsEntry("bulk", 2L);
+    }
+
+    @Test
+    void reapExpiredLeases_returnsJobToItsLane() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        ReflectionTestUtils.setField(jobQueue, "leaseSeconds", 0L);
+        jobStore.enqueue("bulk-1", "https://1.1.1.1/img.png", JobLane.BULK);
+        jobStore.dequeue(Duration.ofMillis(500));
+
+        assertThat(jobStore.reapExpiredLeases(100)).isEqualTo(1);
+
+        assertThat(stringRedis.opsForList().size("jobs:queue:bulk")).isEqualTo(1);
+        assertThat(stringRedis.opsForHash().size("jobs:lease-lanes")).isZero();
+    }
+
+    @Test
+    void streamDequeueBatch_drainsInteractiveBeforeBulk() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        store.enqueue("bulk-1", "https://1.1.1.1/a.png", JobLane.BULK);
+        store.enqueue("int-1", "https://1.1.1.1/b.png", JobLane.INTERACTIVE);
+
+        var batch = store.dequeueBatch(10, Duration.ofMillis(500));
+
+        assertThat(batch).extracting(RedisJobStore.JobRequest::jobId).containsExactly("int-1", "bulk-1");
+        assertThat(store.queueStats().inFlight()).isEqualTo(2);
+    }
+
+    @Test
+    void streamDequeue_blocksOnEveryLane() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        store.enqueue("bulk-1", "https://1.1.1.1/a.png", JobLane.BULK);
+
+        assertThat(store.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("bulk-1");
+    }
+
+    // --- fair share ---
+
+    private static List<RedisJobStore.JobRequest> jobs(String prefix, int count) {
+        List<RedisJobStore.JobRequest> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            jobs.add(new RedisJobStore.JobRequest(prefix + i, "https://1.1.1.1/" + i + ".png", 1));
+        }
+        return jobs;
+    }
+
+    @Test
+    void fairShare_holdsTenantJobsInSubQueuesUntilDispatched() {
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+
+        jobStore.createJobs(jobs("big-", 3), "10.0.0.1");
+
+        assertThat(jobStore.getStatus("big-0")).isEqualTo(JobStatus.PENDING);
+        assertThat(stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY)).isZero();
+        assertThat(jobStore.activeTenants(JobLane.INTERACTIVE)).isEqualTo(1);
+    }
+
+    @Test
+    void dispatchStaged_interleavesTenantsByQuantum() {
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+        jobStore.createJobs(jobs("big-", 20), "10.0.0.1");
+        jobStore.createJobs(jobs("small-", 1), "10.0.0.2");
+
+        var result = jobStore.dispatchStaged(4, 8);
+
+        assertThat(result.dispatched()).isEqualTo(8);
+        assertThat(result.activeTenants()).isEqualTo(1);
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500)))
+                .extracting(RedisJobStore.JobRequest::jobId)
+                .containsExactly("big-0", "big-1", "big-2", "big-3", "small-0", "big-4", "big-5", "big-6");
+    }
+
+    @Test
+    void dispatchStaged_newTenantGoesToFrontOfRing() {
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+        jobStore.createJobs(jobs("big-", 20), "10.0.0.1");
+        jobStore.dispatchStaged(4, 4);
+        jobStore.dequeueBatch(10, Duration.ofMillis(500));
+
+        jobStore.createJobs(jobs("late-", 1), "10.0.0.9");
+        jobStore.dispatchStaged(4, 4);
+
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("late-0");
+    }
+
+    @Test
+    void dispatchStaged_respectsTargetDepth() {
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+        jobStore.createJobs(jobs("big-", 20), "10.0.0.1");
+
+        assertThat(jobStore.dispatchStaged(4, 6).dispatched()).isEqualTo(6);
+        assertThat(jobStore.dispatchStaged(4, 6).dispatched()).isZero();
+        assertThat(stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY)).isEqualTo(6);
+    }
+
+    @Test
+    void dispatchStaged_drainedTenantLeavesRing() {
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+        jobStore.createJobs(jobs("job-", 2), "10.0.0.1");
+
+        var result = jobStore.dispatchStaged(4, 32);
+
+        assertThat(result.dispatched()).isEqualTo(2);
+        assertThat(result.activeTenants()).isZero();
+        assertThat(stringRedis.hasKey("jobs:staged:interactive:deficit")).isFalse();
+    }
+
+    @Test
+    void fairShare_disabledOrRetryLane_pushesStraightToLane() {
+        jobStore.createJobs(jobs("off-", 1), "10.0.0.1");
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+        jobStore.createJobs(List.of(new RedisJobStore.JobRequest("retry-0", "https://1.1.1.1/r.png", 1,
+                JobLane.RETRY)), "10.0.0.1");
+
+        assertThat(stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY)).isEqualTo(1);
+        assertThat(stringRedis.opsForList().size("jobs:queue:retry")).isEqualTo(1);
+        assertThat(jobStore.activeTenants(JobLane.INTERACTIVE)).isZero();
+    }
+
+    @Test
+    void streamDispatchStaged_addsToLaneStream() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        ReflectionTestUtils.setField(store, "ttlMinutes", 60L);
+        ReflectionTestUtils.setField(store, "fairShare", true);
+        store.createJobs(jobs("job-", 2), "10.0.0.1");
+
+        assertThat(store.dispatchStaged(4, 32).dispatched()).isEqualTo(2);
+
+        assertThat(store.dequeueBatch(10, Duration.ofMillis(500)))
+                .extracting(RedisJobStore.JobRequest::jobId).containsExactly("job-0", "job-1");
+    }
+
+    // --- heavy lane ---
+
+    @Test
+    void moveToLane_requeuesOnHeavyLaneAsPending() {
+        jobStore.createJob("job-1", "https://1.1.1.1/anim.gif");
+        RedisJobStore.JobRequest claimed = jobStore.dequeue(Duration.ofMillis(500));
+        jobStore.markStarted("job-1", 1);
+
+        assertThat(jobStore.moveToLane(claimed, JobLane.HEAVY)).isEqualTo(JobStatus.PENDING);
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.PENDING);
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(100), JobLane.general())).isEmpty();
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500), List.of(JobLane.HEAVY)))
+                .extracting(RedisJobStore.JobRequest::jobId, RedisJobStore.JobRequest::lane)
+                .containsExactly(tuple("job-1", JobLane.HEAVY));
+    }
+
+    @Test
+    void moveToLane_reliable_heavyClaimKeepsItsLease() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.createJob("job-1", "https://1.1.1.1/anim.gif");
+        RedisJobStore.JobRequest claimed = jobStore.dequeue(Duration.ofMillis(500));
+
+        jobStore.moveToLane(claimed, JobLane.HEAVY);
+        jobStore.dequeueBatch(1, Duration.ofMillis(500), List.of(JobLane.HEAVY));
+
+        assertThat(stringRedis.opsForZSet().score("jobs:leases", "job-1")).isNotNull();
+        assertThat(jobStore.queueStats().inFlight()).isEqualTo(1);
+    }
+
+    @Test
+    void moveToLane_stream_acksClaimAndAddsToHeavyStream() {
+        RedisJobStore store = new RedisJobStore(stringRedis, codec, streamQueue(30));
+        ReflectionTestUtils.setField(store, "ttlMinutes", 60L);
+        store.createJob("job-1", "https://1.1.1.1/anim.gif");
+        RedisJobStore.JobRequest claimed = store.dequeue(Duration.ofMillis(500));
+
+        assertThat(store.moveToLane(claimed, JobLane.HEAVY)).isEqualTo(JobStatus.PENDING);
+
+        assertThat(stringRedis.opsForStream().size(RedisStreamJobQueue.STREAM_KEY)).isZero();
+        assertThat(store.queueStats().inFlight()).isZero();
+        assertThat(store.dequeueBatch(10, Duration.ofMillis(500), List.of(JobLane.HEAVY)))
+                .extracting(RedisJobStore.JobRequest::jobId).containsExactly("job-1");
+    }
+
+    @Test
+    void moveToLane_cancelledRecord_leavesClaimAndRecordAlone() {
+        ReflectionTestUtils.setField(jobQueue, "reliable", true);
+        jobStore.createJob("job-1", "https://1.1.1.1/anim.gif");
+        RedisJobStore.JobRequest claimed = jobStore.dequeue(Duration.ofMillis(500));
+        jobStore.cancel("job-1");
+
+        assertThat(jobStore.moveToLane(claimed, JobLane.HEAVY)).isEqualTo(JobStatus.CANCELLED);
+
+        assertThat(jobStore.getStatus("job-1")).isEqualTo(JobStatus.CANCELLED);
+        assertThat(stringRedis.opsForZSet().score("jobs:leases", "job-1")).isNotNull();
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(100), List.of(JobLane.HEAVY))).isEmpty();
+    }
+
+    @Test
+    void moveToLane_expiredRecord_isNotRecreatedOrQueued() {
+        jobStore.createJob("job-1", "https://1.1.1.1/anim.gif");
+        RedisJobStore.JobRequest claimed = jobStore.dequeue(Duration.ofMillis(500));
+        stringRedis.delete("job:job-1");
+
+        assertThat(jobStore.moveToLane(claimed, JobLane.HEAVY)).isNull();
+
+        assertThat(stringRedis.hasKey("job:job-1")).isFalse();
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(100), List.of(JobLane.HEAVY))).isEmpty();
+    }
+
+    // --- shortest-job-first ---
+
+    private static RedisJobStore.Submission costed(String jobId, long enqueuedAt, int cost) {
+        return new RedisJobStore.Submission(new RedisJobStore.JobRequest(jobId, "https://1.1.1.1/" + jobId + ".png",
+                1, JobLane.INTERACTIVE, enqueuedAt), "10.0.0.1", cost);
+    }
+
+    @Test
+    void sjf_cheapJobOvertakesExpensiveJobSubmittedJustBefore() {
+        ReflectionTestUtils.setField(jobStore, "scheduling", "sjf");
+        jobStore.submitJobs(List.of(costed("gif", 1_000, 50)));
+        jobStore.submitJobs(List.of(costed("still", 2_000, 1)));
+
+        assertThat(jobStore.dispatchStaged(4, 32).dispatched()).isEqualTo(2);
+
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500)))
+                .extracting(RedisJobStore.JobRequest::jobId).containsExactly("still", "gif");
+    }
+
+    @Test
+    void sjf_penaltyIsCappedSoExpensiveJobsStillAge() {
+        ReflectionTestUtils.setField(jobStore, "scheduling", "sjf");
+        // max-penalty-seconds defaults to 60: after a minute nothing can overtake the big job.
+        jobStore.submitJobs(List.of(costed("huge", 0, 1_000_000)));
+        jobStore.submitJobs(List.of(costed("late", 60_001, 1)));
+
+        jobStore.dispatchStaged(4, 32);
+
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500)))
+                .extracting(RedisJobStore.JobRequest::jobId).containsExactly("huge", "late");
+    }
+
+    @Test
+    void sjf_withoutFairShare_stagesUnderSharedTenant() {
+        ReflectionTestUtils.setField(jobStore, "scheduling", "sjf");
+        jobStore.submitJobs(List.of(costed("job-0", 1_000, 2)));
+
+        assertThat(stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY)).isZero();
+        assertThat(jobStore.activeTenants(JobLane.INTERACTIVE)).isZero();
+        assertThat(jobStore.getJob("job-0").cost()).isEqualTo(2);
+    }
+
+    @Test
+    void sjf_withFairShare_ordersByCostWithinEachTenant() {
+        ReflectionTestUtils.setField(jobStore, "scheduling", "sjf");
+        ReflectionTestUtils.setField(jobStore, "fairShare", true);
+        jobStore.submitJobs(List.of(costed("a-big", 1_000, 50), costed("a-small", 1_001, 1),
+                new RedisJobStore.Submission(new RedisJobStore.JobRequest("b-0", "https://8.8.8.8/b.png", 1,
+                        JobLane.INTERACTIVE, 1_002), "10.0.0.2", 1)));
+
+        var result = jobStore.dispatchStaged(1, 32);
+
+        assertThat(result.dispatched()).isEqualTo(3);
+        assertThat(jobStore.dequeueBatch(10, Duration.ofMillis(500)))
+                .extracting(RedisJobStore.JobRequest::jobId).containsExactly("a-small", "b-0", "a-big");
+    }
+
     // --- retry set ---
 
+    // A record as the worker leaves it while running the job, without queueing it the way
+    // createJob would; scheduleRetry only reschedules jobs whose record still exists.
+    private void givenRunningJobs(String... jobIds) {
+        for (String jobId : jobIds) {
+            stringRedis.opsForHash().put("job:" + jobId, "status", JobStatus.PROCESSING.name());
+        }
+    }
+
     @Test
     void scheduleRetry_doesNotAppearInMainQueueImmediately() {
+        givenRunningJobs("job-1");
         jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 3600L);
 
         Long queueSize = stringRedis.opsForList().size(RedisJobStore.QUEUE_KEY);
@@ -95,11 +1214,13 @@ class RedisJobStoreIntegrationTest {
 
     @Test
     void promoteRetries_movesOverdueJobsToQueue() {
+        givenRunningJobs("job-1");
         // negative delay → score is in the past → immediately due
         jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, -10L);
 
-        int promoted = jobStore.promoteRetries();
-        assertThat(promoted).isEqualTo(1);
+        var result = jobStore.promoteRetries(100);
+        assertThat(result.promoted()).isEqualTo(1);
+        assertThat(result.nextDueAt()).isNull();
 
         RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
         assertThat(req).isNotNull();
@@ -109,24 +1230,72 @@ class RedisJobStoreIntegrationTest {
 
     @Test
     void promoteRetries_doesNotMoveFutureJobs() {
+        givenRunningJobs("job-1");
         jobStore.scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 3600L);
 
-        int promoted = jobStore.promoteRetries();
-        assertThat(promoted).isEqualTo(0);
+        var result = jobStore.promoteRetries(100);
+        assertThat(result.promoted()).isEqualTo(0);
+        assertThat(result.nextDueAt()).isAfter(Instant.now().plusSeconds(3500));
     }
 
     @Test
     void promoteRetries_onlyMovesOverdueSubset() {
+        givenRunningJobs("job-due", "job-future");
         jobStore.scheduleRetry("job-due",    "https://1.1.1.1/img.png", 2, -10L);  // past
         jobStore.scheduleRetry("job-future", "https://2.2.2.2/img.png", 2, 3600L); // future
 
-        int promoted = jobStore.promoteRetries();
-        assertThat(promoted).isEqualTo(1);
+        var result = jobStore.promoteRetries(100);
+        assertThat(result.promoted()).isEqualTo(1);
+        assertThat(result.nextDueAt()).isNotNull();
 
         RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofMillis(500));
         assertThat(req.jobId()).isEqualTo("job-due");
     }
 
+    @Test
+    void promoteRetries_respectsLimitAndKeepsEarliestFirst() {
+        givenRunningJobs("job-a", "job-b", "job-c");
+        jobStore.scheduleRetry("job-a", "https://1.1.1.1/a.png", 2, -30L);
+        jobStore.scheduleRetry("job-b", "https://1.1.1.1/b.png", 2, -20L);
+        jobStore.scheduleRetry("job-c", "https://1.1.1.1/c.png", 2, -10L);
+
+        assertThat(jobStore.promoteRetries(2).promoted()).isEqualTo(2);
+        assertThat(jobStore.promoteRetries(2).promoted()).isEqualTo(1);
+
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-a");
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-b");
+        assertThat(jobStore.dequeue(Duration.ofMillis(500)).jobId()).isEqualTo("job-c");
+    }
+
+    // --- leadership ---
+
+    @Test
+    void tryAcquireLeadership_onlyOneCandidateWins() {
+        assertThat(jobStore.tryAcquireLeadership("test-role", "a", Duration.ofSeconds(10))).isTrue();
+        assertThat(jobStore.tryAcquireLeadership("test-role", "b", Duration.ofSeconds(10))).isFalse();
+        // the holder renews its own lease
+        assertThat(jobStore.tryAcquireLeadership("test-role", "a", Duration.ofSeconds(10))).isTrue();
+    }
+
+    @Test
+    void tryAcquireLeadership_expiredLeaseCanBeTakenOver() throws InterruptedException {
+        assertThat(jobStore.tryAcquireLeadership("test-role", "a", Duration.ofMillis(100))).isTrue();
+        Thread.sleep(250);
+        assertThat(jobStore.tryAcquireLeadership("test-role", "b", Duration.ofSeconds(10))).isTrue();
+        assertThat(jobStore.tryAcquireLeadership("test-role", "a", Duration.ofSeconds(10))).isFalse();
+    }
+
+    @Test
+    void resignLeadership_onlyReleasesOwnLease() {
+        jobStore.tryAcquireLeadership("test-role", "a", Duration.ofSeconds(10));
+
+        jobStore.resignLeadership("test-role", "b");
+        assertThat(jobStore.tryAcquireLeadership("test-role", "b", Duration.ofSeconds(10))).isFalse();
+
+        jobStore.resignLeadership("test-role", "a");
+        assertThat(jobStore.tryAcquireLeadership("test-role", "b", Duration.ofSeconds(10))).isTrue();
+    }
+
     // --- DLQ ---
 
     @Test
@@ -168,6 +1337,17 @@ class RedisJobStoreIntegrationTest {
         assertThat(req.attempt()).isEqualTo(1);
     }
 
+    @Test
+    void listDlq_readsLegacyJsonEntries() {
+        stringRedis.opsForHash().put("jobs:dlq", "job-1",
+                "{\"jobId\":\"job-1\",\"url\":\"https://1.1.1.1/img.png\",\"attempts\":3,"
+                        + "\"failedAt\":1700000000,\"error\":\"err\"}");
+        jobStore.pushToDlq("job-2", "https://1.1.1.1/img.png", 3, "err");
+
+        assertThat(jobStore.listDlq()).extracting(RedisJobStore.DlqEntry::jobId)
+                .containsExactly("job-2", "job-1");
+    }
+
     @Test
     void requeueFromDlq_unknownJob_returnsFalse() {
         assertThat(jobStore.requeueFromDlq("nonexistent")).isFalse();
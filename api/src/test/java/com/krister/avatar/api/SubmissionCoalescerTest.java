@@ -0,0 +1,125 @@
+package com.krister.avatar.api;
+
+import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.RedisJobStore.Submission;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class SubmissionCoalescerTest {
+
+    @Mock RedisJobStore jobStore;
+
+    SubmissionCoalescer coalescer;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (coalescer != null) coalescer.stop();
+    }
+
+    private SubmissionCoalescer start(long maxWaitMicros, int maxBatch) {
+        coalescer = new SubmissionCoalescer(jobStore, new SimpleMeterRegistry(), true, maxWaitMicros, maxBatch);
+        coalescer.start();
+        return coalescer;
+    }
+
+    @Test
+    void disabled_writesStraightThrough() {
+        coalescer = new SubmissionCoalescer(jobStore, new SimpleMeterRegistry(), false, 200, 64);
+        coalescer.start();
+
+        coalescer.createJob("job-1", "https://1.1.1.1/img.png", "203.0.113.7", 3, 0);
+
+        verify(jobStore).submitJobs(argThat(jobs -> jobs.size() == 1
+                && jobs.get(0).job().jobId().equals("job-1")
+                && jobs.get(0).tenant().equals("203.0.113.7")
+                && jobs.get(0).cost() == 3));
+    }
+
+    @Test
+    void afterStop_writesStraightThrough() throws Exception {
+        start(200, 64).stop();
+
+        CompletableFuture.runAsync(() -> coalescer.createJob("job-1", "u", "t", 1, 0)).get(5, TimeUnit.SECONDS);
+
+        verify(jobStore).submitJobs(argThat(jobs -> jobs.size() == 1 && jobs.get(0).job().jobId().equals("job-1")));
+    }
+
+    @Test
+    void concurrentSubmissions_areWrittenTogether() throws Exception {
+        // Hold the first flush open so the remaining submissions pile up behind it.
+        CountDownLatch firstFlush = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<Submission>> flushes = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(inv -> {
+            flushes.add(List.copyOf(inv.<List<Submission>>getArgument(0)));
+            firstFlush.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(jobStore).submitJobs(anyList());
+        start(0, 64);
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> coalescer.createJob("job-0", "u0", "t0", 1, 0));
+        assertThat(firstFlush.await(5, TimeUnit.SECONDS)).isTrue();
+        List<CompletableFuture<Void>> rest = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            String id = "job-" + i;
+            rest.add(CompletableFuture.runAsync(() -> coalescer.createJob(id, "u", "t", 1, 0), Thread::startVirtualThread));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> f : rest) f.get(5, TimeUnit.SECONDS);
+        assertThat(flushes).hasSize(2);
+        assertThat(flushes.get(1)).extracting(submission -> submission.job().jobId())
+                .containsExactlyInAnyOrder("job-1", "job-2", "job-3", "job-4", "job-5");
+    }
+
+    @Test
+    void maxBatch_capsFlushSize() throws Exception {
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(inv -> {
+            sizes.add(inv.<List<Submission>>getArgument(0).size());
+            return null;
+        }).when(jobStore).submitJobs(anyList());
+        // A long wait window, so only the batch cap can end a batch early.
+        start(TimeUnit.SECONDS.toMicros(1), 2);
+
+        List<CompletableFuture<Void>> submissions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String id = "job-" + i;
+            submissions.add(CompletableFuture.runAsync(() -> coalescer.createJob(id, "u", "t", 1, 0), Thread::startVirtualThread));
+        }
+        for (CompletableFuture<Void> f : submissions) f.get(10, TimeUnit.SECONDS);
+
+        assertThat(sizes).allMatch(size -> size <= 2);
+        assertThat(sizes.stream().mapToInt(Integer::intValue).sum()).isEqualTo(4);
+    }
+
+    @Test
+    void flushFailure_isRethrownToEveryCaller() {
+        doThrow(new IllegalStateException("redis down")).when(jobStore).submitJobs(anyList());
+        start(200, 64);
+
+        assertThatThrownBy(() -> coalescer.createJob("job-1", "https://1.1.1.1/img.png", "t", 1, 0))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("redis down");
+    }
+}
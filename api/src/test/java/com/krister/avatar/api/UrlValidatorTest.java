@@ -2,6 +2,9 @@ package com.krister.avatar.api;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
 import static org.assertj.core.api.Assertions.assertThatNoException;
 
@@ -97,4 +100,13 @@ class UrlValidatorTest {
         assertThatNoException()
                 .isThrownBy(() -> UrlValidator.validate("https://1.1.1.1/image.png"));
     }
+
+    // --- batch ---
+
+    @Test
+    void validateAll_returnsErrorPerUrlInOrder() {
+        assertThat(UrlValidator.validateAll(List.of(
+                "https://1.1.1.1/a.png", "http://127.0.0.1/b.png", "ftp://1.1.1.1/c.png")))
+                .containsExactly(null, "URL is not allowed", "URL must use HTTP or HTTPS");
+    }
 }
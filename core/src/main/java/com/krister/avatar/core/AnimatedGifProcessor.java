@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 
 // Handles animated GIF processing: reads all frames, crops them consistently,
 // resizes each to 128×128, and re-encodes them as an animated GIF.
@@ -57,33 +59,98 @@ public class AnimatedGifProcessor {
     }
 
     public static byte[] process(byte[] inputData) throws IOException {
-        List<GifFrame> frames = readCompositedFrames(inputData);
+        return process(inputData, () -> false);
+    }
+
+    // cancelled is polled before each frame is decoded and before each is resized; once it
+    // returns true, processing stops with a CancellationException. A long GIF is where a
+    // cancelled job would otherwise burn the most CPU, and a frame takes milliseconds.
+    public static byte[] process(byte[] inputData, BooleanSupplier cancelled) throws IOException {
+        List<GifFrame> frames = readCompositedFrames(inputData, 0, Integer.MAX_VALUE, cancelled);
         if (frames.isEmpty()) throw new IOException("GIF contains no readable frames");
 
         // Detect crop region from the first composited frame — same rect applied to all frames
         // so the subject doesn't shift between frames.
         Rectangle cropRect = SmartCropper.detectCropRect(frames.get(0).image());
 
+        return writeAnimatedGif(cropAndResize(frames, cropRect, cancelled));
+    }
+
+    // --- Splitting a long GIF across workers ---
+    //
+    // A GIF with hundreds of frames can be processed as several frame ranges, each on whichever
+    // worker picks it up, and then stitched back together:
+    //
+    //   cropRect     → the crop every range must share, detected once from the first frame
+    //   processRange → one range, cropped and resized, as a GIF of just those frames
+    //   stitch       → the ranges' frames, in order, as the final looping animation
+    //
+    // A range still has to composite every frame before it — a frame can be a partial patch
+    // over the ones before — but only the frames in its range are copied, cropped and resized,
+    // and that is where most of the time goes.
+
+    public static Rectangle cropRect(byte[] inputData) throws IOException {
+        List<GifFrame> first = readCompositedFrames(inputData, 0, 1, () -> false);
+        if (first.isEmpty()) throw new IOException("GIF contains no readable frames");
+        return SmartCropper.detectCropRect(first.get(0).image());
+    }
+
+    // Frames [fromFrame, toFrame); toFrame past the last frame stops at the last frame.
+    public static byte[] processRange(byte[] inputData, int fromFrame, int toFrame, Rectangle cropRect,
+                                      BooleanSupplier cancelled) throws IOException {
+        List<GifFrame> frames = readCompositedFrames(inputData, fromFrame, toFrame, cancelled);
+        if (frames.isEmpty()) throw new IOException("GIF has no frames in range " + fromFrame + "-" + toFrame);
+        return writeAnimatedGif(cropAndResize(frames, cropRect, cancelled));
+    }
+
+    // The parts are outputs of processRange: already 128×128, with full (not partial) frames,
+    // so their frames are copied across as they are, keeping their delays.
+    public static byte[] stitch(List<byte[]> parts) throws IOException {
+        List<GifFrame> frames = new ArrayList<>();
+        for (byte[] part : parts) {
+            try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(part))) {
+                ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+                reader.setInput(iis, false);
+                int numFrames = reader.getNumImages(true);
+                for (int i = 0; i < numFrames; i++) {
+                    IIOMetadataNode gce = findNode(reader.getImageMetadata(i)
+                            .getAsTree("javax_imageio_gif_image_1.0"), "GraphicControlExtension");
+                    int delayCs = gce == null ? 10 : parseAttr(gce, "delayTime");
+                    frames.add(new GifFrame(toArgb(reader.read(i)), Math.max(delayCs, 2)));
+                }
+                reader.dispose();
+            }
+        }
+        if (frames.isEmpty()) throw new IOException("GIF parts contain no frames");
+        return writeAnimatedGif(frames);
+    }
+
+    private static List<GifFrame> cropAndResize(List<GifFrame> frames, Rectangle cropRect,
+                                                BooleanSupplier cancelled) {
         List<GifFrame> processed = new ArrayList<>(frames.size());
         for (GifFrame frame : frames) {
+            checkCancelled(cancelled);
             BufferedImage cropped = frame.image().getSubimage(
                     cropRect.x, cropRect.y, cropRect.width, cropRect.height);
             BufferedImage resized = DiscordImageResizer.resizeOnly(cropped, TARGET_SIZE, TARGET_SIZE);
             processed.add(new GifFrame(resized, frame.delayCs()));
         }
-
-        return writeAnimatedGif(processed);
+        return processed;
     }
 
     // Reads each raw GIF frame and composites it onto a shared canvas, producing the
     // "full" image a viewer would see at each point in the animation. Without this step,
     // raw frames can be partial updates (e.g. only the region that changed), which would
     // crop incorrectly if treated as standalone images.
-    private static List<GifFrame> readCompositedFrames(byte[] data) throws IOException {
+    //
+    // Only frames in [fromFrame, toFrame) are kept; the ones before are composited onto the
+    // canvas and dropped, and reading stops at toFrame.
+    private static List<GifFrame> readCompositedFrames(byte[] data, int fromFrame, int toFrame,
+                                                       BooleanSupplier cancelled) throws IOException {
         try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
             ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
             reader.setInput(iis, false);
-            int numFrames = reader.getNumImages(true);
+            int numFrames = Math.min(reader.getNumImages(true), toFrame);
 
             // Canvas starts fully transparent; each frame is composited onto it.
             int canvasW = reader.getWidth(0);
@@ -91,9 +158,10 @@ public class AnimatedGifProcessor {
             BufferedImage canvas = new BufferedImage(canvasW, canvasH, BufferedImage.TYPE_INT_ARGB);
             clearRect(canvas, 0, 0, canvasW, canvasH);
 
-            List<GifFrame> frames = new ArrayList<>(numFrames);
+            List<GifFrame> frames = new ArrayList<>(Math.max(0, numFrames - fromFrame));
 
             for (int i = 0; i < numFrames; i++) {
+                checkCancelled(cancelled);
                 // IIOMetadata carries per-frame GIF metadata as an XML-like tree.
                 // We need: delay time (how long to show this frame) and disposal method.
                 IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
@@ -125,7 +193,7 @@ public class AnimatedGifProcessor {
                 gc.dispose();
 
                 // Snapshot the composited state — this is what the output frame should look like.
-                frames.add(new GifFrame(deepCopy(canvas), Math.max(delayCs, 2)));
+                if (i >= fromFrame) frames.add(new GifFrame(deepCopy(canvas), Math.max(delayCs, 2)));
 
                 // Apply the disposal method to prepare the canvas for the next frame.
                 // "restoreToBackgroundColor" clears the region this frame occupied.
@@ -142,6 +210,10 @@ public class AnimatedGifProcessor {
         }
     }
 
+    private static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) throw new CancellationException("GIF processing cancelled");
+    }
+
     private static byte[] writeAnimatedGif(List<GifFrame> frames) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
@@ -215,6 +287,12 @@ public class AnimatedGifProcessor {
         g.dispose();
     }
 
+    // Frames read back from a GIF are palette-indexed; the writer is set up for ARGB.
+    private static BufferedImage toArgb(BufferedImage src) {
+        if (src.getType() == BufferedImage.TYPE_INT_ARGB) return src;
+        return deepCopy(src);
+    }
+
     // Returns an independent copy of the image. Without this, all "snapshots" in the frames
     // list would share the same underlying pixel array — mutating the canvas for the next
     // frame would retroactively change every previous frame we already stored.
@@ -0,0 +1,141 @@
+package com.krister.avatar.core;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers the crop chosen for recently seen pictures, so a near-duplicate (the same picture
+// re-encoded at another JPEG quality, or rescaled) reuses it instead of running face
+// detection again. An exact content hash misses these: every re-encode changes the bytes.
+//
+// Pictures are matched by a 64-bit difference hash (dHash): the image is shrunk to 9×8
+// grayscale, and each bit records whether a pixel is brighter than its right-hand neighbour.
+// That survives compression, rescaling and small colour shifts, but not a different picture.
+// Two hashes match when at most maxDistance of their bits differ and the images have about
+// the same aspect ratio (a crop of the same picture hashes alike but needs its own crop).
+//
+// Crops are stored as fractions of the image size, so a match at another resolution maps
+// back to the same region. The most recent capacity pictures are kept in a ring and scanned
+// linearly: a few thousand XOR-and-popcounts take microseconds, against tens of milliseconds
+// for a DNN forward pass.
+public final class CropMemory {
+
+    // Aspect ratios (width / height) closer than this count as the same.
+    private static final double ASPECT_TOLERANCE = 0.02;
+
+    private final int capacity;
+    private final int maxDistance;
+    private final long[] hashes;
+    private final double[] aspects;
+    // x, y, width, height of each crop as fractions of the image's width and height.
+    private final double[][] crops;
+    private int size;
+    private int next;
+
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder detected = new LongAdder();
+    private final LongAdder detectionNanos = new LongAdder();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    // capacity 0 disables reuse; detections are still counted and timed.
+    public CropMemory(int capacity, int maxDistance) {
+        if (capacity < 0 || maxDistance < 0 || maxDistance > 64) {
+            throw new IllegalArgumentException("Invalid crop memory capacity=" + capacity + " maxDistance=" + maxDistance);
+        }
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.hashes = new long[capacity];
+        this.aspects = new double[capacity];
+        this.crops = new double[capacity][];
+    }
+
+    public static long dHash(BufferedImage img) {
+        BufferedImage small = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = small.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(img, 0, 0, 9, 8, null);
+        g.dispose();
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                int left = small.getRaster().getSample(x, y, 0);
+                int right = small.getRaster().getSample(x + 1, y, 0);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    // The remembered crop for a picture like this one, scaled to its width and height, or
+    // null if none is close enough.
+    public Rectangle lookup(long hash, int width, int height) {
+        if (capacity == 0) return null;
+        double aspect = (double) width / height;
+        double[] crop = null;
+        synchronized (this) {
+            int bestDistance = maxDistance + 1;
+            for (int i = 0; i < size; i++) {
+                int distance = Long.bitCount(hashes[i] ^ hash);
+                if (distance < bestDistance && Math.abs(aspects[i] - aspect) <= ASPECT_TOLERANCE) {
+                    bestDistance = distance;
+                    crop = crops[i];
+                }
+            }
+        }
+        if (crop == null) return null;
+        reused.increment();
+        // Credit the reuse with what a detection costs on average right now.
+        long count = detected.sum();
+        if (count > 0) savedNanos.addAndGet(detectionNanos.sum() / count);
+        return toPixels(crop, width, height);
+    }
+
+    public void remember(long hash, int width, int height, Rectangle crop, long detectionNanos) {
+        detected.increment();
+        this.detectionNanos.add(detectionNanos);
+        if (capacity == 0) return;
+        double[] fractions = {
+                (double) crop.x / width, (double) crop.y / height,
+                (double) crop.width / width, (double) crop.height / height};
+        synchronized (this) {
+            hashes[next] = hash;
+            aspects[next] = (double) width / height;
+            crops[next] = fractions;
+            next = (next + 1) % capacity;
+            size = Math.min(size + 1, capacity);
+        }
+    }
+
+    // Crops are square; rounding at another resolution can make the sides differ by a pixel,
+    // so the shorter side is used, and the square is kept inside the image.
+    private static Rectangle toPixels(double[] crop, int width, int height) {
+        int side = (int) Math.min(Math.round(crop[2] * width), Math.round(crop[3] * height));
+        side = Math.max(1, Math.min(side, Math.min(width, height)));
+        int x = Math.max(0, Math.min((int) Math.round(crop[0] * width), width - side));
+        int y = Math.max(0, Math.min((int) Math.round(crop[1] * height), height - side));
+        return new Rectangle(x, y, side, side);
+    }
+
+    public long reused() {
+        return reused.sum();
+    }
+
+    public long detected() {
+        return detected.sum();
+    }
+
+    // Estimated face-detection time skipped by reuses: each is credited with the mean
+    // detection time measured when it happened.
+    public long savedNanos() {
+        return savedNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "cropMemory[capacity=" + capacity + ", maxDistance=" + maxDistance + "]";
+    }
+}
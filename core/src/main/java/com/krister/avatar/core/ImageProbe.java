@@ -0,0 +1,168 @@
+package com.krister.avatar.core;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Iterator;
+
+// Estimates how much work an image will be to process from its header alone, without
+// decoding any pixels. Used to schedule cheap jobs ahead of expensive ones.
+//
+// Processing cost is roughly proportional to pixels × frames: every frame of an animated GIF
+// is composited, cropped and resized on its own. For a URL only the first PROBE_BYTES are
+// fetched (an HTTP Range request); a GIF's frame count is then extrapolated from how many
+// frames fit in that prefix and the file's total size.
+public class ImageProbe {
+
+    private ImageProbe() {}
+
+    static final int PROBE_BYTES = 64 * 1024;
+    // One cost unit is a 512×512 still image — a typical avatar upload.
+    private static final long PIXELS_PER_UNIT = 512L * 512L;
+    // When the header gives no dimensions, fall back to file size at this many bytes per unit.
+    private static final long BYTES_PER_UNIT = 256L * 1024L;
+
+    // width/height are 0 and frames 1 when the header could not be read; bytes is 0 when
+    // the total size is unknown.
+    public record Estimate(int width, int height, int frames, long bytes) {
+
+        // Always at least 1.
+        public int cost() {
+            long units = width > 0 && height > 0
+                    ? (long) width * height * frames / PIXELS_PER_UNIT
+                    : bytes / BYTES_PER_UNIT;
+            return (int) Math.max(1, Math.min(Integer.MAX_VALUE, units));
+        }
+    }
+
+    public static Estimate probe(byte[] data) {
+        return probe(data, data.length);
+    }
+
+    // Probes a prefix of a file whose full length is totalBytes (0 if unknown).
+    static Estimate probe(byte[] prefix, long totalBytes) {
+        if (isGif(prefix)) return probeGif(prefix, totalBytes);
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(prefix))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (iis != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, true, true);
+                    return new Estimate(reader.getWidth(0), reader.getHeight(0), 1, totalBytes);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Truncated or unrecognised header — fall through to the size-only estimate.
+        }
+        return new Estimate(0, 0, 1, totalBytes);
+    }
+
+    // Fetches the first PROBE_BYTES of the image. Returns a size-only or empty estimate rather
+    // than failing: a probe that cannot run must never stop the job being submitted.
+    //
+    // Redirects are not followed. Only the submitted URL's host passed UrlValidator, and a
+    // redirect could point the API's own request at an internal address; a 3xx gets the same
+    // size-only estimate as any other status without a body to probe.
+    public static Estimate probeUrl(String imageUrl, int timeoutMillis) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URI(imageUrl.trim()).toURL().openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestProperty("User-Agent", "Mozilla/5.0");
+            connection.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            try {
+                int status = connection.getResponseCode();
+                if (status != 200 && status != 206) return new Estimate(0, 0, 1, 0);
+                long total = status == 206
+                        ? totalFromContentRange(connection.getHeaderField("Content-Range"))
+                        : connection.getContentLengthLong();
+                // A server that ignores Range sends the whole file; read only the prefix.
+                try (InputStream in = connection.getInputStream()) {
+                    return probe(in.readNBytes(PROBE_BYTES), Math.max(0, total));
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (Exception e) {
+            return new Estimate(0, 0, 1, 0);
+        }
+    }
+
+    // "bytes 0-65535/1234567" → 1234567; "*" or a missing header → 0.
+    static long totalFromContentRange(String contentRange) {
+        if (contentRange == null) return 0;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return 0;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isGif(byte[] data) {
+        return data.length >= 13 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F';
+    }
+
+    // Walks the GIF block structure — extension and image blocks are length-prefixed, so
+    // frames can be counted by skipping over their data without decompressing anything.
+    // If the data ends before the trailer, the count is scaled up by the share of the file
+    // that was read.
+    private static Estimate probeGif(byte[] data, long totalBytes) {
+        int width = u16(data, 6);
+        int height = u16(data, 8);
+        int pos = 13 + colorTableSize(data[10]);
+        int frames = 0;
+        int endOfLastFrame = pos;
+        boolean complete = false;
+        while (pos < data.length) {
+            int block = data[pos] & 0xFF;
+            if (block == 0x3B) {
+                complete = true;
+                break;
+            } else if (block == 0x21) {
+                pos = skipSubBlocks(data, pos + 2);
+            } else if (block == 0x2C) {
+                if (pos + 10 > data.length) break;
+                pos = skipSubBlocks(data, pos + 10 + colorTableSize(data[pos + 9]) + 1);
+                if (pos > data.length) break;
+                frames++;
+                endOfLastFrame = pos;
+            } else {
+                break;
+            }
+        }
+        if (!complete && frames > 0 && totalBytes > data.length) {
+            frames = (int) Math.min(Integer.MAX_VALUE, frames * totalBytes / endOfLastFrame);
+        }
+        return new Estimate(width, height, Math.max(1, frames), totalBytes);
+    }
+
+    // Returns the position after the terminating zero-length sub-block, or past the end of
+    // the data if it is cut off first.
+    private static int skipSubBlocks(byte[] data, int pos) {
+        while (pos < data.length) {
+            int size = data[pos] & 0xFF;
+            pos += 1 + size;
+            if (size == 0) return pos;
+        }
+        return data.length + 1;
+    }
+
+    // The color table flag is the top bit of the packed field; its size is 3 × 2^(n+1).
+    private static int colorTableSize(byte packed) {
+        return (packed & 0x80) == 0 ? 0 : 3 * (1 << ((packed & 0x07) + 1));
+    }
+
+    private static int u16(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+    }
+}
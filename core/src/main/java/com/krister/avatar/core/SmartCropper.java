@@ -35,6 +35,10 @@ import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
 //   ResNet = Residual Network — a CNN architecture that uses skip connections to allow
 //            very deep networks to train without vanishing gradients.
 //   The model was trained in the Caffe framework; it lives in core/src/main/resources/dnn/.
+//
+// Before running the model, the detection-sized image is hashed and looked up in a
+// CropMemory: a near-duplicate of a picture seen recently reuses that picture's crop and
+// skips the forward pass.
 public class SmartCropper {
 
     private SmartCropper() {}
@@ -54,6 +58,18 @@ public class SmartCropper {
     private static final ThreadLocal<Net> DETECTOR =
             ThreadLocal.withInitial(SmartCropper::createNet);
 
+    // Shared by every thread in the process. The worker replaces it at startup with one sized
+    // from its configuration (see setCropMemory).
+    private static volatile CropMemory cropMemory = new CropMemory(4096, 4);
+
+    public static CropMemory cropMemory() {
+        return cropMemory;
+    }
+
+    public static void setCropMemory(CropMemory memory) {
+        cropMemory = memory;
+    }
+
     private static Net createNet() {
         try {
             // The model files are bundled in the JAR as classpath resources. OpenCV's
@@ -98,6 +114,20 @@ public class SmartCropper {
         // image dimensions to findBestDetection — the result is in original pixel space.
         BufferedImage forDetection = downsampleForDetection(img);
 
+        CropMemory memory = cropMemory;
+        long hash = CropMemory.dHash(forDetection);
+        Rectangle remembered = memory.lookup(hash, img.getWidth(), img.getHeight());
+        if (remembered != null) {
+            log.debug("Reusing crop of a near-duplicate image");
+            return remembered;
+        }
+        long start = System.nanoTime();
+        Rectangle rect = detect(img, forDetection);
+        memory.remember(hash, img.getWidth(), img.getHeight(), rect, System.nanoTime() - start);
+        return rect;
+    }
+
+    private static Rectangle detect(BufferedImage img, BufferedImage forDetection) {
         try (Java2DFrameConverter j2d = new Java2DFrameConverter();
              OpenCVFrameConverter.ToMat toMat = new OpenCVFrameConverter.ToMat()) {
 
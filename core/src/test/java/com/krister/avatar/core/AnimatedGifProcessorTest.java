@@ -0,0 +1,71 @@
+package com.krister.avatar.core;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIOException;
+
+// The crop is passed in rather than detected, so these run without OpenCV's natives.
+class AnimatedGifProcessorTest {
+
+    @Test
+    void stitch_rangesProcessedSeparately_joinInOrderAt128() throws IOException {
+        byte[] gif = animatedGif(160, 96, 7);
+        Rectangle crop = new Rectangle(32, 0, 96, 96);
+
+        byte[] first = AnimatedGifProcessor.processRange(gif, 0, 4, crop, () -> false);
+        byte[] second = AnimatedGifProcessor.processRange(gif, 4, 7, crop, () -> false);
+        byte[] stitched = AnimatedGifProcessor.stitch(List.of(first, second));
+
+        assertThat(ImageProbe.probe(first).frames()).isEqualTo(4);
+        assertThat(ImageProbe.probe(second).frames()).isEqualTo(3);
+        ImageProbe.Estimate parts = ImageProbe.probe(stitched);
+        assertThat(parts.frames()).isEqualTo(7);
+        assertThat(parts.width()).isEqualTo(128);
+        assertThat(parts.height()).isEqualTo(128);
+    }
+
+    @Test
+    void processRange_pastLastFrame_stopsAtLastFrame() throws IOException {
+        byte[] gif = animatedGif(64, 64, 5);
+        Rectangle crop = new Rectangle(0, 0, 64, 64);
+
+        byte[] tail = AnimatedGifProcessor.processRange(gif, 3, 50, crop, () -> false);
+
+        assertThat(ImageProbe.probe(tail).frames()).isEqualTo(2);
+        assertThatIOException().isThrownBy(() -> AnimatedGifProcessor.processRange(gif, 5, 10, crop, () -> false));
+    }
+
+    // Each frame a different shade, so none is optimised away as a repeat.
+    private static byte[] animatedGif(int width, int height, int frames) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++) {
+                BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        frame.setRGB(x, y, (i * 0x202020 + x * 0x10101) & 0xFFFFFF);
+                    }
+                }
+                writer.writeToSequence(new IIOImage(frame, null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,119 @@
+package com.krister.avatar.core;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class CropMemoryTest {
+
+    @Test
+    void dHash_reencodedAndRescaledCopy_isWithinThresholdOfOriginal() throws IOException {
+        BufferedImage original = picture(600, 400, false);
+        BufferedImage copy = reencodeAsJpeg(scale(original, 300, 200), 0.3f);
+
+        int sameDistance = Long.bitCount(CropMemory.dHash(original) ^ CropMemory.dHash(copy));
+        int otherDistance = Long.bitCount(CropMemory.dHash(original) ^ CropMemory.dHash(picture(600, 400, true)));
+
+        assertThat(sameDistance).isLessThanOrEqualTo(4);
+        assertThat(otherDistance).isGreaterThan(10);
+    }
+
+    @Test
+    void lookup_nearDuplicateAtAnotherSize_returnsCropScaledToIt() {
+        CropMemory memory = new CropMemory(16, 4);
+        memory.remember(0b1011L, 600, 400, new Rectangle(300, 100, 200, 200), 40_000_000);
+
+        Rectangle crop = memory.lookup(0b1010L, 300, 200);
+
+        assertThat(crop).isEqualTo(new Rectangle(150, 50, 100, 100));
+        assertThat(memory.reused()).isEqualTo(1);
+        assertThat(memory.detected()).isEqualTo(1);
+        assertThat(memory.savedNanos()).isEqualTo(40_000_000);
+    }
+
+    @Test
+    void lookup_tooManyDifferentBitsOrOtherAspectRatio_misses() {
+        CropMemory memory = new CropMemory(16, 4);
+        memory.remember(0L, 600, 400, new Rectangle(0, 0, 400, 400), 1);
+
+        assertThat(memory.lookup(0b11111L, 600, 400)).isNull();
+        assertThat(memory.lookup(0L, 400, 400)).isNull();
+        assertThat(memory.reused()).isZero();
+    }
+
+    @Test
+    void remember_beyondCapacity_forgetsOldestPicture() {
+        CropMemory memory = new CropMemory(2, 0);
+        memory.remember(1L, 100, 100, new Rectangle(0, 0, 100, 100), 1);
+        memory.remember(2L, 100, 100, new Rectangle(0, 0, 100, 100), 1);
+        memory.remember(3L, 100, 100, new Rectangle(0, 0, 100, 100), 1);
+
+        assertThat(memory.lookup(1L, 100, 100)).isNull();
+        assertThat(memory.lookup(3L, 100, 100)).isNotNull();
+    }
+
+    @Test
+    void zeroCapacity_neverReusesButStillCountsDetections() {
+        CropMemory memory = new CropMemory(0, 4);
+        memory.remember(1L, 100, 100, new Rectangle(0, 0, 100, 100), 1);
+
+        assertThat(memory.lookup(1L, 100, 100)).isNull();
+        assertThat(memory.detected()).isEqualTo(1);
+        assertThatIllegalArgumentException().isThrownBy(() -> new CropMemory(16, 65));
+    }
+
+    // A gradient with a bright "head" off-centre; mirrored, it is a different picture.
+    private static BufferedImage picture(int width, int height, boolean mirrored) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.LIGHT_GRAY));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(230, 190, 160));
+        int x = mirrored ? width / 8 : width / 2;
+        g.fillOval(x, height / 6, width / 3, height / 2);
+        g.setColor(new Color(40, 30, 120));
+        g.fillRect(mirrored ? width - width / 3 : 0, height * 2 / 3, width / 3, height / 3);
+        g.dispose();
+        return img;
+    }
+
+    private static BufferedImage scale(BufferedImage img, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    private static BufferedImage reencodeAsJpeg(BufferedImage img, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
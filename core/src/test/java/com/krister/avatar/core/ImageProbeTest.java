@@ -0,0 +1,126 @@
+package com.krister.avatar.core;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImageProbeTest {
+
+    @Test
+    void probe_png_readsDimensionsFromHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1024, 512, BufferedImage.TYPE_INT_RGB), "png", out);
+
+        ImageProbe.Estimate estimate = ImageProbe.probe(out.toByteArray());
+
+        assertThat(estimate.width()).isEqualTo(1024);
+        assertThat(estimate.height()).isEqualTo(512);
+        assertThat(estimate.frames()).isEqualTo(1);
+        assertThat(estimate.cost()).isEqualTo(2);
+    }
+
+    @Test
+    void probe_animatedGif_countsFrames() throws IOException {
+        byte[] gif = animatedGif(64, 64, 12);
+
+        ImageProbe.Estimate estimate = ImageProbe.probe(gif);
+
+        assertThat(estimate.width()).isEqualTo(64);
+        assertThat(estimate.frames()).isEqualTo(12);
+    }
+
+    @Test
+    void probe_truncatedGif_extrapolatesFramesFromTotalSize() throws IOException {
+        byte[] gif = animatedGif(64, 64, 40);
+        byte[] prefix = Arrays.copyOf(gif, gif.length / 4);
+
+        ImageProbe.Estimate estimate = ImageProbe.probe(prefix, gif.length);
+
+        assertThat(estimate.frames()).isBetween(30, 50);
+    }
+
+    @Test
+    void probe_unreadableData_fallsBackToSize() {
+        ImageProbe.Estimate estimate = ImageProbe.probe(new byte[]{1, 2, 3}, 1024 * 1024);
+
+        assertThat(estimate.width()).isZero();
+        assertThat(estimate.cost()).isEqualTo(4);
+    }
+
+    @Test
+    void cost_isAtLeastOne() {
+        assertThat(new ImageProbe.Estimate(0, 0, 1, 0).cost()).isEqualTo(1);
+        assertThat(new ImageProbe.Estimate(128, 128, 1, 2048).cost()).isEqualTo(1);
+    }
+
+    @Test
+    void totalFromContentRange_parsesTotalLength() {
+        assertThat(ImageProbe.totalFromContentRange("bytes 0-65535/1234567")).isEqualTo(1234567);
+        assertThat(ImageProbe.totalFromContentRange("bytes 0-65535/*")).isZero();
+        assertThat(ImageProbe.totalFromContentRange(null)).isZero();
+    }
+
+    @Test
+    void probeUrl_redirect_isNotFollowed() throws IOException {
+        AtomicBoolean targetFetched = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/img.png", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/internal.png");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/internal.png", exchange -> {
+            targetFetched.set(true);
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            ImageProbe.Estimate estimate = ImageProbe.probeUrl(
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/img.png", 2000);
+
+            assertThat(estimate.width()).isZero();
+            assertThat(estimate.cost()).isEqualTo(1);
+            assertThat(targetFetched).isFalse();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // Random pixels so every frame carries a realistic amount of LZW data.
+    private static byte[] animatedGif(int width, int height, int frames) throws IOException {
+        Random random = new Random(42);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++) {
+                BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        frame.setRGB(x, y, random.nextInt(8) * 0x202020);
+                    }
+                }
+                writer.writeToSequence(new IIOImage(frame, null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,59 @@
+package com.krister.avatar.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Compares the JobCodec binary format against the JSON path it replaced, for the payload
+// written on every enqueue and read on every dequeue. Run with ./gradlew :shared:jmh.
+// Payload sizes are printed once at setup, since Redis memory is the other half of the story.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JobCodecBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JobCodec codec = new JobCodec(objectMapper);
+
+    private JobRequest job;
+    private String json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Typical job: random UUID plus a CDN image URL.
+        job = new JobRequest("3f2b8c1e-6a4d-4e8f-9b1a-2c7d5e0f9a13",
+                "https://media.example-cdn.com/avatars/2024/06/user-48213/profile-original.png", 1);
+        json = objectMapper.writeValueAsString(job);
+        binary = codec.encode(job);
+        System.out.printf("%npayload bytes: json=%d binary=%d%n", json.length(), binary.length);
+    }
+
+    @Benchmark
+    public String encodeJson() throws Exception {
+        return objectMapper.writeValueAsString(job);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return codec.encode(job);
+    }
+
+    @Benchmark
+    public JobRequest decodeJson() throws Exception {
+        return objectMapper.readValue(json, JobRequest.class);
+    }
+
+    @Benchmark
+    public JobRequest decodeBinary() {
+        return codec.decodeJob(binary);
+    }
+}
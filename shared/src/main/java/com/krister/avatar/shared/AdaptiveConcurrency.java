@@ -0,0 +1,79 @@
+package com.krister.avatar.shared;
+
+// Decides how many jobs a worker may run through its CPU stage at once, from what the worker
+// observed over the last sampling interval. AIMD, as in TCP congestion control:
+//
+//   additive increase       → +1 while work is waiting and the CPU has headroom, so a deep
+//                             queue is met with more threads one step at a time
+//   multiplicative decrease → halve when the heap is nearly full, or when the CPU is
+//                             saturated and jobs are taking much longer than usual — the
+//                             signs of threads thrashing each other rather than adding work
+//   otherwise               → hold; an idle pool is not shrunk, since idle threads cost nothing
+//
+// Backing off fast and probing slowly keeps the limit just under the point where more
+// threads stop helping, and gets well clear of it the moment memory runs short.
+public final class AdaptiveConcurrency {
+
+    // What the worker saw over one interval. cpuLoad and heapUsed are fractions (0..1; cpuLoad
+    // is negative when the platform cannot report it). stageLatencyMs is the mean CPU-stage
+    // time of the jobs that finished in the interval, NaN if none did.
+    public record Signals(long backlog, double cpuLoad, double heapUsed, double stageLatencyMs) {}
+
+    // How quickly the latency baseline follows new samples. Slow on purpose: a baseline that
+    // kept pace with a gradual slowdown would never notice it.
+    private static final double BASELINE_WEIGHT = 0.1;
+
+    private final int min;
+    private final int max;
+    private final double cpuTarget;
+    private final double heapHigh;
+    private final double latencyTolerance;
+
+    private int limit;
+    private double baselineLatencyMs = Double.NaN;
+
+    public AdaptiveConcurrency(int min, int max, int initial, double cpuTarget, double heapHigh,
+                               double latencyTolerance) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid concurrency bounds min=" + min + " max=" + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.cpuTarget = cpuTarget;
+        this.heapHigh = heapHigh;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(min, Math.min(max, initial));
+    }
+
+    public synchronized int limit() {
+        return limit;
+    }
+
+    // Returns the new limit.
+    public synchronized int update(Signals signals) {
+        boolean slow = !Double.isNaN(signals.stageLatencyMs()) && !Double.isNaN(baselineLatencyMs)
+                && signals.stageLatencyMs() > baselineLatencyMs * latencyTolerance;
+        boolean saturated = signals.cpuLoad() >= cpuTarget;
+
+        if (signals.heapUsed() >= heapHigh || (saturated && slow)) {
+            limit = Math.max(min, limit / 2);
+            // A slow interval is not folded into the baseline, or the baseline would creep up
+            // to meet the thrashing it is meant to detect.
+            return limit;
+        }
+        if (!Double.isNaN(signals.stageLatencyMs())) {
+            baselineLatencyMs = Double.isNaN(baselineLatencyMs)
+                    ? signals.stageLatencyMs()
+                    : baselineLatencyMs + BASELINE_WEIGHT * (signals.stageLatencyMs() - baselineLatencyMs);
+        }
+        if (signals.backlog() > 0 && !saturated) {
+            limit = Math.min(max, limit + 1);
+        }
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "aimd[min=" + min + ", max=" + max + ", cpuTarget=" + cpuTarget + ", heapHigh=" + heapHigh + "]";
+    }
+}
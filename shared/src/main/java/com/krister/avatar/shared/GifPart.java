@@ -0,0 +1,54 @@
+package com.krister.avatar.shared;
+
+// One frame range of an animated GIF that was split across workers (see
+// RedisJobStore.splitJob). A part is queued as an ordinary job whose URL carries everything
+// needed to run it, in the same way an upload's URL is s3://uploads/{jobId}:
+//
+//   gif-part://{parentId}/{index}/{parts}/{fromFrame}-{toFrame}/{cropX},{cropY},{cropWidth},{cropHeight}
+//
+// so it is retried, leased, reaped and cancelled like any other job, with no payload format
+// of its own. Every part reads the parent's source from uploads/{parentId} and uses the same
+// crop, detected once from the first frame, so the subject doesn't shift between parts.
+//
+// parts is how many parts the parent was split into; index counts from 0. Frames are
+// [fromFrame, toFrame).
+public record GifPart(String parentId, int index, int parts, int fromFrame, int toFrame,
+                      int cropX, int cropY, int cropWidth, int cropHeight) {
+
+    private static final String SCHEME = "gif-part://";
+
+    // Null for any URL that is not a part.
+    public static GifPart parse(String url) {
+        if (url == null || !url.startsWith(SCHEME)) return null;
+        String[] path = url.substring(SCHEME.length()).split("/");
+        String[] frames = path.length == 5 ? path[3].split("-") : new String[0];
+        String[] crop = path.length == 5 ? path[4].split(",") : new String[0];
+        if (frames.length != 2 || crop.length != 4) throw new IllegalArgumentException("Malformed GIF part URL: " + url);
+        return new GifPart(path[0], Integer.parseInt(path[1]), Integer.parseInt(path[2]),
+                Integer.parseInt(frames[0]), Integer.parseInt(frames[1]),
+                Integer.parseInt(crop[0]), Integer.parseInt(crop[1]),
+                Integer.parseInt(crop[2]), Integer.parseInt(crop[3]));
+    }
+
+    // Part n of job {id} is job {id}-part-{n}.
+    public static String jobIdPrefix(String parentId) {
+        return parentId + "-part-";
+    }
+
+    public static String jobId(String parentId, int index) {
+        return jobIdPrefix(parentId) + index;
+    }
+
+    public String jobId() {
+        return jobId(parentId, index);
+    }
+
+    public String url() {
+        return SCHEME + parentId + "/" + index + "/" + parts + "/" + fromFrame + "-" + toFrame + "/"
+                + cropX + "," + cropY + "," + cropWidth + "," + cropHeight;
+    }
+
+    public int frames() {
+        return toFrame - fromFrame;
+    }
+}
@@ -0,0 +1,82 @@
+package com.krister.avatar.shared;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Tells a running job that it has been cancelled. The worker tracks each job it starts here,
+// and RedisJobStore.cancel publishes the job's ID on CANCEL_CHANNEL; the process running the
+// job sets that job's flag, which the job checks between stages and between GIF frames.
+//
+// Pushing the cancellation to the worker, rather than having every job poll its record, costs
+// nothing for the jobs that are never cancelled (nearly all of them), and the checks are
+// plain memory reads, cheap enough to make after every frame. A worker only has to hear
+// about a job it is already running: a job cancelled before it starts is caught by
+// markStarted, and a job is tracked before markStarted runs, so nothing falls between them.
+@Component
+public class JobCancellations {
+
+    private static final Logger log = LoggerFactory.getLogger(JobCancellations.class);
+
+    private final RedisConnectionFactory connectionFactory;
+    private final Map<String, AtomicBoolean> running = new ConcurrentHashMap<>();
+    private RedisMessageListenerContainer listener;
+
+    public JobCancellations(RedisConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    @PostConstruct
+    public void start() {
+        listener = new RedisMessageListenerContainer();
+        listener.setConnectionFactory(connectionFactory);
+        listener.addMessageListener((message, pattern) ->
+                        cancelled(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisJobStore.CANCEL_CHANNEL));
+        listener.afterPropertiesSet();
+        listener.start();
+    }
+
+    // Returns the flag that is set if the job is cancelled while tracked. Call untrack with
+    // the same flag once the job is done with.
+    public AtomicBoolean track(String jobId) {
+        AtomicBoolean flag = new AtomicBoolean();
+        running.put(jobId, flag);
+        return flag;
+    }
+
+    // Removes only the given flag: the same job may briefly be tracked twice (a GIF moved to
+    // the heavy lane is claimed there before the thread that moved it has finished with it),
+    // and the later registration must stay.
+    public void untrack(String jobId, AtomicBoolean flag) {
+        running.remove(jobId, flag);
+    }
+
+    void cancelled(String jobId) {
+        AtomicBoolean flag = running.get(jobId);
+        if (flag != null) {
+            flag.set(true);
+            log.info("Cancelling running job jobId={}", jobId);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        try {
+            listener.stop();
+            listener.destroy();
+        } catch (Exception e) {
+            log.warn("Job cancellation listener shutdown failed: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.krister.avatar.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.krister.avatar.shared.RedisJobStore.DlqEntry;
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Encodes the payloads stored in Redis — queued and retrying JobRequests, DLQ entries.
+//
+// The default format is a small versioned binary layout: a version byte, then varint
+// numbers and length-prefixed UTF-8 strings in a fixed field order. Field names are not
+// repeated in every payload, which adds up in a deep backlog, and encoding is a few array
+// copies instead of a Jackson round-trip on every enqueue and dequeue.
+//
+//   JobRequest v3: [0x03][attempt][lane ordinal][enqueuedAt epoch ms][deadline epoch ms][jobId][url]
+//   JobRequest v2: [0x02][attempt][lane ordinal][enqueuedAt epoch ms][jobId][url]
+//   JobRequest v1: [0x01][attempt][jobId][url]   (read only: INTERACTIVE, enqueuedAt unknown)
+//   DlqEntry   v1: [0x01][attempts][failedAt][jobId][url][error (nullable)]
+//
+// Decoding accepts JSON as well — JSON always starts with '{', which is never a valid
+// version byte — so payloads written before the switch are still readable.
+//
+// Writers never produce a layout that the instances still running an older version can't
+// read. job.payload.format picks what is written during a rolling upgrade:
+//
+//   binary     newest layout (default once every reader runs this version)
+//   binary-v2  at most v2: for readers with lanes but no deadlines; deadlines are dropped
+//   binary-v1  v1 only: for readers from before lanes; lane and enqueue time are dropped,
+//              so every job reads back as INTERACTIVE with no queue-time metric
+//   json       for readers from before the binary format
+//
+// A job without a deadline is written as v2 even under binary, so readers that predate
+// deadlines only meet v3 payloads once clients start setting one.
+@Component
+public class JobCodec {
+
+    private static final byte VERSION = 1;
+    private static final byte JOB_VERSION = 2;
+    private static final byte JOB_DEADLINE_VERSION = 3;
+    private static final byte JSON_START = '{';
+
+    private final ObjectMapper objectMapper;
+
+    // "binary", "binary-v2", "binary-v1" or "json"; see the header comment.
+    @Value("${job.payload.format:binary}")
+    private String format;
+
+    public JobCodec(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    // A template whose values are raw bytes, for writing encoded payloads. Keys and hash keys
+    // stay plain strings so they still read naturally in redis-cli.
+    public static RedisTemplate<String, byte[]> binaryTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        template.afterPropertiesSet();
+        return template;
+    }
+
+    public byte[] encode(JobRequest job) {
+        if (writesJson()) return toJson(job);
+        byte[] jobId = utf8(job.jobId());
+        byte[] url = utf8(job.url());
+        long attempt = Integer.toUnsignedLong(job.attempt());
+        int lane = job.lane().ordinal();
+        byte version = jobVersion(job);
+        boolean hasLane = version >= JOB_VERSION;
+        boolean hasDeadline = version == JOB_DEADLINE_VERSION;
+        Writer out = new Writer(1 + varLongSize(attempt)
+                + (hasLane ? varLongSize(lane) + varLongSize(job.enqueuedAt()) : 0)
+                + (hasDeadline ? varLongSize(job.deadline()) : 0)
+                + bytesSize(jobId) + bytesSize(url));
+        out.writeByte(version);
+        out.writeVarLong(attempt);
+        if (hasLane) {
+            out.writeVarLong(lane);
+            out.writeVarLong(job.enqueuedAt());
+        }
+        if (hasDeadline) out.writeVarLong(job.deadline());
+        out.writeBytes(jobId);
+        out.writeBytes(url);
+        return out.toByteArray();
+    }
+
+    // The newest layout that both carries the job's fields and is allowed by format.
+    private byte jobVersion(JobRequest job) {
+        if ("binary-v1".equalsIgnoreCase(format)) return VERSION;
+        if (job.deadline() <= 0 || "binary-v2".equalsIgnoreCase(format)) return JOB_VERSION;
+        return JOB_DEADLINE_VERSION;
+    }
+
+    public JobRequest decodeJob(byte[] payload) {
+        if (payload[0] == JSON_START) return fromJson(payload, JobRequest.class);
+        Reader in = new Reader(payload, VERSION, JOB_DEADLINE_VERSION);
+        int attempt = (int) in.readVarLong();
+        if (in.version() == VERSION) {
+            return new JobRequest(in.readString(), in.readString(), attempt, JobLane.INTERACTIVE, 0);
+        }
+        JobLane lane = JobLane.values()[(int) in.readVarLong()];
+        long enqueuedAt = in.readVarLong();
+        long deadline = in.version() == JOB_DEADLINE_VERSION ? in.readVarLong() : 0;
+        return new JobRequest(in.readString(), in.readString(), attempt, lane, enqueuedAt, deadline);
+    }
+
+    public byte[] encode(DlqEntry entry) {
+        if (writesJson()) return toJson(entry);
+        byte[] jobId = utf8(entry.jobId());
+        byte[] url = utf8(entry.url());
+        byte[] error = entry.error() == null ? null : utf8(entry.error());
+        long attempts = Integer.toUnsignedLong(entry.attempts());
+        Writer out = new Writer(1 + varLongSize(attempts) + varLongSize(entry.failedAt())
+                + bytesSize(jobId) + bytesSize(url) + nullableBytesSize(error));
+        out.writeByte(VERSION);
+        out.writeVarLong(attempts);
+        out.writeVarLong(entry.failedAt());
+        out.writeBytes(jobId);
+        out.writeBytes(url);
+        out.writeNullableBytes(error);
+        return out.toByteArray();
+    }
+
+    public DlqEntry decodeDlqEntry(byte[] payload) {
+        if (payload[0] == JSON_START) return fromJson(payload, DlqEntry.class);
+        Reader in = new Reader(payload, VERSION, VERSION);
+        int attempts = (int) in.readVarLong();
+        long failedAt = in.readVarLong();
+        return new DlqEntry(in.readString(), in.readString(), attempts, failedAt, in.readNullableString());
+    }
+
+    private boolean writesJson() {
+        return "json".equalsIgnoreCase(format);
+    }
+
+    private byte[] toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize " + value.getClass().getSimpleName(), e);
+        }
+    }
+
+    private <T> T fromJson(byte[] payload, Class<T> type) {
+        try {
+            return objectMapper.readValue(payload, type);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to deserialize " + type.getSimpleName(), e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        return varLongSize(bytes.length) + bytes.length;
+    }
+
+    private static int nullableBytesSize(byte[] bytes) {
+        return bytes == null ? 1 : varLongSize(bytes.length + 1L) + bytes.length;
+    }
+
+    // Sized exactly up front, so encoding is a single allocation with no copy at the end.
+    private static final class Writer {
+        private final byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void writeByte(byte b) {
+            buf[pos++] = b;
+        }
+
+        // Unsigned LEB128: 7 bits per byte, high bit set on every byte but the last.
+        // Attempt counts and lengths fit in one byte, epoch seconds in five, epoch
+        // milliseconds (enqueuedAt, deadline) in six.
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        // Length + 1, so 0 can mean null.
+        void writeNullableBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(bytes.length + 1L);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return buf;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf, byte minVersion, byte maxVersion) {
+            if (buf[0] < minVersion || buf[0] > maxVersion) {
+                throw new RuntimeException("Unsupported payload version " + buf[0]);
+            }
+            this.buf = buf;
+            this.pos = 1;
+        }
+
+        byte version() {
+            return buf[0];
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        String readNullableString() {
+            int length = (int) readVarLong();
+            if (length == 0) return null;
+            String s = new String(buf, pos, length - 1, StandardCharsets.UTF_8);
+            pos += length - 1;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.krister.avatar.shared;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+// Priority lanes of the work queue. Each lane is its own Redis list or stream, so a deep
+// backlog in one lane never sits in front of jobs in another. Declaration order is strict
+// priority order: with job.queue.lane-policy=strict a worker only takes from a lane when
+// every lane above it is empty (see LanePolicy for the weighted alternative).
+//
+//   INTERACTIVE → single submissions from users waiting on the result
+//   RETRY       → retries promoted from the retry set, and jobs requeued from the DLQ
+//   BULK        → batch submissions (POST /api/jobs/batch)
+//   HEAVY       → animated GIFs, moved here by the general worker that detected them
+//
+// HEAVY sits outside that priority order: the general worker threads never claim from it,
+// only the separately sized heavy pool does (job.worker.heavy-thread-count). A GIF costs many
+// times the memory and CPU of a still image, so this bounds how many run at once per process
+// without them ever occupying a thread a still avatar could have used.
+public enum JobLane {
+    INTERACTIVE,
+    RETRY,
+    BULK,
+    // Declared last: the binary payload codec stores the lane by ordinal.
+    HEAVY;
+
+    private static final List<JobLane> GENERAL = Stream.of(values()).filter(lane -> lane != HEAVY).toList();
+
+    // The lanes general worker threads claim from, in strict priority order.
+    public static List<JobLane> general() {
+        return GENERAL;
+    }
+
+    // INTERACTIVE keeps the base key (jobs:queue / jobs:stream) so jobs queued before lanes
+    // existed are still drained; the other lanes get a suffix, e.g. jobs:queue:bulk.
+    public String key(String baseKey) {
+        return this == INTERACTIVE ? baseKey : baseKey + ":" + tag();
+    }
+
+    // Lower-case name used in metric tags, config and the admin API.
+    public String tag() {
+        return name().toLowerCase();
+    }
+}
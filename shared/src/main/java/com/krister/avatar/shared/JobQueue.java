@@ -0,0 +1,64 @@
+package com.krister.avatar.shared;
+
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import com.krister.avatar.shared.RedisJobStore.QueueStats;
+import org.springframework.data.redis.connection.RedisConnection;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+// The work-queue half of RedisJobStore, behind an interface so the Redis data structure can be
+// chosen by configuration (job.queue.backend):
+//
+//   list   → RedisListJobQueue   (LPUSH, RPOP/BRPOP or LMOVE/BLMOVE with leases via job.queue.reliable)
+//   stream → RedisStreamJobQueue (XADD/XREADGROUP/XACK consumer group, always leased)
+//
+// Either way there is one list or stream per JobLane. A job is pushed to the lane it carries,
+// and each claim is given the order to poll the lanes in (see LanePolicy).
+//
+// Callers go through RedisJobStore; only RedisJobStore talks to a JobQueue directly.
+public interface JobQueue {
+
+    // "list" or "stream" — also tells the retry promotion script which push command to use.
+    String backend();
+
+    // The Redis key a lane's jobs are pushed to.
+    String key(JobLane lane);
+
+    // Whether claimed jobs hold a lease that must be renewed and is reclaimed by the
+    // LeaseReaper when it lapses.
+    boolean isReliable();
+
+    Duration leaseDuration();
+
+    void push(JobRequest job);
+
+    // Queues the push on a connection the caller is already pipelining (or running a
+    // MULTI on), so it goes out together with the caller's other writes.
+    void push(RedisConnection connection, JobRequest job);
+
+    // Claims up to maxJobs, taking from the lanes in the given order — a later lane is only
+    // read once every earlier one is empty. Blocks for at most `timeout` only when no lane
+    // has anything available.
+    List<JobRequest> claim(int maxJobs, Duration timeout, List<JobLane> lanes);
+
+    // Returns claimed-but-unstarted jobs to their lanes. The list backend puts them at the
+    // front, to be claimed next; the stream backend re-adds them as new entries, at the back,
+    // since a stream only grows at its tail.
+    void release(List<JobRequest> jobs);
+
+    void ack(String jobId);
+
+    // Atomically acks this process's claim on the job, sets its record (recordKey) back to
+    // PENDING and pushes `moved` onto its lane. Does nothing unless the record is live and
+    // the claim still this process's. Returns 1 if moved, 0 if the record no longer exists,
+    // -1 if it was cancelled, -2 if the claim was lost to the reaper.
+    long move(JobRequest moved, String recordKey, long recordTtlSeconds);
+
+    void renewLeases(Collection<String> jobIds);
+
+    int reapExpiredLeases(int limit);
+
+    QueueStats stats();
+}
@@ -4,5 +4,9 @@ public enum JobStatus {
     PENDING,
     PROCESSING,
     COMPLETED,
-    FAILED
+    FAILED,
+    // Dropped unprocessed because its client deadline passed while it waited in the queue.
+    EXPIRED,
+    // Cancelled by the client (DELETE /api/jobs/{id}) before it finished.
+    CANCELLED
 }
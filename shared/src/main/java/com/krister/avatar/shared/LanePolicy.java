@@ -0,0 +1,94 @@
+package com.krister.avatar.shared;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+// Decides the order in which a worker polls the lanes on each claim. The queue takes jobs
+// from the first non-empty lane in that order, so the first lane in the list is the one
+// served when several have work waiting.
+//
+//   strict   → always INTERACTIVE, RETRY, BULK. Lower lanes only run when higher ones are
+//              empty, so a steady interactive load can starve bulk work indefinitely.
+//   weighted → smooth weighted round-robin picks the lead lane, the rest follow in priority
+//              order. With weights interactive:8,retry:3,bulk:1 and every lane backlogged,
+//              bulk leads 1 claim in 12 — it always drains, just slowly — while an idle
+//              higher lane costs nothing, because an empty lead lane falls through to the next.
+public final class LanePolicy {
+
+    private static final List<JobLane> PRIORITY_ORDER = JobLane.general();
+
+    private final Map<JobLane, Integer> weights;
+    // Smooth weighted round-robin state (as used by nginx): each pick adds every lane's weight
+    // to its credit, takes the lane with the most credit and charges it the total weight.
+    // Picks are spread evenly instead of in runs of the same lane.
+    private final Map<JobLane, Integer> credit = new EnumMap<>(JobLane.class);
+    private final int totalWeight;
+
+    private LanePolicy(Map<JobLane, Integer> weights) {
+        this.weights = weights;
+        this.totalWeight = weights == null ? 0 : weights.values().stream().mapToInt(Integer::intValue).sum();
+        for (JobLane lane : PRIORITY_ORDER) credit.put(lane, 0);
+    }
+
+    public static LanePolicy strict() {
+        return new LanePolicy(null);
+    }
+
+    // `weights` is "lane:weight,..." (e.g. "interactive:8,retry:3,bulk:1"); lanes left out get
+    // weight 1 so nothing is starved by a typo.
+    public static LanePolicy weighted(String weights) {
+        Map<JobLane, Integer> parsed = new EnumMap<>(JobLane.class);
+        for (JobLane lane : PRIORITY_ORDER) parsed.put(lane, 1);
+        for (String entry : weights.split(",")) {
+            if (entry.isBlank()) continue;
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid lane weight '" + entry.trim() + "', expected lane:weight");
+            }
+            JobLane lane = JobLane.valueOf(parts[0].trim().toUpperCase());
+            if (!PRIORITY_ORDER.contains(lane)) {
+                throw new IllegalArgumentException("Lane " + lane.tag() + " has its own worker threads and takes no weight");
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 1) throw new IllegalArgumentException("Lane weight must be at least 1: " + entry.trim());
+            parsed.put(lane, weight);
+        }
+        return new LanePolicy(parsed);
+    }
+
+    // Builds the policy named by job.queue.lane-policy.
+    public static LanePolicy of(String policy, String weights) {
+        return switch (policy.toLowerCase()) {
+            case "strict" -> strict();
+            case "weighted" -> weighted(weights);
+            default -> throw new IllegalArgumentException("Unknown lane policy '" + policy + "', expected strict or weighted");
+        };
+    }
+
+    // Only the fetcher thread calls this, but synchronizing keeps the credit map consistent if
+    // that ever changes.
+    public synchronized List<JobLane> nextOrder() {
+        if (weights == null) return PRIORITY_ORDER;
+        JobLane lead = null;
+        for (JobLane lane : PRIORITY_ORDER) {
+            int c = credit.get(lane) + weights.get(lane);
+            credit.put(lane, c);
+            if (lead == null || c > credit.get(lead)) lead = lane;
+        }
+        credit.put(lead, credit.get(lead) - totalWeight);
+        List<JobLane> order = new ArrayList<>(PRIORITY_ORDER.size());
+        order.add(lead);
+        for (JobLane lane : PRIORITY_ORDER) {
+            if (lane != lead) order.add(lane);
+        }
+        return order;
+    }
+
+    @Override
+    public String toString() {
+        return weights == null ? "strict" : "weighted" + Arrays.toString(weights.entrySet().toArray());
+    }
+}
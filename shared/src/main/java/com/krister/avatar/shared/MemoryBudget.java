@@ -0,0 +1,92 @@
+package com.krister.avatar.shared;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A fixed number of bytes shared by every job in the process. A job reserves what it expects
+// to allocate before it starts and gives it back when done; if the budget is spent, it waits.
+//
+// Counted in KiB so a budget of several GB still fits a Semaphore's int permits. The
+// semaphore is fair: otherwise a steady stream of small reservations could keep a large one
+// waiting forever, since it needs many permits to be free at the same moment.
+public final class MemoryBudget {
+
+    private final Semaphore permits;
+    private final int capacityKb;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public MemoryBudget(long capacityBytes) {
+        if (capacityBytes < 1024) {
+            throw new IllegalArgumentException("Memory budget must be at least 1 KiB, was " + capacityBytes);
+        }
+        this.capacityKb = (int) Math.min(Integer.MAX_VALUE, capacityBytes / 1024);
+        this.permits = new Semaphore(capacityKb, true);
+    }
+
+    // False for a reservation that could never be granted, however long it waited.
+    public boolean fits(long bytes) {
+        return toKb(bytes) <= capacityKb;
+    }
+
+    // Blocks until the bytes are free. Callers check fits() first; a reservation larger than
+    // the whole budget is refused rather than left waiting forever.
+    public Reservation reserve(long bytes) throws InterruptedException {
+        if (!fits(bytes)) {
+            throw new IllegalArgumentException("Reservation of " + bytes + " bytes exceeds the budget of "
+                    + capacityBytes() + " bytes");
+        }
+        int kb = (int) toKb(bytes);
+        waiting.incrementAndGet();
+        try {
+            permits.acquire(kb);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        reservedBytes.addAndGet(kb * 1024L);
+        return new Reservation(kb);
+    }
+
+    public long capacityBytes() {
+        return capacityKb * 1024L;
+    }
+
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    // Reservations currently blocked waiting for bytes to be released.
+    public int waiting() {
+        return waiting.get();
+    }
+
+    private static long toKb(long bytes) {
+        return Math.max(1, (bytes + 1023) / 1024);
+    }
+
+    // Released by close(), so it can be held in a try-with-resources block. Closing twice
+    // releases once.
+    public final class Reservation implements AutoCloseable {
+        private final int kb;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(int kb) {
+            this.kb = kb;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                reservedBytes.addAndGet(-kb * 1024L);
+                permits.release(kb);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "memoryBudget[capacityKb=" + capacityKb + ", reservedBytes=" + reservedBytes.get() + "]";
+    }
+}
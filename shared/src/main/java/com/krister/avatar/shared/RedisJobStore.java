@@ -1,164 +1,923 @@
 package com.krister.avatar.shared;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Component;
 
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Properties;
 
-// Owns all Redis interactions for the job pipeline. Uses four different Redis data structures,
+// Owns all Redis interactions for the job pipeline. Uses several Redis data structures,
 // each chosen for its access pattern:
 //
-//   jobs:queue       → List   (LPUSH/BRPOP — FIFO work queue)
-//   job:{id}:status  → String (simple key-value with TTL auto-expiry)
-//   jobs:retry       → Sorted Set (score = fire-at epoch second, enables time-ordered scheduling)
-//   jobs:dlq         → Hash   (jobId field → JSON value, easy keyed lookup)
+//   work queue       → List or Stream per JobLane, depending on job.queue.backend (see JobQueue)
+//   job:{id}         → Hash   (status, url, timings, attempt, worker, output size; TTL auto-expiry)
+//   jobs:retry       → Sorted Set (score = fire-at epoch second, enables time-ordered scheduling);
+//                      jobs:retry:heavy holds the heavy lane's retries
+//   jobs:dlq         → Hash   (jobId field → encoded entry, easy keyed lookup)
+//   jobs:staged:*    → per-tenant Sorted Sets feeding the lanes under fair share or
+//                      shortest-job-first scheduling (see submitJobs)
+//   job:{id}:parts-done → Set of the frame-range parts of a split GIF that have finished
+//                      (see splitJob)
+//   jobs:inflight:{h} → String (ID of the unfinished job for a URL; see attachFollower)
+//   job:{id}:followers → Set of the jobs waiting on that job's result
+//   jobs:idempotency:{h} → String ("{jobId} {fingerprint}" of the submission that used a
+//                      client's Idempotency-Key, h hashing the client and key; see
+//                      reserveIdempotencyKey)
 //
-// Java objects are serialized to JSON strings because Redis only stores strings natively.
+// Payloads are encoded by JobCodec (compact binary by default, JSON still readable).
+//
+// Requires a single Redis node (replicas and Sentinel failover are fine). Several scripts
+// build key names from values they read inside the script — a follower's leader and its
+// followers set (attach-follower), a split GIF's part keys (cancel-job), the staged tenants'
+// sub-queues (dispatch-staged), and a leased job's processing list (ack-job, reap-leases).
+// Redis Cluster can't route such keys, so requireSingleNode refuses to start against one.
 @Component
 public class RedisJobStore {
 
     public static final String QUEUE_KEY = "jobs:queue";
+    // Pub/sub channel that scheduleRetry publishes to when a new retry becomes the earliest.
+    public static final String RETRY_WAKEUP_CHANNEL = "jobs:retry:wakeup";
+    // Pub/sub channel that cancel publishes a job ID to when a worker may be running the job.
+    public static final String CANCEL_CHANNEL = "jobs:cancel";
     private static final String RETRY_SET_KEY = "jobs:retry";
-    private static final String STATUS_KEY = "job:%s:status";
+    // Retries of heavy-lane jobs wait apart and are promoted back onto the heavy lane, so a
+    // retried GIF is not downloaded by a general thread only to be moved there again.
+    private static final String HEAVY_RETRY_SET_KEY = "jobs:retry:heavy";
+    private static final String JOB_KEY = "job:%s";
+    // Status-only string written by versions before the job hash; still read as a fallback.
+    private static final String LEGACY_STATUS_KEY = "job:%s:status";
+    private static final String PARTS_DONE_KEY = "job:%s:parts-done";
+    private static final String IN_FLIGHT_KEY = "jobs:inflight:%s";
+    private static final String FOLLOWERS_KEY = "job:%s:followers";
+    private static final String IDEMPOTENCY_KEY = "jobs:idempotency:%s";
     private static final String DLQ_KEY = "jobs:dlq";
+    private static final String LEADER_KEY = "jobs:leader:%s";
+    // Pub/sub channel that submitJobs publishes to when it stages a job.
+    public static final String STAGED_WAKEUP_CHANNEL = "jobs:staged:wakeup";
+    // Per lane: the ring of tenants with staged jobs, their unfinished turns, and one
+    // sub-queue per tenant.
+    private static final String STAGED_RING_KEY = "jobs:staged:%s:tenants";
+    private static final String STAGED_DEFICIT_KEY = "jobs:staged:%s:deficit";
+    private static final String STAGED_QUEUE_PREFIX = "jobs:staged:%s:queue:";
+    // Retries are already spread out by their backoff, so only first submissions are staged.
+    private static final List<JobLane> STAGED_LANES = List.of(JobLane.INTERACTIVE, JobLane.BULK);
+    // With fair share off, shortest-job-first stages every job under this one tenant.
+    private static final String SHARED_TENANT = "*";
+    // Tenant IDs come from a client-supplied header, so they are capped before becoming keys.
+    private static final int MAX_TENANT_LENGTH = 64;
+
+    // Multi-step operations run as Lua scripts so each is atomic on the Redis server.
+    private static final RedisScript<Long> SCHEDULE_RETRY_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/schedule-retry.lua"), Long.class);
+    private static final RedisScript<Long> ACQUIRE_LEADERSHIP_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/acquire-leadership.lua"), Long.class);
+    private static final RedisScript<Long> RESIGN_LEADERSHIP_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/resign-leadership.lua"), Long.class);
+    private static final RedisScript<Long> UPDATE_LIVE_JOB_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/update-live-job.lua"), Long.class);
+    private static final RedisScript<String> CANCEL_JOB_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/cancel-job.lua"), String.class);
+    private static final RedisScript<String> ATTACH_FOLLOWER_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/attach-follower.lua"), String.class);
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> RELEASE_FOLLOWERS_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/release-followers.lua"), List.class);
+    private static final RedisScript<String> RESERVE_IDEMPOTENCY_KEY_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/reserve-idempotency-key.lua"), String.class);
+    private static final RedisScript<Long> RELEASE_IDEMPOTENCY_KEY_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/release-idempotency-key.lua"), Long.class);
+    private static final RedisScript<Long> COMPLETE_PART_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/complete-part.lua"), Long.class);
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> PROMOTE_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/promote-retries.lua"), List.class);
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> DISPATCH_STAGED_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/dispatch-staged.lua"), List.class);
 
     private final StringRedisTemplate stringRedis;
-    // ObjectMapper (Jackson) converts Java objects to/from JSON strings for storage in Redis.
-    private final ObjectMapper objectMapper;
+    // Job payloads (retry set members, DLQ values) are encoded by JobCodec and written as raw
+    // bytes through this template; statuses and keys stay plain strings.
+    private final RedisTemplate<String, byte[]> binaryRedis;
+    private final JobCodec codec;
+    private final JobQueue queue;
+    // Recorded on the job hash as the worker that ran it — "pid@hostname", like the queue's
+    // consumer names, so a job record can be matched to the worker's logs.
+    private final String workerId = ManagementFactory.getRuntimeMXBean().getName();
 
     @Value("${job.result.ttl-minutes:60}")
     private long ttlMinutes;
 
-    public RedisJobStore(StringRedisTemplate stringRedis, ObjectMapper objectMapper) {
+    @Value("${job.queue.fair-share.enabled:false}")
+    private boolean fairShare;
+
+    // "fifo", or "sjf" to stage jobs cheapest first (see stagingScore).
+    @Value("${job.queue.scheduling:fifo}")
+    private String scheduling;
+
+    @Value("${job.queue.sjf.penalty-ms-per-cost:100}")
+    private long penaltyMsPerCost;
+
+    @Value("${job.queue.sjf.max-penalty-seconds:60}")
+    private long maxPenaltySeconds;
+
+    public RedisJobStore(StringRedisTemplate stringRedis, JobCodec codec, JobQueue queue) {
         this.stringRedis = stringRedis;
-        this.objectMapper = objectMapper;
+        this.binaryRedis = JobCodec.binaryTemplate(stringRedis.getConnectionFactory());
+        this.codec = codec;
+        this.queue = queue;
+    }
+
+    @PostConstruct
+    public void requireSingleNode() {
+        RedisConnectionFactory factory = stringRedis.getRequiredConnectionFactory();
+        boolean cluster = factory instanceof LettuceConnectionFactory lettuce && lettuce.isClusterAware();
+        if (!cluster) {
+            try {
+                Properties info = stringRedis.execute(
+                        (RedisCallback<Properties>) connection -> connection.serverCommands().info("cluster"));
+                cluster = info != null && "1".equals(info.getProperty("cluster_enabled"));
+            } catch (RedisConnectionFailureException e) {
+                // Redis isn't up yet; the check is repeated on the next start.
+            }
+        }
+        if (cluster) {
+            throw new IllegalStateException("Redis Cluster is not supported: the job scripts derive key names "
+                    + "from stored values and need every key on one node. Point the service at a single Redis "
+                    + "node (optionally with replicas or Sentinel).");
+        }
     }
 
-    // Stores a plain string with a TTL. Redis automatically deletes the key when the TTL
+    public boolean isReliable() {
+        return queue.isReliable();
+    }
+
+    public Duration leaseDuration() {
+        return queue.leaseDuration();
+    }
+
+    // Creates the job record and queues the job in one round-trip. MULTI/EXEC inside the
+    // pipeline makes the two writes atomic: a worker can never dequeue a job whose record
+    // does not exist yet, and a record never exists for a job that was not queued. Any
+    // previous record is replaced, so a job requeued from the DLQ starts a fresh one.
+    //
+    // The record is a hash with a TTL. Redis automatically deletes the key when the TTL
     // expires — no cron job or cleanup code needed. Clients polling for status will receive
     // null (→ 404) once the TTL elapses.
+    public void createJob(String jobId, String url) {
+        createJob(jobId, url, JobLane.INTERACTIVE);
+    }
+
+    public void createJob(String jobId, String url, JobLane lane) {
+        createJobs(List.of(new JobRequest(jobId, url, 1, lane)));
+    }
+
+    // Batch form of createJob: every record and push goes out in one pipelined MULTI/EXEC,
+    // so a batch of hundreds of jobs is still a single round-trip and is queued all-or-nothing.
+    // Each job is pushed to its own lane.
+    public void createJobs(List<JobRequest> jobs) {
+        createJobs(jobs, null);
+    }
+
+    public void createJobs(List<JobRequest> jobs, String tenant) {
+        submitJobs(jobs.stream().map(job -> new Submission(job, tenant)).toList());
+    }
+
+    // As createJobs, for jobs from any number of tenants (the SubmissionCoalescer mixes them).
+    //
+    // With fair share or shortest-job-first on, interactive and bulk jobs are not pushed to
+    // their lane but staged: added to a per-tenant sorted set, with the tenant joining the
+    // lane's ring if it was not already waiting. The leading StagedJobDispatcher then moves
+    // them onto the lane (see dispatchStaged). Fair share stages each job under its tenant,
+    // so however deep one tenant's backlog is, anyone else's job only waits behind the lane's
+    // short buffer and one turn of each other tenant. Shortest-job-first alone stages every
+    // job under one shared tenant, ordered by stagingScore.
+    public void submitJobs(List<Submission> submissions) {
+        if (submissions.isEmpty()) return;
+        String createdAt = String.valueOf(System.currentTimeMillis());
+        long ttl = ttlSeconds();
+        binaryRedis.executePipelined((RedisCallback<Object>) connection -> {
+            connection.multi();
+            int staged = 0;
+            for (Submission submission : submissions) {
+                JobRequest job = submission.job();
+                byte[] key = utf8(JOB_KEY.formatted(job.jobId()));
+                connection.keyCommands().del(key);
+                connection.hashCommands().hMSet(key, fields(
+                        "status", JobStatus.PENDING.name(),
+                        "url", job.url(),
+                        "createdAt", createdAt,
+                        "attempt", String.valueOf(job.attempt()),
+                        "cost", String.valueOf(submission.cost())));
+                connection.keyCommands().expire(key, ttl);
+                String tenant = stagingTenant(submission);
+                if (tenant == null) {
+                    queue.push(connection, job);
+                    continue;
+                }
+                String tag = job.lane().tag();
+                connection.zSetCommands().zAdd(utf8(STAGED_QUEUE_PREFIX.formatted(tag) + tenant),
+                        stagingScore(job, submission.cost(), staged++), codec.encode(job));
+                // NX keeps a waiting tenant's place in the ring; a newly active one gets turn 0
+                // and so goes to the front.
+                connection.zSetCommands().zAdd(utf8(STAGED_RING_KEY.formatted(tag)), 0, utf8(tenant),
+                        RedisZSetCommands.ZAddArgs.ifNotExists());
+            }
+            if (staged > 0) connection.publish(utf8(STAGED_WAKEUP_CHANNEL), utf8("1"));
+            connection.exec();
+            return null;
+        });
+    }
+
+    // Null when the job goes straight to its lane.
+    private String stagingTenant(Submission submission) {
+        if (!STAGED_LANES.contains(submission.job().lane())) return null;
+        String tenant = submission.tenant();
+        if (fairShare && tenant != null && !tenant.isBlank()) {
+            return tenant.length() > MAX_TENANT_LENGTH ? tenant.substring(0, MAX_TENANT_LENGTH) : tenant;
+        }
+        return shortestJobFirst() ? SHARED_TENANT : null;
+    }
+
+    private boolean shortestJobFirst() {
+        return "sjf".equalsIgnoreCase(scheduling);
+    }
+
+    // Staged jobs leave their tenant's sub-queue lowest score first. The score is the
+    // submission time in epoch ms, so on its own the sub-queue is FIFO; a job's position in
+    // its submission breaks ties within the same millisecond (a batch, a coalesced flush).
+    //
+    // Shortest-job-first adds a penalty of penalty-ms-per-cost for each unit of estimated
+    // cost: a job is ordered as if it had been submitted that much later, so cheap jobs
+    // overtake an expensive one submitted shortly before them. The penalty is also its
+    // aging bound — it is capped at max-penalty-seconds, after which nothing submitted later
+    // can overtake the job, so the most expensive job still runs within that long of its
+    // FIFO turn.
+    private double stagingScore(JobRequest job, int cost, int position) {
+        long penaltyMs = shortestJobFirst()
+                ? Math.min((long) cost * penaltyMsPerCost, maxPenaltySeconds * 1000)
+                : 0;
+        return job.enqueuedAt() + penaltyMs + Math.min(position, 999) / 1000.0;
+    }
+
+    // Deficit round-robin from the staged sub-queues onto each staged lane, topping the lane
+    // up to targetDepth waiting jobs. Each tenant in turn is granted `quantum` jobs, taken
+    // lowest score first; a turn cut short by a full lane resumes where it stopped on the
+    // next call, a finished turn sends the tenant to the back of the ring, and a drained
+    // tenant leaves it. Keeping the lanes shallow is what makes the staging order matter —
+    // the backlog stays in the sub-queues, where it is shared out fairly and cheapest first.
+    //
+    // Called only by the leading StagedJobDispatcher; each lane is one atomic script call.
+    public StagedDispatch dispatchStaged(int quantum, long targetDepth) {
+        Map<String, Long> waiting = queue.stats().waitingByLane();
+        int dispatched = 0;
+        int activeTenants = 0;
+        for (JobLane lane : STAGED_LANES) {
+            long room = Math.max(0, targetDepth - waiting.getOrDefault(lane.tag(), 0L));
+            List<?> result = stringRedis.execute(DISPATCH_STAGED_SCRIPT,
+                    List.of(STAGED_RING_KEY.formatted(lane.tag()), STAGED_DEFICIT_KEY.formatted(lane.tag()),
+                            queue.key(lane)),
+                    String.valueOf(room), String.valueOf(quantum),
+                    STAGED_QUEUE_PREFIX.formatted(lane.tag()), queue.backend());
+            if (result == null || result.size() < 2) continue;
+            dispatched += ((Number) result.get(0)).intValue();
+            activeTenants += ((Number) result.get(1)).intValue();
+        }
+        return new StagedDispatch(dispatched, activeTenants);
+    }
+
+    // Tenants with jobs staged for the lane, not counting the shared shortest-job-first
+    // tenant — read on every metrics scrape.
+    public long activeTenants(JobLane lane) {
+        String ring = STAGED_RING_KEY.formatted(lane.tag());
+        Long count = stringRedis.opsForZSet().zCard(ring);
+        if (count == null) return 0;
+        return stringRedis.opsForZSet().score(ring, SHARED_TENANT) == null ? count : count - 1;
+    }
+
     public void setStatus(String jobId, JobStatus status) {
-        stringRedis.opsForValue().set(
-                STATUS_KEY.formatted(jobId), status.name(), Duration.ofMinutes(ttlMinutes));
+        updateJob(jobId, "status", status.name());
     }
 
-    public JobStatus getStatus(String jobId) {
-        String val = stringRedis.opsForValue().get(STATUS_KEY.formatted(jobId));
-        return val == null ? null : JobStatus.valueOf(val);
+    // Called by the worker as it picks a job up. Each mark* method is a single round-trip, so
+    // recording timing data costs nothing over a status write.
+    //
+    // The worker's own status writes never overwrite a CANCELLED record (see
+    // update-live-job.lua), so a cancellation holds however late the worker notices it.
+    //
+    // markStarted doubles as the worker's liveness check. It writes nothing and returns null
+    // if the record has already expired: nobody can poll for or claim such a job's result, so
+    // after a backlog longer than the record TTL the worker drops it instead of processing it.
+    // It returns CANCELLED for a job cancelled while it waited, and PROCESSING otherwise.
+    public JobStatus markStarted(String jobId, int attempt) {
+        long updated = updateLiveJob(jobId,
+                "status", JobStatus.PROCESSING.name(),
+                "startedAt", String.valueOf(System.currentTimeMillis()),
+                "attempt", String.valueOf(attempt),
+                "worker", workerId);
+        if (updated == 0) return null;
+        return updated < 0 ? JobStatus.CANCELLED : JobStatus.PROCESSING;
     }
 
-    // LPUSH pushes to the left (head) of the list; BRPOP pops from the right (tail).
-    // This left-push / right-pop pattern makes the List behave as a FIFO queue so jobs
-    // are processed in the order they were submitted.
-    public void enqueue(String jobId, String url) {
+    // For a job handed back to the queue unfinished, e.g. at shutdown.
+    public void markPending(String jobId) {
+        updateLiveJob(jobId, "status", JobStatus.PENDING.name());
+    }
+
+    // For a job dropped because its client deadline passed; a no-op if the record is gone.
+    public void markExpired(String jobId) {
+        updateLiveJob(jobId,
+                "status", JobStatus.EXPIRED.name(),
+                "finishedAt", String.valueOf(System.currentTimeMillis()));
+    }
+
+    public void markCompleted(String jobId, long outputBytes) {
+        updateLiveJob(jobId,
+                "status", JobStatus.COMPLETED.name(),
+                "finishedAt", String.valueOf(System.currentTimeMillis()),
+                "outputBytes", String.valueOf(outputBytes));
+    }
+
+    // Records a job that finished the moment it was submitted, because its result was already
+    // cached (see ResultCache). It is never queued.
+    public void createCompletedJob(String jobId, String url, long outputBytes) {
+        String now = String.valueOf(System.currentTimeMillis());
+        updateJob(jobId,
+                "status", JobStatus.COMPLETED.name(),
+                "url", url,
+                "createdAt", now,
+                "finishedAt", now,
+                "outputBytes", String.valueOf(outputBytes));
+    }
+
+    // Cancels a job that has not finished yet, in one script call: the record becomes
+    // CANCELLED, a retry waiting in the retry set is removed, and if the job is running, its
+    // ID is published on CANCEL_CHANNEL so the worker running it stops (see JobCancellations).
+    // A job still queued stays there and is dropped by the worker that claims it, when
+    // markStarted returns CANCELLED.
+    //
+    // Returns CANCELLED, or the final status the job had already reached (it is then left as
+    // it was); null if there is no such job.
+    //
+    // Jobs that attached to the cancelled one as followers are someone else's and are not
+    // cancelled with it; they are queued to run on their own.
+    //
+    // A part of a split GIF is cancelled through its parent, along with every other part:
+    // cancelling it alone would leave the parent PROCESSING, waiting on a part that never
+    // completes. The parent's status is returned.
+    public JobStatus cancel(String jobId) {
+        Object parent = stringRedis.opsForHash().get(JOB_KEY.formatted(jobId), "parent");
+        if (parent != null) return cancel((String) parent);
+        String status = stringRedis.execute(CANCEL_JOB_SCRIPT,
+                List.of(JOB_KEY.formatted(jobId), RETRY_SET_KEY, HEAVY_RETRY_SET_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(ttlSeconds()),
+                CANCEL_CHANNEL, jobId,
+                JOB_KEY.formatted(GifPart.jobIdPrefix(jobId)), GifPart.jobIdPrefix(jobId));
+        if (JobStatus.CANCELLED.name().equals(status)) {
+            Object url = stringRedis.opsForHash().get(JOB_KEY.formatted(jobId), "url");
+            if (url != null) requeueFollowers(jobId, (String) url);
+        }
+        return status == null ? null : JobStatus.valueOf(status);
+    }
+
+    // Single-flight submission: when many clients submit the same URL at once (a popular
+    // image link being shared), only the first job downloads and processes it. The first
+    // submission takes an in-flight marker for the URL and is queued as usual: it is the
+    // leader. A submission of the same URL while the leader is unfinished becomes its
+    // follower: it gets a PENDING record naming the leader and is not queued.
+    //
+    // Once the leader has stored its result, the worker copies it to each follower and
+    // completes them (releaseFollowers). If the leader fails, expires or is cancelled
+    // instead, its followers are queued to run on their own (requeueFollowers), so one bad
+    // attempt doesn't fail everyone who asked.
+    //
+    // Returns the leader's ID if the job was attached to one, or null if the caller should
+    // queue the job itself as the new leader. URLs are matched after normalization (see
+    // inFlightKey).
+    public String attachFollower(String jobId, String url, JobLane lane, long deadline) {
+        return stringRedis.execute(ATTACH_FOLLOWER_SCRIPT,
+                List.of(inFlightKey(url), JOB_KEY.formatted(jobId)),
+                jobId, url, String.valueOf(System.currentTimeMillis()), String.valueOf(ttlSeconds()),
+                lane.name(), String.valueOf(deadline));
+    }
+
+    // Clears a finished leader's marker and returns its followers, which the caller now owns:
+    // it must either complete them or requeue them. Empty for jobs that never take a marker
+    // (uploads, GIF parts).
+    public List<String> releaseFollowers(String leaderId, String url) {
+        if (!url.startsWith("http")) return List.of();
+        List<?> followers = stringRedis.execute(RELEASE_FOLLOWERS_SCRIPT,
+                List.of(inFlightKey(url), FOLLOWERS_KEY.formatted(leaderId)), leaderId);
+        if (followers == null) return List.of();
+        return followers.stream().map(String.class::cast).toList();
+    }
+
+    // For a leader that will not produce a result: releases its followers and queues each
+    // one still waiting as a job of its own. A follower cancelled meanwhile is left alone.
+    public void requeueFollowers(String leaderId, String url) {
+        requeueFollowers(releaseFollowers(leaderId, url));
+    }
+
+    public void requeueFollowers(List<String> followers) {
+        List<JobRequest> jobs = new ArrayList<>(followers.size());
+        long now = System.currentTimeMillis();
+        for (String followerId : followers) {
+            List<Object> fields = stringRedis.opsForHash().multiGet(JOB_KEY.formatted(followerId),
+                    List.of("status", "url", "lane", "deadline"));
+            if (!JobStatus.PENDING.name().equals(fields.get(0)) || fields.get(1) == null) continue;
+            jobs.add(new JobRequest(followerId, (String) fields.get(1), 1,
+                    fields.get(2) == null ? JobLane.INTERACTIVE : JobLane.valueOf((String) fields.get(2)),
+                    now, fields.get(3) == null ? 0 : Long.parseLong((String) fields.get(3))));
+        }
+        if (!jobs.isEmpty()) createJobs(jobs);
+    }
+
+    // The same image, however its URL was written: scheme and host are case-insensitive, and
+    // a default port or a fragment never changes what is downloaded. The path and query are
+    // kept as they are, since a server may treat them case-sensitively. Hashed so any URL
+    // makes a short key.
+    static String inFlightKey(String url) {
+        String normalized = url;
         try {
-            String payload = objectMapper.writeValueAsString(new JobRequest(jobId, url, 1));
-            stringRedis.opsForList().leftPush(QUEUE_KEY, payload);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize job request", e);
+            URI uri = new URI(url.trim()).normalize();
+            if (uri.getScheme() != null && uri.getHost() != null) {
+                String scheme = uri.getScheme().toLowerCase();
+                int port = uri.getPort();
+                boolean defaultPort = port == -1
+                        || (port == 80 && scheme.equals("http"))
+                        || (port == 443 && scheme.equals("https"));
+                String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+                normalized = scheme + "://" + uri.getHost().toLowerCase() + (defaultPort ? "" : ":" + port)
+                        + path + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+            }
+        } catch (URISyntaxException e) {
+            // Matched as written.
+        }
+        return IN_FLIGHT_KEY.formatted(ResultCache.hash(normalized.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // An Idempotency-Key lets a client retry a submission whose response it never got without
+    // creating a second job. The key names the job the first attempt created, plus a
+    // fingerprint of what was submitted, so a key reused for a different image is refused
+    // rather than answered with someone else's job. It lives as long as a job record, since
+    // past that the job ID it returns would no longer resolve. Keys are scoped to the tenant
+    // that sent them, so one client's key can neither return nor block another client's job.
+    //
+    // Reserves the key for jobId before the job is created, so two concurrent attempts can't
+    // both create one. Returns null once reserved, or the job an earlier attempt reserved it
+    // for. Throws IdempotencyKeyConflictException if that attempt submitted something else.
+    public String reserveIdempotencyKey(String tenant, String key, String jobId, String fingerprint) {
+        String existing = stringRedis.execute(RESERVE_IDEMPOTENCY_KEY_SCRIPT,
+                List.of(idempotencyKey(tenant, key)), jobId + " " + fingerprint, String.valueOf(ttlSeconds()));
+        return existing == null ? null : idempotentJobId(existing, fingerprint);
+    }
+
+    // For an attempt that was rejected or failed after reserving its key: the client's retry
+    // must create the job rather than be told about one that was never made. Compare-and-delete
+    // in one script, so a key another attempt has reserved since is never freed by mistake.
+    public void releaseIdempotencyKey(String tenant, String key, String jobId) {
+        stringRedis.execute(RELEASE_IDEMPOTENCY_KEY_SCRIPT, List.of(idempotencyKey(tenant, key)), jobId + " ");
+    }
+
+    // Hashed, so a key of any content and length makes a short key name, and no tenant and key
+    // pair can collide with another by shifting characters across the boundary between them.
+    private static String idempotencyKey(String tenant, String key) {
+        String scoped = (tenant == null ? "" : tenant) + "\n" + key;
+        return IDEMPOTENCY_KEY.formatted(ResultCache.hash(scoped.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String idempotentJobId(String value, String fingerprint) {
+        int space = value.indexOf(' ');
+        if (!value.substring(space + 1).equals(fingerprint)) {
+            throw new IdempotencyKeyConflictException();
+        }
+        return value.substring(0, space);
+    }
+
+    // An Idempotency-Key sent again with a different URL or file.
+    public static class IdempotencyKeyConflictException extends IllegalStateException {
+        public IdempotencyKeyConflictException() {
+            super("Idempotency-Key was already used for a different request");
+        }
+    }
+
+    // Fans a started GIF out into frame-range parts that any worker can run (see GifPart).
+    // The parent stays PROCESSING and records how many parts it has; each part gets its own
+    // record and is pushed to the interactive lane, all in one MULTI/EXEC. Parts skip fair
+    // share and shortest-job-first staging: the parent has already had its turn.
+    //
+    // Parts inherit the parent's deadline. The parent's claim is acked by the caller as usual;
+    // from here on the parts carry the work, and completePart decides when it is done.
+    public void splitJob(JobRequest parent, List<GifPart> parts) {
+        String createdAt = String.valueOf(System.currentTimeMillis());
+        long ttl = ttlSeconds();
+        byte[] parentKey = utf8(JOB_KEY.formatted(parent.jobId()));
+        binaryRedis.executePipelined((RedisCallback<Object>) connection -> {
+            connection.multi();
+            connection.hashCommands().hSet(parentKey, utf8("parts"), utf8(String.valueOf(parts.size())));
+            connection.keyCommands().expire(parentKey, ttl);
+            connection.keyCommands().del(utf8(PARTS_DONE_KEY.formatted(parent.jobId())));
+            for (GifPart part : parts) {
+                byte[] key = utf8(JOB_KEY.formatted(part.jobId()));
+                connection.keyCommands().del(key);
+                connection.hashCommands().hMSet(key, fields(
+                        "status", JobStatus.PENDING.name(),
+                        "url", part.url(),
+                        "createdAt", createdAt,
+                        "attempt", "1",
+                        "parent", parent.jobId()));
+                connection.keyCommands().expire(key, ttl);
+                queue.push(connection, new JobRequest(part.jobId(), part.url(), 1, JobLane.INTERACTIVE,
+                        System.currentTimeMillis(), parent.deadline()));
+            }
+            connection.exec();
+            return null;
+        });
+    }
+
+    // Marks a part COMPLETED once its result is stored. Returns true to exactly the caller that
+    // should stitch the parent: every part is done and the parent is still PROCESSING. A retry
+    // of the last part gets true again if the parent was never completed, so a failed stitch is
+    // retried along with it (see complete-part.lua).
+    public boolean completePart(GifPart part) {
+        Long stitch = stringRedis.execute(COMPLETE_PART_SCRIPT,
+                List.of(JOB_KEY.formatted(part.parentId()), PARTS_DONE_KEY.formatted(part.parentId()),
+                        JOB_KEY.formatted(part.jobId())),
+                String.valueOf(part.index()), String.valueOf(System.currentTimeMillis()),
+                String.valueOf(ttlSeconds()));
+        return stitch != null && stitch == 1;
+    }
+
+    // A part that has run out of attempts fails the whole GIF: the parent is marked FAILED and
+    // dead-lettered under its own ID and source URL, so requeueing it from the DLQ starts the
+    // GIF over rather than rerunning one frame range. The part itself gets no DLQ entry, and
+    // its record is only marked FAILED while live, like any other worker write.
+    // Does nothing to the parent if it has already finished, been cancelled or expired.
+    public void failSplitJob(GifPart part, int attempts, String error) {
+        updateLiveJob(part.jobId(),
+                "status", JobStatus.FAILED.name(),
+                "finishedAt", String.valueOf(System.currentTimeMillis()));
+        JobRecord parent = getJob(part.parentId());
+        if (parent == null || parent.status() != JobStatus.PROCESSING) return;
+        markFailed(part.parentId(), parent.url(), attempts,
+                "Frames " + part.fromFrame() + "-" + part.toFrame() + " failed: " + error);
+    }
+
+    // Marks the job FAILED, then writes its DLQ entry. Its followers, if any, are queued to
+    // try for themselves. A record that has expired or been cancelled is left as it is (see
+    // update-live-job.lua) and gets neither: nobody is waiting on it any more, and a cancelled
+    // job's followers were already dealt with by the cancel.
+    public void markFailed(String jobId, String url, int attempts, String error) {
+        long now = System.currentTimeMillis();
+        long updated = updateLiveJob(jobId,
+                "status", JobStatus.FAILED.name(),
+                "finishedAt", String.valueOf(now));
+        if (updated != 1) return;
+        dlq().put(DLQ_KEY, jobId, codec.encode(new DlqEntry(jobId, url, attempts, now / 1000, error)));
+        requeueFollowers(jobId, url);
+    }
+
+    // Hands a job the worker has started to another lane (an animated GIF picked up by a
+    // general thread goes to HEAVY). The caller's claim is acked, the record flips back to
+    // PENDING and the job is pushed in one script (move-job.lua / move-stream-job.lua), so a
+    // crash part-way can't lose the job, and it is never visible as queued while still marked
+    // PROCESSING.
+    //
+    // Returns PENDING once moved; the claim is gone then and the caller must not ack it again.
+    // Leases are keyed by job ID, and an idle thread on the new lane claims the job the moment
+    // it lands, so a later ack could release that thread's lease instead. Nothing is moved if
+    // the record has expired (null) or been cancelled (CANCELLED), like markStarted, nor if
+    // the reaper already took the claim (PROCESSING — the job is someone else's now); the
+    // caller still holds its claim in the first two cases and finishes the job as usual.
+    public JobStatus moveToLane(JobRequest job, JobLane lane) {
+        JobRequest moved = new JobRequest(job.jobId(), job.url(), job.attempt(), lane,
+                System.currentTimeMillis(), job.deadline());
+        long result = queue.move(moved, JOB_KEY.formatted(job.jobId()), ttlSeconds());
+        if (result == 0) return null;
+        if (result == -1) return JobStatus.CANCELLED;
+        return result < 0 ? JobStatus.PROCESSING : JobStatus.PENDING;
+    }
+
+    // A follower still waiting on its leader reads as PROCESSING while the leader runs.
+    public JobStatus getStatus(String jobId) {
+        List<Object> fields = stringRedis.opsForHash().multiGet(JOB_KEY.formatted(jobId), List.of("status", "leader"));
+        Object val = fields.get(0);
+        if (val == null) val = stringRedis.opsForValue().get(LEGACY_STATUS_KEY.formatted(jobId));
+        if (val == null) return null;
+        JobStatus status = JobStatus.valueOf((String) val);
+        if (status == JobStatus.PENDING && fields.get(1) != null && JobStatus.PROCESSING.name().equals(
+                stringRedis.opsForHash().get(JOB_KEY.formatted((String) fields.get(1)), "status"))) {
+            return JobStatus.PROCESSING;
+        }
+        return status;
+    }
+
+    // The whole job record, or null once it has expired (or never existed).
+    public JobRecord getJob(String jobId) {
+        Map<Object, Object> hash = stringRedis.opsForHash().entries(JOB_KEY.formatted(jobId));
+        if (hash.isEmpty() || hash.get("status") == null) return null;
+        return new JobRecord(
+                jobId,
+                JobStatus.valueOf((String) hash.get("status")),
+                (String) hash.get("url"),
+                instant(hash.get("createdAt")),
+                instant(hash.get("startedAt")),
+                instant(hash.get("finishedAt")),
+                hash.get("attempt") == null ? 0 : Integer.parseInt((String) hash.get("attempt")),
+                (String) hash.get("worker"),
+                hash.get("outputBytes") == null ? null : Long.valueOf((String) hash.get("outputBytes")),
+                hash.get("cost") == null ? null : Integer.valueOf((String) hash.get("cost")));
+    }
+
+    // Returns 1 if the record was updated, 0 if it has expired, -1 if it was cancelled.
+    private long updateLiveJob(String jobId, String... fieldsAndValues) {
+        Object[] args = new Object[fieldsAndValues.length + 1];
+        args[0] = String.valueOf(ttlSeconds());
+        System.arraycopy(fieldsAndValues, 0, args, 1, fieldsAndValues.length);
+        Long updated = stringRedis.execute(UPDATE_LIVE_JOB_SCRIPT, List.of(JOB_KEY.formatted(jobId)), args);
+        return updated == null ? 0 : updated;
+    }
+
+    private void updateJob(String jobId, String... fieldsAndValues) {
+        byte[] key = utf8(JOB_KEY.formatted(jobId));
+        Map<byte[], byte[]> fields = fields(fieldsAndValues);
+        binaryRedis.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hMSet(key, fields);
+            connection.keyCommands().expire(key, ttlSeconds());
+            return null;
+        });
+    }
+
+    private long ttlSeconds() {
+        return Duration.ofMinutes(ttlMinutes).toSeconds();
+    }
+
+    private static Map<byte[], byte[]> fields(String... fieldsAndValues) {
+        Map<byte[], byte[]> fields = new LinkedHashMap<>();
+        for (int i = 0; i < fieldsAndValues.length; i += 2) {
+            fields.put(utf8(fieldsAndValues[i]), utf8(fieldsAndValues[i + 1]));
         }
+        return fields;
+    }
+
+    private static Instant instant(Object epochMillis) {
+        return epochMillis == null ? null : Instant.ofEpochMilli(Long.parseLong((String) epochMillis));
+    }
+
+    // Queues a job without touching its record — createJob is the normal entry point.
+    // Within a lane, jobs are processed in the order they were submitted (FIFO) with either
+    // backend.
+    public void enqueue(String jobId, String url) {
+        enqueue(jobId, url, JobLane.INTERACTIVE);
+    }
+
+    public void enqueue(String jobId, String url, JobLane lane) {
+        queue.push(new JobRequest(jobId, url, 1, lane));
     }
 
     // Schedules a retry by adding the job to the sorted set with score = fire-at epoch second.
     // Redis Sorted Sets keep members ordered by score — querying "score <= now" efficiently
     // finds every job whose delay has elapsed without scanning the full set.
-    // The RetryPromoter thread moves due entries back to jobs:queue every 5 seconds.
+    // The leading RetryPromoter sleeps until the earliest score; if this retry becomes the new
+    // earliest, the script publishes on RETRY_WAKEUP_CHANNEL so the leader re-plans its sleep.
+    // The same script call sets the job back to PENDING. A job cancelled while its attempt
+    // was running, or whose record has expired, is not rescheduled.
     public void scheduleRetry(String jobId, String url, int attempt, long delaySeconds) {
-        try {
-            String payload = objectMapper.writeValueAsString(new JobRequest(jobId, url, attempt));
-            double fireAt = System.currentTimeMillis() / 1000.0 + delaySeconds;
-            stringRedis.opsForZSet().add(RETRY_SET_KEY, payload, fireAt);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize retry request", e);
-        }
+        scheduleRetry(jobId, url, attempt, delaySeconds, 0);
     }
 
-    // Moves all due retries (score <= now) from the retry sorted set into the work queue.
-    // Returns the number of jobs promoted.
-    public int promoteRetries() {
+    // deadline is carried over from the failed attempt (0 for none).
+    public void scheduleRetry(String jobId, String url, int attempt, long delaySeconds, long deadline) {
+        scheduleRetry(jobId, url, attempt, delaySeconds, deadline, JobLane.INTERACTIVE);
+    }
+
+    // lane is the lane the failed attempt ran from. A heavy-lane job is retried on the heavy
+    // lane; every other job on the retry lane.
+    public void scheduleRetry(String jobId, String url, int attempt, long delaySeconds, long deadline,
+                              JobLane lane) {
+        long fireAtMillis = System.currentTimeMillis() + delaySeconds * 1000;
+        boolean heavy = lane == JobLane.HEAVY;
+        // The retry counts as enqueued once it is due, so the wait-time metric for the retry
+        // lane measures time spent behind other work, not the backoff delay.
+        byte[] payload = codec.encode(new JobRequest(jobId, url, attempt, heavy ? JobLane.HEAVY : JobLane.RETRY,
+                fireAtMillis, deadline));
+        double fireAt = fireAtMillis / 1000.0;
+        binaryRedis.execute(SCHEDULE_RETRY_SCRIPT,
+                List.of(heavy ? HEAVY_RETRY_SET_KEY : RETRY_SET_KEY, JOB_KEY.formatted(jobId)),
+                payload, utf8(String.valueOf(fireAt)), utf8(RETRY_WAKEUP_CHANNEL),
+                utf8(String.valueOf(ttlSeconds())));
+    }
+
+    // Moves up to `limit` due retries (score <= now) from the retry sorted sets into the retry
+    // and heavy lanes in a single atomic script call — one round-trip instead of 2N+1, and no window
+    // in which two promoters can both read the same entry before either removes it.
+    // Also reports when the earliest remaining retry is due, so the caller can sleep until
+    // exactly then; a full batch means more are already due and it should call again.
+    public RetryPromotion promoteRetries(int limit) {
         double now = System.currentTimeMillis() / 1000.0;
-        Set<String> due = stringRedis.opsForZSet().rangeByScore(RETRY_SET_KEY, 0, now);
-        if (due == null || due.isEmpty()) return 0;
-        for (String payload : due) {
-            stringRedis.opsForList().leftPush(QUEUE_KEY, payload);
-            stringRedis.opsForZSet().remove(RETRY_SET_KEY, payload);
-        }
-        return due.size();
+        List<?> result = stringRedis.execute(PROMOTE_SCRIPT,
+                List.of(RETRY_SET_KEY, queue.key(JobLane.RETRY), HEAVY_RETRY_SET_KEY, queue.key(JobLane.HEAVY)),
+                String.valueOf(now), String.valueOf(limit), queue.backend());
+        if (result == null || result.isEmpty()) return new RetryPromotion(0, null);
+        int promoted = ((Number) result.get(0)).intValue();
+        Instant nextDueAt = result.size() > 1
+                ? Instant.ofEpochMilli((long) (Double.parseDouble((String) result.get(1)) * 1000))
+                : null;
+        return new RetryPromotion(promoted, nextDueAt);
     }
 
-    // BRPOP (blocking right-pop) makes the worker thread sleep inside Redis until a job
-    // arrives, rather than busy-polling in a tight loop. The timeout parameter caps how
-    // long the thread blocks — after which it returns null so the caller can check
-    // whether it should shut down gracefully.
+    // Leader election for work that should run on exactly one instance at a time. The leader
+    // key holds the candidate's ID with a TTL; the holder calls this again before the TTL runs
+    // out to stay leader. If it dies, the key expires and the next candidate to call wins.
+    public boolean tryAcquireLeadership(String role, String candidateId, Duration lease) {
+        Long acquired = stringRedis.execute(ACQUIRE_LEADERSHIP_SCRIPT,
+                List.of(LEADER_KEY.formatted(role)), candidateId, String.valueOf(lease.toMillis()));
+        return acquired != null && acquired == 1;
+    }
+
+    // Called on clean shutdown so another instance can take over immediately instead of
+    // waiting for the lease to expire.
+    public void resignLeadership(String role, String candidateId) {
+        stringRedis.execute(RESIGN_LEADERSHIP_SCRIPT, List.of(LEADER_KEY.formatted(role)), candidateId);
+    }
+
+    // Takes whatever is waiting without blocking (RPOP, or LMOVE in reliable mode, or
+    // XREADGROUP with streams), and only when every lane is empty makes the worker thread
+    // sleep inside Redis until a job arrives (BRPOP across the lanes, BLMOVE on the lead lane,
+    // or a blocking XREADGROUP), rather than busy-polling in a tight loop. The timeout caps
+    // how long the thread blocks — after which it returns null so the caller can check whether
+    // it should shut down gracefully.
     public JobRequest dequeue(Duration timeout) {
-        String payload = stringRedis.opsForList().rightPop(QUEUE_KEY, timeout);
-        if (payload == null) return null;
-        try {
-            return objectMapper.readValue(payload, JobRequest.class);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to deserialize job request", e);
-        }
+        List<JobRequest> batch = dequeueBatch(1, timeout);
+        return batch.isEmpty() ? null : batch.get(0);
+    }
+
+    // Claims up to maxJobs in one round-trip, blocking only when the queue is empty so an
+    // idle worker still sleeps inside Redis instead of polling. In reliable mode each
+    // claimed job holds a lease; the LeaseReaper puts a job back on the queue if its lease
+    // is not renewed (see renewLeases) or acked in time. Lanes are polled in strict
+    // priority order.
+    public List<JobRequest> dequeueBatch(int maxJobs, Duration timeout) {
+        return dequeueBatch(maxJobs, timeout, List.of(JobLane.values()));
+    }
+
+    // As above, polling the lanes in the given order — the worker pool passes the order its
+    // LanePolicy picked for this claim.
+    public List<JobRequest> dequeueBatch(int maxJobs, Duration timeout, List<JobLane> lanes) {
+        return queue.claim(maxJobs, timeout, lanes);
+    }
+
+    // Hands claimed-but-unstarted jobs back to the queue, e.g. jobs still sitting in a
+    // worker's local buffer when it shuts down.
+    public void release(List<JobRequest> jobs) {
+        if (jobs.isEmpty()) return;
+        queue.release(jobs);
+    }
+
+    // Releases the lease once the worker is finished with a job, whatever the outcome —
+    // a retry or DLQ entry has already been written by then, so the queued copy is no
+    // longer needed. No-op when reliable mode is off.
+    public void ack(String jobId) {
+        queue.ack(jobId);
+    }
+
+    // Pushes the lease expiry of every in-flight job forward in one round-trip however many
+    // jobs this process is running.
+    public void renewLeases(Collection<String> jobIds) {
+        if (!queue.isReliable() || jobIds.isEmpty()) return;
+        queue.renewLeases(jobIds);
+    }
+
+    // Moves jobs whose lease has expired back onto the queue. Returns the number requeued.
+    // The limit bounds the time spent inside one script call so a mass expiry (a whole node
+    // lost) is drained over a few calls instead of blocking Redis in one long script.
+    public int reapExpiredLeases(int limit) {
+        return queue.reapExpiredLeases(limit);
+    }
+
+    // Waiting and in-flight job counts, with in-flight jobs broken down by consumer
+    // (pid@hostname) — read on every metrics scrape and by the admin API.
+    public QueueStats queueStats() {
+        return queue.stats();
     }
 
     // Dead Letter Queue: jobs that have exhausted all retry attempts land here.
     // A Hash (field → value map) is used so the admin API can look up or delete a
     // specific job by ID in O(1) without scanning every failed entry.
     public void pushToDlq(String jobId, String url, int attempts, String error) {
-        try {
-            DlqEntry entry = new DlqEntry(jobId, url, attempts, Instant.now().getEpochSecond(), error);
-            stringRedis.opsForHash().put(DLQ_KEY, jobId, objectMapper.writeValueAsString(entry));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize DLQ entry", e);
-        }
+        DlqEntry entry = new DlqEntry(jobId, url, attempts, Instant.now().getEpochSecond(), error);
+        dlq().put(DLQ_KEY, jobId, codec.encode(entry));
     }
 
     public List<DlqEntry> listDlq() {
-        Map<Object, Object> entries = stringRedis.opsForHash().entries(DLQ_KEY);
-        return entries.values().stream()
-                .map(v -> {
-                    try {
-                        return objectMapper.readValue((String) v, DlqEntry.class);
-                    } catch (JsonProcessingException e) {
-                        throw new RuntimeException("Failed to deserialize DLQ entry", e);
-                    }
-                })
+        return dlq().values(DLQ_KEY).stream()
+                .map(codec::decodeDlqEntry)
                 .sorted(Comparator.comparingLong(DlqEntry::failedAt).reversed())
                 .toList();
     }
 
     // Requeuing resets the attempt counter to 1 so the job gets a fresh set of retries.
     public boolean requeueFromDlq(String jobId) {
-        String raw = (String) stringRedis.opsForHash().get(DLQ_KEY, jobId);
+        byte[] raw = dlq().get(DLQ_KEY, jobId);
         if (raw == null) return false;
-        try {
-            DlqEntry entry = objectMapper.readValue(raw, DlqEntry.class);
-            stringRedis.opsForHash().delete(DLQ_KEY, jobId);
-            String payload = objectMapper.writeValueAsString(new JobRequest(jobId, entry.url(), 1));
-            stringRedis.opsForList().leftPush(QUEUE_KEY, payload);
-            setStatus(jobId, JobStatus.PENDING);
-            return true;
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to requeue from DLQ", e);
-        }
+        DlqEntry entry = codec.decodeDlqEntry(raw);
+        dlq().delete(DLQ_KEY, jobId);
+        createJob(jobId, entry.url(), JobLane.RETRY);
+        return true;
     }
 
     public boolean removeFromDlq(String jobId) {
-        Long deleted = stringRedis.opsForHash().delete(DLQ_KEY, jobId);
+        Long deleted = dlq().delete(DLQ_KEY, jobId);
         return deleted != null && deleted > 0;
     }
 
+    private HashOperations<String, String, byte[]> dlq() {
+        return binaryRedis.opsForHash();
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
     // Java records are immutable data carriers — the compiler auto-generates the constructor,
-    // getters (jobId(), url(), etc.), equals, hashCode, and toString. Jackson serializes them
-    // to/from JSON without any extra annotations.
-    public record JobRequest(String jobId, String url, int attempt) {}
+    // getters (jobId(), url(), etc.), equals, hashCode, and toString. JobCodec stores them in
+    // Redis; Jackson still serializes them to JSON for the admin API without extra annotations.
+    //
+    // lane decides which queue the job is pushed to; enqueuedAt (epoch ms, 0 if unknown) is
+    // when it became runnable, for the queue wait-time metric. deadline (epoch ms, 0 for none)
+    // is when the client stops caring about the result; a worker drops the job unprocessed
+    // once it has passed.
+    public record JobRequest(String jobId, String url, int attempt, JobLane lane, long enqueuedAt,
+                             long deadline) {
+        public JobRequest {
+            // Payloads written before lanes existed carry no lane.
+            if (lane == null) lane = JobLane.INTERACTIVE;
+        }
+
+        public JobRequest(String jobId, String url, int attempt, JobLane lane, long enqueuedAt) {
+            this(jobId, url, attempt, lane, enqueuedAt, 0);
+        }
+
+        public JobRequest(String jobId, String url, int attempt, JobLane lane) {
+            this(jobId, url, attempt, lane, System.currentTimeMillis());
+        }
+
+        public JobRequest(String jobId, String url, int attempt) {
+            this(jobId, url, attempt, JobLane.INTERACTIVE);
+        }
+
+        public boolean expired(long nowMillis) {
+            return deadline > 0 && nowMillis >= deadline;
+        }
+    }
+
+    // Timestamps and outputBytes are null until the job reaches the corresponding stage;
+    // cost (the estimate it was scheduled with) is null on records written before it existed.
+    public record JobRecord(String jobId, JobStatus status, String url, Instant createdAt,
+                            Instant startedAt, Instant finishedAt, int attempt, String worker,
+                            Long outputBytes, Integer cost) {}
+
+    // tenant is who the job is shared out under when fair share is on (null: not shared out).
+    // cost is the job's estimated processing cost in units of a typical still avatar.
+    public record Submission(JobRequest job, String tenant, int cost) {
+        public Submission(JobRequest job, String tenant) {
+            this(job, tenant, 1);
+        }
+    }
+
+    // activeTenants counts tenants still waiting across the staged lanes after the dispatch.
+    public record StagedDispatch(int dispatched, int activeTenants) {}
+
+    // nextDueAt is null when the retry set is empty after the promotion.
+    public record RetryPromotion(int promoted, Instant nextDueAt) {}
+
+    // waiting is the total across lanes; waitingByLane is keyed by lane tag in priority order.
+    // inFlightByConsumer is empty for the list backend unless reliable mode is on.
+    public record QueueStats(String backend, long waiting, Map<String, Long> waitingByLane,
+                             long inFlight, Map<String, Long> inFlightByConsumer) {}
 
     public record DlqEntry(String jobId, String url, int attempts, long failedAt, String error) {}
 }
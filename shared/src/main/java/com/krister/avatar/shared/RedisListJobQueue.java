@@ -0,0 +1,357 @@
+package com.krister.avatar.shared;
+
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import com.krister.avatar.shared.RedisJobStore.QueueStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisListCommands.Direction;
+import org.springframework.data.redis.connection.RedisZSetCommands.ZAddArgs;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// The default queue backend: a Redis List per lane, each used as a FIFO.
+//
+//   jobs:queue, jobs:queue:retry, jobs:queue:bulk → List (LPUSH/BRPOP — FIFO work queue per lane)
+//
+// In reliable-queue mode (job.queue.reliable=true) more structures track in-flight work:
+//
+//   jobs:processing:{consumer}  → List   (LMOVE target — jobs this process has taken)
+//   jobs:leases                 → Sorted Set (jobId → lease expiry epoch ms)
+//   jobs:lease-payloads/-owners → Hash   (jobId → raw payload / processing list, for ack and reaping)
+//   jobs:lease-lanes            → Hash   (jobId → lane list, so reaped and released jobs go home)
+//   jobs:consumers              → Sorted Set (consumer → last heartbeat epoch ms)
+//
+// Moving a job into the processing list and recording its lease are two round-trips. A
+// process that dies between them leaves a payload with no lease, which the lease reaper
+// never sees. So each process also heartbeats in jobs:consumers whenever it claims or renews,
+// and the reaper empties the processing list of any process silent for a whole lease period.
+//
+// A lease belongs to the processing list that claimed it: ack, renew and release only touch
+// leases this process owns. Once a lease is reaped and the job claimed elsewhere, a stalled
+// original worker finishing late can't ack away the new owner's claim.
+@Component
+@ConditionalOnProperty(name = "job.queue.backend", havingValue = "list", matchIfMissing = true)
+public class RedisListJobQueue implements JobQueue {
+
+    private static final String PROCESSING_KEY = "jobs:processing:%s";
+    private static final String LEASES_KEY = "jobs:leases";
+    private static final String LEASE_PAYLOADS_KEY = "jobs:lease-payloads";
+    private static final String LEASE_OWNERS_KEY = "jobs:lease-owners";
+    private static final String LEASE_LANES_KEY = "jobs:lease-lanes";
+    private static final String CONSUMERS_KEY = "jobs:consumers";
+    private static final int REAP_CONSUMERS_LIMIT = 10;
+
+    // Multi-step lease bookkeeping runs as Lua scripts so each step is atomic on the Redis
+    // server — a reaper can never observe a half-written lease or a half-acked job.
+    private static final RedisScript<Long> ACK_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/ack-job.lua"), Long.class);
+    private static final RedisScript<Long> REAP_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/reap-leases.lua"), Long.class);
+    private static final RedisScript<Long> RELEASE_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/release-jobs.lua"), Long.class);
+    private static final RedisScript<Long> RENEW_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/renew-leases.lua"), Long.class);
+    private static final RedisScript<Long> REAP_CONSUMER_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/reap-consumer.lua"), Long.class);
+    private static final RedisScript<Long> MOVE_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/move-job.lua"), Long.class);
+
+    private final StringRedisTemplate stringRedis;
+    // Payloads are JobCodec bytes; the lease scripts only ever handle job IDs and move
+    // payloads around server-side, so they keep using the string template.
+    private final RedisTemplate<String, byte[]> binaryRedis;
+    private final JobCodec codec;
+    // Identifies this process's processing list. "pid@hostname" is unique per JVM, so two
+    // worker containers (or a worker and the API's in-process pool) never share a list.
+    private final String consumerId = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Value("${job.queue.reliable:false}")
+    private boolean reliable;
+
+    @Value("${job.queue.lease-seconds:30}")
+    private long leaseSeconds;
+
+    public RedisListJobQueue(StringRedisTemplate stringRedis, JobCodec codec) {
+        this.stringRedis = stringRedis;
+        this.binaryRedis = JobCodec.binaryTemplate(stringRedis.getConnectionFactory());
+        this.codec = codec;
+    }
+
+    @Override
+    public String backend() {
+        return "list";
+    }
+
+    @Override
+    public String key(JobLane lane) {
+        return lane.key(RedisJobStore.QUEUE_KEY);
+    }
+
+    @Override
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    @Override
+    public Duration leaseDuration() {
+        return Duration.ofSeconds(leaseSeconds);
+    }
+
+    // LPUSH pushes to the left (head) of the list; BRPOP pops from the right (tail).
+    // This left-push / right-pop pattern makes the List behave as a FIFO queue so jobs
+    // are processed in the order they were submitted.
+    @Override
+    public void push(JobRequest job) {
+        binaryRedis.opsForList().leftPush(key(job.lane()), codec.encode(job));
+    }
+
+    @Override
+    public void push(RedisConnection connection, JobRequest job) {
+        connection.listCommands().lPush(utf8(key(job.lane())), codec.encode(job));
+    }
+
+    // When a lane has a backlog, RPOP with a count returns as many jobs as are available
+    // without blocking. Lanes are tried in the order given until the batch is full, so a
+    // lower lane is only read once every lane ahead of it has run dry — with the lead lane
+    // backlogged that is still a single round-trip. Only when every lane is empty does the
+    // call fall back to a blocking pop for a single job, so an idle worker still sleeps
+    // inside Redis instead of polling: BRPOP takes several keys and pops from the first
+    // non-empty one, which is exactly lane priority in one command.
+    //
+    // In reliable mode LMOVE/BLMOVE are used instead: each job is moved atomically into
+    // this process's processing list rather than removed, so it still exists in Redis if
+    // the worker dies mid-job. Leases for the claimed jobs are recorded straight after;
+    // the LeaseReaper puts a job back on its lane if its lease is not renewed (see
+    // renewLeases) or acked in time. BLMOVE only watches one key, so reliable mode always
+    // sweeps every lane first (even for a single job) and only then blocks on the lead lane;
+    // an idle worker notices a job arriving on another lane on its next poll.
+    @Override
+    public List<JobRequest> claim(int maxJobs, Duration timeout, List<JobLane> lanes) {
+        if (reliable) heartbeat();
+        List<byte[]> payloads = new ArrayList<>();
+        if (maxJobs > 1 || reliable) {
+            for (JobLane lane : lanes) {
+                payloads.addAll(popAvailable(lane, maxJobs - payloads.size()));
+                if (payloads.size() >= maxJobs) break;
+            }
+        }
+        if (payloads.isEmpty()) {
+            byte[] payload = reliable ? blockingMove(lanes.get(0), timeout) : blockingPop(lanes, timeout);
+            if (payload == null) return List.of();
+            payloads = List.of(payload);
+        }
+
+        List<JobRequest> jobs = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads) {
+            jobs.add(codec.decodeJob(payload));
+        }
+        if (reliable) recordLeases(jobs, payloads);
+        return jobs;
+    }
+
+    // BRPOP's timeout is in whole seconds, and 0 means "forever" to Redis; a zero timeout
+    // here means "don't wait", so it becomes a plain RPOP sweep instead.
+    private byte[] blockingPop(List<JobLane> lanes, Duration timeout) {
+        if (timeout.isZero()) {
+            for (JobLane lane : lanes) {
+                byte[] payload = binaryRedis.opsForList().rightPop(key(lane));
+                if (payload != null) return payload;
+            }
+            return null;
+        }
+        byte[][] keys = lanes.stream().map(lane -> utf8(key(lane))).toArray(byte[][]::new);
+        int seconds = (int) Math.max(1, timeout.toSeconds());
+        List<byte[]> popped = binaryRedis.execute((RedisCallback<List<byte[]>>) connection ->
+                connection.listCommands().bRPop(seconds, keys));
+        // BRPOP replies with [key, value].
+        return popped == null || popped.size() < 2 ? null : popped.get(1);
+    }
+
+    private byte[] blockingMove(JobLane lane, Duration timeout) {
+        return binaryRedis.opsForList().move(key(lane), Direction.RIGHT,
+                processingKey(), Direction.LEFT, timeout);
+    }
+
+    // Non-blocking multi-pop from one lane. Plain mode uses RPOP's COUNT argument (Redis
+    // 6.2+); reliable mode pipelines one LMOVE per slot, and the nulls for slots past the
+    // end of the lane are simply dropped.
+    private List<byte[]> popAvailable(JobLane lane, int maxJobs) {
+        if (!reliable) {
+            List<byte[]> popped = binaryRedis.opsForList().rightPop(key(lane), maxJobs);
+            return popped == null ? List.of() : popped;
+        }
+        byte[] source = utf8(key(lane));
+        byte[] destination = utf8(processingKey());
+        List<Object> moved = binaryRedis.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < maxJobs; i++) {
+                connection.listCommands().lMove(source, destination, Direction.RIGHT, Direction.LEFT);
+            }
+            return null;
+        });
+        List<byte[]> payloads = new ArrayList<>(moved.size());
+        for (Object payload : moved) {
+            if (payload != null) payloads.add((byte[]) payload);
+        }
+        return payloads;
+    }
+
+    // Records a lease for each claimed job: expiry in jobs:leases, plus the raw payload,
+    // processing list and lane it came from so ack and the reaper can find it again by job ID.
+    private void recordLeases(List<JobRequest> jobs, List<byte[]> payloads) {
+        double expiry = leaseExpiry();
+        byte[] owner = utf8(processingKey());
+        binaryRedis.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < jobs.size(); i++) {
+                byte[] jobId = utf8(jobs.get(i).jobId());
+                connection.zSetCommands().zAdd(utf8(LEASES_KEY), expiry, jobId, ZAddArgs.empty());
+                connection.hashCommands().hSet(utf8(LEASE_PAYLOADS_KEY), jobId, payloads.get(i));
+                connection.hashCommands().hSet(utf8(LEASE_OWNERS_KEY), jobId, owner);
+                connection.hashCommands().hSet(utf8(LEASE_LANES_KEY), jobId, utf8(key(jobs.get(i).lane())));
+            }
+            return null;
+        });
+    }
+
+    // Released jobs go to the tail of their lane so they are the next jobs any worker picks up
+    // from it.
+    @Override
+    public void release(List<JobRequest> jobs) {
+        if (jobs.isEmpty()) return;
+        if (reliable) {
+            stringRedis.execute(RELEASE_SCRIPT,
+                    List.of(LEASES_KEY, LEASE_PAYLOADS_KEY, LEASE_OWNERS_KEY, key(JobLane.INTERACTIVE), LEASE_LANES_KEY,
+                            processingKey()),
+                    jobs.stream().map(JobRequest::jobId).toArray(Object[]::new));
+            return;
+        }
+        binaryRedis.executePipelined((RedisCallback<Object>) connection -> {
+            for (JobRequest job : jobs) {
+                connection.listCommands().rPush(utf8(key(job.lane())), codec.encode(job));
+            }
+            return null;
+        });
+    }
+
+    // No-op when reliable mode is off — a plain BRPOP already removed the job.
+    @Override
+    public void ack(String jobId) {
+        if (!reliable) return;
+        stringRedis.execute(ACK_SCRIPT,
+                List.of(LEASES_KEY, LEASE_PAYLOADS_KEY, LEASE_OWNERS_KEY, LEASE_LANES_KEY, processingKey()), jobId);
+    }
+
+    @Override
+    public long move(JobRequest moved, String recordKey, long recordTtlSeconds) {
+        Long result = binaryRedis.execute(MOVE_SCRIPT,
+                List.of(recordKey, key(moved.lane()), LEASES_KEY, LEASE_PAYLOADS_KEY, LEASE_OWNERS_KEY,
+                        LEASE_LANES_KEY, processingKey()),
+                utf8(moved.jobId()), codec.encode(moved), utf8(String.valueOf(recordTtlSeconds)),
+                utf8(reliable ? "1" : "0"));
+        return result == null ? 0 : result;
+    }
+
+    // Called on a timer even with nothing claimed, so it doubles as the idle heartbeat. All
+    // leases go out in one script call; only those this process still owns are extended.
+    @Override
+    public void renewLeases(Collection<String> jobIds) {
+        if (!reliable) return;
+        heartbeat();
+        if (jobIds.isEmpty()) return;
+        List<String> args = new ArrayList<>(jobIds.size() + 2);
+        args.add(processingKey());
+        args.add(String.valueOf(leaseExpiry()));
+        args.addAll(jobIds);
+        stringRedis.execute(RENEW_SCRIPT, List.of(LEASES_KEY, LEASE_OWNERS_KEY), args.toArray());
+    }
+
+    @Override
+    public int reapExpiredLeases(int limit) {
+        Long reaped = stringRedis.execute(REAP_SCRIPT,
+                List.of(LEASES_KEY, LEASE_PAYLOADS_KEY, LEASE_OWNERS_KEY, key(JobLane.INTERACTIVE), LEASE_LANES_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(limit));
+        return (reaped == null ? 0 : reaped.intValue()) + reapDeadConsumers();
+    }
+
+    // Empties the processing lists of processes that stopped heartbeating a lease period ago.
+    // Payloads are decoded here for their job ID and lane, then moved back one per script
+    // call, each re-checking the heartbeat so a process that comes back keeps its jobs.
+    private int reapDeadConsumers() {
+        long cutoff = System.currentTimeMillis() - leaseSeconds * 1000;
+        Set<String> dead = stringRedis.opsForZSet().rangeByScore(CONSUMERS_KEY, Double.NEGATIVE_INFINITY, cutoff,
+                0, REAP_CONSUMERS_LIMIT);
+        if (dead == null) return 0;
+        int reaped = 0;
+        for (String consumer : dead) {
+            if (consumer.equals(consumerId)) continue;
+            String list = PROCESSING_KEY.formatted(consumer);
+            List<byte[]> payloads = binaryRedis.opsForList().range(list, 0, -1);
+            for (byte[] payload : payloads == null ? List.<byte[]>of() : payloads) {
+                JobRequest job = codec.decodeJob(payload);
+                Long requeued = binaryRedis.execute(REAP_CONSUMER_SCRIPT,
+                        List.of(list, CONSUMERS_KEY, key(job.lane()), LEASES_KEY, LEASE_PAYLOADS_KEY,
+                                LEASE_OWNERS_KEY, LEASE_LANES_KEY),
+                        utf8(consumer), utf8(String.valueOf(cutoff)), utf8(job.jobId()), payload);
+                if (requeued != null) reaped += requeued.intValue();
+            }
+            if (payloads == null || payloads.isEmpty()) {
+                stringRedis.execute(REAP_CONSUMER_SCRIPT, List.of(list, CONSUMERS_KEY, key(JobLane.INTERACTIVE),
+                        LEASES_KEY, LEASE_PAYLOADS_KEY, LEASE_OWNERS_KEY, LEASE_LANES_KEY), consumer,
+                        String.valueOf(cutoff));
+            }
+        }
+        return reaped;
+    }
+
+    private void heartbeat() {
+        stringRedis.opsForZSet().add(CONSUMERS_KEY, consumerId, System.currentTimeMillis());
+    }
+
+    // In-flight counts come from the lease owner hash, so they are only known in reliable
+    // mode — a plain BRPOP leaves no trace in Redis once a job is taken.
+    @Override
+    public QueueStats stats() {
+        Map<String, Long> byLane = new LinkedHashMap<>();
+        for (JobLane lane : JobLane.values()) {
+            Long length = stringRedis.opsForList().size(key(lane));
+            byLane.put(lane.tag(), length == null ? 0 : length);
+        }
+        Map<String, Long> byConsumer = new TreeMap<>();
+        if (reliable) {
+            String prefix = PROCESSING_KEY.formatted("");
+            for (Object owner : stringRedis.opsForHash().values(LEASE_OWNERS_KEY)) {
+                byConsumer.merge(((String) owner).substring(prefix.length()), 1L, Long::sum);
+            }
+        }
+        long inFlight = byConsumer.values().stream().mapToLong(Long::longValue).sum();
+        long waiting = byLane.values().stream().mapToLong(Long::longValue).sum();
+        return new QueueStats(backend(), waiting, byLane, inFlight, byConsumer);
+    }
+
+    private String processingKey() {
+        return PROCESSING_KEY.formatted(consumerId);
+    }
+
+    private long leaseExpiry() {
+        return System.currentTimeMillis() + leaseSeconds * 1000;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,292 @@
+package com.krister.avatar.shared;
+
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import com.krister.avatar.shared.RedisJobStore.QueueStats;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Queue backend on a Redis Stream with a consumer group (job.queue.backend=stream):
+//
+//   jobs:stream, jobs:stream:retry, jobs:stream:bulk → Stream per lane
+//                                  (XADD to enqueue, XREADGROUP to claim, XACK + XDEL when done)
+//
+// The consumer group gives us what the list needs three extra structures for: every entry a
+// worker has read sits in the group's pending entries list under that worker's name until it
+// is acked, so leases, redelivery and "who holds what" (XPENDING) come for free. This backend
+// is therefore always reliable — job.queue.reliable only applies to the list backend.
+//
+// A lease is the entry's idle time in the pending list. Workers reset it by re-claiming their
+// own entries (XCLAIM ... JUSTID), and the LeaseReaper requeues entries idle for longer than
+// job.queue.lease-seconds via XAUTOCLAIM. Acked entries are deleted straight away, so the
+// stream only ever holds waiting and in-flight jobs and its length stays bounded.
+@Component
+@ConditionalOnProperty(name = "job.queue.backend", havingValue = "stream")
+public class RedisStreamJobQueue implements JobQueue {
+
+    public static final String STREAM_KEY = "jobs:stream";
+    public static final String GROUP = "workers";
+    private static final String PAYLOAD_FIELD = "payload";
+
+    private static final RedisScript<Long> REAP_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/reap-stream.lua"), Long.class);
+    private static final RedisScript<Long> RELEASE_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/release-stream.lua"), Long.class);
+    private static final RedisScript<Long> MOVE_SCRIPT =
+            RedisScript.of(new ClassPathResource("redis/move-stream-job.lua"), Long.class);
+
+    private final StringRedisTemplate stringRedis;
+    // Entry payload fields are JobCodec bytes, written and read through this template.
+    private final RedisTemplate<String, byte[]> binaryRedis;
+    private final JobCodec codec;
+    // Consumer name within the group — "pid@hostname", unique per JVM.
+    private final String consumerId = ManagementFactory.getRuntimeMXBean().getName();
+    // Lane and stream entry ID of every job this process has claimed and not yet acked or
+    // released. Callers identify jobs by job ID; XACK and XCLAIM need the stream and entry ID.
+    private final Map<String, Claimed> inFlight = new ConcurrentHashMap<>();
+
+    @Value("${job.queue.lease-seconds:30}")
+    private long leaseSeconds;
+
+    public RedisStreamJobQueue(StringRedisTemplate stringRedis, JobCodec codec) {
+        this.stringRedis = stringRedis;
+        this.binaryRedis = JobCodec.binaryTemplate(stringRedis.getConnectionFactory());
+        this.codec = codec;
+    }
+
+    // One group per lane stream. The group starts at ID 0 rather than "$" so entries added
+    // before the first worker ever started are still delivered. MKSTREAM creates the stream
+    // if nothing was enqueued yet.
+    @PostConstruct
+    public void createGroup() {
+        for (JobLane lane : JobLane.values()) {
+            try {
+                stringRedis.execute((RedisCallback<String>) connection ->
+                        ((StringRedisConnection) connection).xGroupCreate(
+                                key(lane), ReadOffset.from("0-0"), GROUP, true));
+            } catch (DataAccessException e) {
+                if (!hasRedisError(e, "BUSYGROUP")) throw e;
+            }
+        }
+    }
+
+    @Override
+    public String backend() {
+        return "stream";
+    }
+
+    @Override
+    public String key(JobLane lane) {
+        return lane.key(STREAM_KEY);
+    }
+
+    @Override
+    public boolean isReliable() {
+        return true;
+    }
+
+    @Override
+    public Duration leaseDuration() {
+        return Duration.ofSeconds(leaseSeconds);
+    }
+
+    @Override
+    public void push(JobRequest job) {
+        binaryRedis.opsForStream().add(
+                MapRecord.create(key(job.lane()), Map.of(PAYLOAD_FIELD, codec.encode(job))));
+    }
+
+    @Override
+    public void push(RedisConnection connection, JobRequest job) {
+        connection.streamCommands().xAdd(MapRecord.create(
+                key(job.lane()).getBytes(StandardCharsets.UTF_8),
+                Map.of(PAYLOAD_FIELD.getBytes(StandardCharsets.UTF_8), codec.encode(job))));
+    }
+
+    // Lanes are read in the order given with non-blocking XREADGROUP calls until the batch is
+    // full, so a lower lane is only read once every lane ahead of it is empty — with the lead
+    // lane backlogged that is a single round-trip. When every lane is empty, one XREADGROUP
+    // with BLOCK over all the lane streams puts the worker to sleep inside Redis until any of
+    // them gets an entry.
+    @Override
+    public List<JobRequest> claim(int maxJobs, Duration timeout, List<JobLane> lanes) {
+        List<JobRequest> jobs = new ArrayList<>();
+        try {
+            for (JobLane lane : lanes) {
+                jobs.addAll(read(StreamReadOptions.empty().count(maxJobs - jobs.size()), List.of(lane)));
+                if (jobs.size() >= maxJobs) return jobs;
+            }
+            // BLOCK 0 means "forever" to Redis; a zero timeout here means "don't wait".
+            if (!jobs.isEmpty() || timeout.isZero()) return jobs;
+            jobs.addAll(read(StreamReadOptions.empty().count(1).block(timeout), lanes));
+        } catch (DataAccessException e) {
+            // A stream or group was deleted underneath us (e.g. FLUSHALL) — recreate them so
+            // the workers recover on their next poll instead of failing forever.
+            if (!hasRedisError(e, "NOGROUP")) throw e;
+            createGroup();
+            return jobs;
+        }
+        // A multi-stream read returns up to COUNT entries per stream, so two lanes filling up
+        // at the same moment can overshoot the batch; the extra entries go straight back.
+        if (jobs.size() > maxJobs) {
+            release(new ArrayList<>(jobs.subList(maxJobs, jobs.size())));
+            return new ArrayList<>(jobs.subList(0, maxJobs));
+        }
+        return jobs;
+    }
+
+    @SuppressWarnings("unchecked") // generic StreamOffset varargs
+    private List<JobRequest> read(StreamReadOptions options, List<JobLane> lanes) {
+        StreamOffset<String>[] offsets = lanes.stream()
+                .map(lane -> StreamOffset.create(key(lane), ReadOffset.lastConsumed()))
+                .toArray(StreamOffset[]::new);
+        List<MapRecord<String, Object, Object>> records =
+                binaryRedis.opsForStream().read(Consumer.from(GROUP, consumerId), options, offsets);
+        if (records == null || records.isEmpty()) return List.of();
+
+        List<JobRequest> jobs = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            JobRequest job = codec.decodeJob((byte[]) record.getValue().get(PAYLOAD_FIELD));
+            inFlight.put(job.jobId(), new Claimed(record.getStream(), record.getId()));
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    @Override
+    public void release(List<JobRequest> jobs) {
+        Map<String, List<Object>> idsByStream = new TreeMap<>();
+        for (JobRequest job : jobs) {
+            Claimed claimed = inFlight.remove(job.jobId());
+            if (claimed == null) continue;
+            idsByStream.computeIfAbsent(claimed.stream(), k -> new ArrayList<>(List.of(GROUP)))
+                    .add(claimed.id().getValue());
+        }
+        idsByStream.forEach((stream, args) ->
+                stringRedis.execute(RELEASE_SCRIPT, List.of(stream), args.toArray()));
+    }
+
+    // XACK removes the entry from the pending list; XDEL removes it from the stream itself.
+    // If the process dies between the two, the entry is acked and never redelivered, and
+    // only costs a little memory until the stream is trimmed by hand.
+    @Override
+    public void ack(String jobId) {
+        Claimed claimed = inFlight.remove(jobId);
+        if (claimed == null) return;
+        stringRedis.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.xAck(claimed.stream(), GROUP, claimed.id());
+            conn.xDel(claimed.stream(), claimed.id());
+            return null;
+        });
+    }
+
+    // The claim stays in inFlight unless the move went through or the entry was lost anyway,
+    // so a caller that is turned away can still ack the job as usual.
+    @Override
+    public long move(JobRequest moved, String recordKey, long recordTtlSeconds) {
+        Claimed claimed = inFlight.get(moved.jobId());
+        if (claimed == null) return -2;
+        Long result = binaryRedis.execute(MOVE_SCRIPT,
+                List.of(recordKey, key(moved.lane()), claimed.stream()),
+                utf8(GROUP), utf8(claimed.id().getValue()), codec.encode(moved),
+                utf8(String.valueOf(recordTtlSeconds)));
+        long moveResult = result == null ? 0 : result;
+        if (moveResult == 1 || moveResult == -2) inFlight.remove(moved.jobId());
+        return moveResult;
+    }
+
+    // Re-claiming our own entries resets their idle time, which is what the reaper measures
+    // the lease against. One XCLAIM per lane stream covers every in-flight job, all in one
+    // pipelined round-trip. Entries the reaper already took are no longer pending under this
+    // ID, and XCLAIM silently skips them.
+    @Override
+    public void renewLeases(Collection<String> jobIds) {
+        Map<String, List<RecordId>> idsByStream = new TreeMap<>();
+        for (String jobId : jobIds) {
+            Claimed claimed = inFlight.get(jobId);
+            if (claimed != null) idsByStream.computeIfAbsent(claimed.stream(), k -> new ArrayList<>()).add(claimed.id());
+        }
+        if (idsByStream.isEmpty()) return;
+        stringRedis.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            idsByStream.forEach((stream, ids) -> conn.xClaimJustId(stream, GROUP, consumerId,
+                    XClaimOptions.minIdle(Duration.ZERO).ids(ids.toArray(RecordId[]::new))));
+            return null;
+        });
+    }
+
+    // Reaped entries are re-added to the stream they came from, so they keep their lane.
+    // The limit applies per lane.
+    @Override
+    public int reapExpiredLeases(int limit) {
+        int total = 0;
+        for (JobLane lane : JobLane.values()) {
+            Long reaped = stringRedis.execute(REAP_SCRIPT, List.of(key(lane)),
+                    GROUP, consumerId, String.valueOf(leaseSeconds * 1000), String.valueOf(limit));
+            total += reaped == null ? 0 : reaped.intValue();
+        }
+        return total;
+    }
+
+    // Acked entries are deleted, so every entry in a lane stream is either pending (in flight)
+    // or not yet delivered — the group's lag is simply length minus pending.
+    @Override
+    public QueueStats stats() {
+        Map<String, Long> byLane = new LinkedHashMap<>();
+        Map<String, Long> byConsumer = new TreeMap<>();
+        long inFlightTotal = 0;
+        for (JobLane lane : JobLane.values()) {
+            Long length = stringRedis.opsForStream().size(key(lane));
+            PendingMessagesSummary pending = stringRedis.opsForStream().pending(key(lane), GROUP);
+            long lanePending = pending == null ? 0 : pending.getTotalPendingMessages();
+            if (pending != null) pending.getPendingMessagesPerConsumer().forEach((consumer, count) ->
+                    byConsumer.merge(consumer, count, Long::sum));
+            inFlightTotal += lanePending;
+            byLane.put(lane.tag(), Math.max(0, (length == null ? 0 : length) - lanePending));
+        }
+        long waiting = byLane.values().stream().mapToLong(Long::longValue).sum();
+        return new QueueStats(backend(), waiting, byLane, inFlightTotal, byConsumer);
+    }
+
+    private record Claimed(String stream, RecordId id) {}
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean hasRedisError(Throwable e, String code) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains(code)) return true;
+        }
+        return false;
+    }
+}
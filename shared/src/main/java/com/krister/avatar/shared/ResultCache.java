@@ -0,0 +1,94 @@
+package com.krister.avatar.shared;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+
+// Results keyed by the SHA-256 of the source bytes, so an image that was processed before is
+// not decoded, cropped and resized again. Clients resubmit the same avatar all the time, and
+// the output depends only on the input bytes: always the same crop, at 128×128.
+//
+//   results:cache:v1:{sha256} → String (the result's size in bytes; TTL)
+//   cache/{sha256}            → S3 object holding the result itself
+//
+// Results are one-shot (claimResult deletes them), so the cached copy is an object of its
+// own, and a hit is a server-side S3 copy to results/{jobId}: the bytes never leave S3. The
+// Redis index means a miss, the usual case for a new image, costs one GET and no S3 request.
+// The S3 object is written before the index and its lifecycle rule is at least as long as
+// the index's TTL, so the index should never point at a missing object; if it does anyway,
+// the entry is dropped and the lookup is a miss.
+@Component
+public class ResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    // Bump when the same input would now give a different result (a new crop model, a
+    // different output size), so results made the old way are no longer served.
+    private static final String INDEX_KEY = "results:cache:v1:%s";
+
+    private final StringRedisTemplate redis;
+    private final S3ResultStore s3ResultStore;
+
+    @Value("${job.result.cache.enabled:false}")
+    private boolean enabled;
+
+    // Same lifetime as the cache/ lifecycle rule in S3ResultStore.
+    @Value("${job.result.s3-expiry-days:1}")
+    private int expiryDays;
+
+    public ResultCache(StringRedisTemplate redis, S3ResultStore s3ResultStore) {
+        this.redis = redis;
+        this.s3ResultStore = s3ResultStore;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String hash(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to provide SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Copies the cached result for these source bytes to results/{jobId}. Returns its size in
+    // bytes, or -1 on a miss. Like put, never fails the job: if the cache can't be reached,
+    // the image is simply processed.
+    public long copyTo(String hash, String jobId) {
+        String key = INDEX_KEY.formatted(hash);
+        try {
+            String size = redis.opsForValue().get(key);
+            if (size == null) return -1;
+            if (!s3ResultStore.copyCached(hash, jobId)) {
+                redis.delete(key);
+                return -1;
+            }
+            return Long.parseLong(size);
+        } catch (RuntimeException e) {
+            log.warn("Result cache lookup failed hash={}", hash, e);
+            return -1;
+        }
+    }
+
+    // Best effort: the job's own result is already stored, so a failure here is logged and
+    // the job still completes.
+    public void put(String hash, ProcessingResult result) {
+        try {
+            s3ResultStore.storeCached(hash, result);
+            redis.opsForValue().set(INDEX_KEY.formatted(hash), String.valueOf(result.data().length),
+                    Duration.ofDays(expiryDays));
+        } catch (RuntimeException e) {
+            log.warn("Could not cache result hash={}", hash, e);
+        }
+    }
+}
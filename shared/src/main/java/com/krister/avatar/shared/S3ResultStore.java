@@ -9,6 +9,7 @@ import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.BucketLifecycleConfiguration;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.ExpirationStatus;
@@ -22,6 +23,7 @@ import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutBucketLifecycleConfigurationRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 @Component
 public class S3ResultStore {
@@ -57,9 +59,10 @@ public class S3ResultStore {
         // S3 lifecycle rules are server-side policies that automatically delete objects
         // matching a key prefix after N days. This is the primary cost-control mechanism:
         // even if nobody claims a result, S3 will clean it up without any code running.
-        // Two rules cover the two key prefixes used in this service:
+        // Three rules cover the key prefixes used in this service:
         //   results/{jobId} — processed output waiting to be downloaded
         //   uploads/{jobId} — raw bytes uploaded by the user, waiting for the worker
+        //   cache/{sha256}  — a result kept for reuse by identical inputs (see ResultCache)
         // Wrapped in try-catch because setting lifecycle rules requires Admin Read & Write
         // permission on the R2 token. The app can still function without it — the daily
         // quota counter is the primary cost guard. Log a clear warning so the operator
@@ -81,6 +84,12 @@ public class S3ResultStore {
                                                     .status(ExpirationStatus.ENABLED)
                                                     .filter(LifecycleRuleFilter.builder().prefix("uploads/").build())
                                                     .expiration(LifecycleExpiration.builder().days(1).build())
+                                                    .build(),
+                                            LifecycleRule.builder()
+                                                    .id("expire-cached-results")
+                                                    .status(ExpirationStatus.ENABLED)
+                                                    .filter(LifecycleRuleFilter.builder().prefix("cache/").build())
+                                                    .expiration(LifecycleExpiration.builder().days(resultExpiryDays).build())
                                                     .build())
                                     .build())
                             .build());
@@ -122,6 +131,61 @@ public class S3ResultStore {
                 DeleteObjectRequest.builder().bucket(bucketName).key("uploads/" + jobId).build());
     }
 
+    // Reads a result without claiming it, or null if there is none. For results that are not
+    // handed to a client, e.g. the parts of a split GIF waiting to be stitched.
+    public byte[] readResult(String jobId) {
+        try {
+            return s3Client.getObjectAsBytes(
+                    GetObjectRequest.builder().bucket(bucketName).key("results/" + jobId).build()
+            ).asByteArray();
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    public void deleteResult(String jobId) {
+        s3Client.deleteObject(
+                DeleteObjectRequest.builder().bucket(bucketName).key("results/" + jobId).build());
+    }
+
+    public void storeCached(String hash, ProcessingResult result) {
+        s3Client.putObject(
+                PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key("cache/" + hash)
+                        .contentType(result.contentType())
+                        .build(),
+                RequestBody.fromBytes(result.data()));
+    }
+
+    // Copies a cached result to results/{jobId} inside the bucket, content type included, so
+    // the bytes never pass through this process. False if the cached object is gone.
+    public boolean copyCached(String hash, String jobId) {
+        try {
+            s3Client.copyObject(CopyObjectRequest.builder()
+                    .sourceBucket(bucketName)
+                    .sourceKey("cache/" + hash)
+                    .destinationBucket(bucketName)
+                    .destinationKey("results/" + jobId)
+                    .build());
+            return true;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) return false;
+            throw e;
+        }
+    }
+
+    // Gives another job its own copy of a result (results are claimed, and deleted, per job),
+    // copied inside the bucket.
+    public void copyResult(String fromJobId, String toJobId) {
+        s3Client.copyObject(CopyObjectRequest.builder()
+                .sourceBucket(bucketName)
+                .sourceKey("results/" + fromJobId)
+                .destinationBucket(bucketName)
+                .destinationKey("results/" + toJobId)
+                .build());
+    }
+
     // Results are one-shot: download and delete in the same call. This is a read-then-delete
     // pattern — not atomically guaranteed by S3 (two simultaneous callers could both read
     // before either deletes), but acceptable here because the job status check in the controller
@@ -0,0 +1,18 @@
+-- Releases a job's lease once the worker is done with it (completed, retried or dead-lettered).
+-- Only the lease's owner may ack: if the lease was reaped and the job claimed again, the
+-- stalled original worker's ack must not remove the new owner's payload or lease.
+-- KEYS[1] = jobs:leases, KEYS[2] = jobs:lease-payloads, KEYS[3] = jobs:lease-owners,
+-- KEYS[4] = jobs:lease-lanes, KEYS[5] = the acking process's processing list
+-- ARGV[1] = jobId
+if redis.call('HGET', KEYS[3], ARGV[1]) ~= KEYS[5] then
+    return 0
+end
+local payload = redis.call('HGET', KEYS[2], ARGV[1])
+if payload then
+    redis.call('LREM', KEYS[5], 1, payload)
+end
+redis.call('ZREM', KEYS[1], ARGV[1])
+redis.call('HDEL', KEYS[2], ARGV[1])
+redis.call('HDEL', KEYS[3], ARGV[1])
+redis.call('HDEL', KEYS[4], ARGV[1])
+return payload and 1 or 0
@@ -0,0 +1,12 @@
+-- Acquires or renews a leader lease. The current holder extends its own lease; anyone else
+-- only gets it if the key is absent (the previous leader resigned or its lease ran out).
+-- KEYS[1] = leader key
+-- ARGV[1] = candidate id, ARGV[2] = lease length (ms)
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return 1
+end
+if redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then
+    return 1
+end
+return 0
@@ -0,0 +1,24 @@
+-- Single-flight submission of a URL. If a job for the same URL is still unfinished (its ID is
+-- in the in-flight marker and its record is PENDING or PROCESSING), the new job is recorded
+-- as its follower and not queued: it gets the leader's result when the leader completes.
+-- Otherwise the new job takes the marker and becomes the leader; the caller queues it.
+-- KEYS[1] = jobs:inflight:{url hash} marker, KEYS[2] = the new job's job:{id} hash
+-- ARGV[1] = new job ID, ARGV[2] = url, ARGV[3] = now (epoch ms), ARGV[4] = job record TTL
+-- (seconds), ARGV[5] = lane, ARGV[6] = client deadline (epoch ms, 0 for none)
+-- Returns the leader's ID if the job was attached to it, or nil if the job is the leader.
+local leader = redis.call('GET', KEYS[1])
+if leader then
+    local status = redis.call('HGET', 'job:' .. leader, 'status')
+    if status == 'PENDING' or status == 'PROCESSING' then
+        redis.call('DEL', KEYS[2])
+        redis.call('HSET', KEYS[2], 'status', 'PENDING', 'url', ARGV[2], 'createdAt', ARGV[3],
+                'attempt', '1', 'leader', leader, 'lane', ARGV[5], 'deadline', ARGV[6])
+        redis.call('EXPIRE', KEYS[2], ARGV[4])
+        local followers = 'job:' .. leader .. ':followers'
+        redis.call('SADD', followers, ARGV[1])
+        redis.call('EXPIRE', followers, ARGV[4])
+        return leader
+    end
+end
+redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[4])
+return false
@@ -0,0 +1,42 @@
+-- Cancels a job that has not finished: marks its record CANCELLED, removes any retry waiting
+-- in a retry set, and, if a worker is running it, tells the workers to stop. A job still in
+-- a queue is left there; the worker that claims it sees the status and drops it unstarted.
+-- A GIF split into frame-range parts (see RedisJobStore.splitJob) stays PROCESSING while
+-- its parts run; its unfinished parts are cancelled with it.
+-- KEYS[1] = job:{id} record hash, KEYS[2] = jobs:retry, KEYS[3] = jobs:retry:heavy
+-- ARGV[1] = now (epoch ms), ARGV[2] = job record TTL (seconds), ARGV[3] = cancel channel,
+-- ARGV[4] = jobId, ARGV[5] = record key prefix of its parts (job:{id}-part-),
+-- ARGV[6] = job ID prefix of its parts ({id}-part-)
+-- Returns the job's status after the call (CANCELLED, or the final status it had already
+-- reached), or nil if there is no record.
+local function cancel(key, jobId)
+    local status = redis.call('HGET', key, 'status')
+    if status ~= 'PENDING' and status ~= 'PROCESSING' then
+        return status
+    end
+    local retry = redis.call('HGET', key, 'retryPayload')
+    if retry then
+        redis.call('ZREM', KEYS[2], retry)
+        redis.call('ZREM', KEYS[3], retry)
+        redis.call('HDEL', key, 'retryPayload')
+    end
+    redis.call('HSET', key, 'status', 'CANCELLED', 'finishedAt', ARGV[1])
+    redis.call('EXPIRE', key, ARGV[2])
+    if status == 'PROCESSING' then
+        redis.call('PUBLISH', ARGV[3], jobId)
+    end
+    return 'CANCELLED'
+end
+
+local status = redis.call('HGET', KEYS[1], 'status')
+if not status then
+    return nil
+end
+local result = cancel(KEYS[1], ARGV[4])
+if result == 'CANCELLED' then
+    local parts = tonumber(redis.call('HGET', KEYS[1], 'parts') or '0')
+    for i = 0, parts - 1 do
+        cancel(ARGV[5] .. i, ARGV[6] .. i)
+    end
+end
+return result
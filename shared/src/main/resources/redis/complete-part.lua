@@ -0,0 +1,22 @@
+-- Records that one frame-range part of a split GIF has stored its result, and reports whether
+-- the caller should now stitch the parent: every part is done and the parent is still
+-- PROCESSING (not cancelled, failed or already stitched by an earlier call). The set makes a
+-- part that runs twice (a retry after its result was stored, a reaped lease) count once, yet
+-- a retried last part still triggers the stitch if the earlier attempt did not finish it.
+-- KEYS[1] = parent job:{id} hash, KEYS[2] = parent's done-parts set, KEYS[3] = part's job hash
+-- ARGV[1] = part index, ARGV[2] = now (epoch ms), ARGV[3] = job record TTL (seconds)
+-- Returns 1 if the caller should stitch, 0 otherwise.
+if redis.call('HGET', KEYS[3], 'status') ~= 'CANCELLED' and redis.call('EXISTS', KEYS[3]) == 1 then
+    redis.call('HSET', KEYS[3], 'status', 'COMPLETED', 'finishedAt', ARGV[2])
+    redis.call('EXPIRE', KEYS[3], ARGV[3])
+end
+if redis.call('HGET', KEYS[1], 'status') ~= 'PROCESSING' then
+    return 0
+end
+redis.call('SADD', KEYS[2], ARGV[1])
+redis.call('EXPIRE', KEYS[2], ARGV[3])
+local parts = tonumber(redis.call('HGET', KEYS[1], 'parts') or '0')
+if parts > 0 and redis.call('SCARD', KEYS[2]) >= parts then
+    return 1
+end
+return 0
@@ -0,0 +1,49 @@
+-- Moves staged jobs from per-tenant sub-queues onto a lane by deficit round-robin, so a
+-- tenant with a huge backlog gets the same share of the lane as everyone else. Each
+-- sub-queue is a sorted set and gives up its lowest-scored jobs first.
+-- KEYS[1] = tenant ring (zset tenant -> turn; lowest is next), KEYS[2] = deficit hash
+-- (tenant -> jobs left in an interrupted turn), KEYS[3] = lane key
+-- ARGV[1] = room left on the lane, ARGV[2] = quantum (jobs per tenant per turn),
+-- ARGV[3] = sub-queue key prefix (tenant is appended), ARGV[4] = queue backend ("list" or "stream")
+-- Returns { jobs moved, tenants still waiting }
+local room = tonumber(ARGV[1])
+local quantum = tonumber(ARGV[2])
+local moved = 0
+while room > 0 do
+    local head = redis.call('ZRANGE', KEYS[1], 0, 0)
+    if #head == 0 then break end
+    local tenant = head[1]
+    local queue = ARGV[3] .. tenant
+    -- A leftover deficit means the last call ran out of room mid-turn: resume that turn
+    -- instead of granting a fresh quantum.
+    local deficit = tonumber(redis.call('HGET', KEYS[2], tenant) or '0')
+    if deficit <= 0 then deficit = quantum end
+    local served = 0
+    while served < deficit and served < room do
+        local popped = redis.call('ZPOPMIN', queue)
+        if #popped == 0 then break end
+        local payload = popped[1]
+        if ARGV[4] == 'stream' then
+            redis.call('XADD', KEYS[3], '*', 'payload', payload)
+        else
+            redis.call('LPUSH', KEYS[3], payload)
+        end
+        served = served + 1
+    end
+    moved = moved + served
+    room = room - served
+    deficit = deficit - served
+    if redis.call('EXISTS', queue) == 0 then
+        -- Drained: the tenant leaves the ring and comes back at the front when it next submits.
+        redis.call('ZREM', KEYS[1], tenant)
+        redis.call('HDEL', KEYS[2], tenant)
+    elseif deficit > 0 then
+        redis.call('HSET', KEYS[2], tenant, deficit)
+    else
+        -- Turn used up: go to the back of the ring.
+        local last = redis.call('ZRANGE', KEYS[1], -1, -1, 'WITHSCORES')
+        redis.call('ZADD', KEYS[1], tonumber(last[2]) + 1, tenant)
+        redis.call('HDEL', KEYS[2], tenant)
+    end
+end
+return { moved, redis.call('ZCARD', KEYS[1]) }
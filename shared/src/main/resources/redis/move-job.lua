@@ -0,0 +1,37 @@
+-- Hands a job the worker has started to another lane: acks the caller's claim, marks the record
+-- PENDING again and pushes the new payload, all at once, so a crash part-way can neither lose
+-- the job nor leave it queued twice. Nothing happens if the record has expired or been
+-- cancelled; the caller still holds its claim and finishes the job as usual. In reliable mode
+-- nothing happens either if the lease is no longer this process's — the job was reaped and
+-- belongs to whoever claimed it next.
+-- KEYS[1] = job:{id} record hash, KEYS[2] = target lane list,
+-- KEYS[3] = jobs:leases, KEYS[4] = jobs:lease-payloads, KEYS[5] = jobs:lease-owners,
+-- KEYS[6] = jobs:lease-lanes, KEYS[7] = the moving process's processing list
+-- ARGV[1] = jobId, ARGV[2] = new payload, ARGV[3] = job record TTL (seconds),
+-- ARGV[4] = '1' in reliable mode
+-- Returns 1 if moved, 0 if the record no longer exists, -1 if it was cancelled, -2 if the
+-- lease was lost.
+local status = redis.call('HGET', KEYS[1], 'status')
+if not status then
+    return 0
+end
+if status == 'CANCELLED' then
+    return -1
+end
+if ARGV[4] == '1' then
+    if redis.call('HGET', KEYS[5], ARGV[1]) ~= KEYS[7] then
+        return -2
+    end
+    local payload = redis.call('HGET', KEYS[4], ARGV[1])
+    if payload then
+        redis.call('LREM', KEYS[7], 1, payload)
+    end
+    redis.call('ZREM', KEYS[3], ARGV[1])
+    redis.call('HDEL', KEYS[4], ARGV[1])
+    redis.call('HDEL', KEYS[5], ARGV[1])
+    redis.call('HDEL', KEYS[6], ARGV[1])
+end
+redis.call('HSET', KEYS[1], 'status', 'PENDING')
+redis.call('EXPIRE', KEYS[1], ARGV[3])
+redis.call('LPUSH', KEYS[2], ARGV[2])
+return 1
@@ -0,0 +1,26 @@
+-- Hands a job the worker has started to another lane's stream: acks and deletes the claimed
+-- entry, marks the record PENDING again and adds the new payload, all at once, so a crash
+-- part-way can neither lose the job nor leave it queued twice. Nothing happens if the record
+-- has expired or been cancelled; the caller still holds its claim and finishes the job as
+-- usual. Nothing happens either if the entry is no longer pending here — the reaper already
+-- gave it to another consumer.
+-- KEYS[1] = job:{id} record hash, KEYS[2] = target lane stream, KEYS[3] = claimed entry's stream
+-- ARGV[1] = consumer group, ARGV[2] = claimed entry ID, ARGV[3] = new payload,
+-- ARGV[4] = job record TTL (seconds)
+-- Returns 1 if moved, 0 if the record no longer exists, -1 if it was cancelled, -2 if the
+-- claim was lost.
+local status = redis.call('HGET', KEYS[1], 'status')
+if not status then
+    return 0
+end
+if status == 'CANCELLED' then
+    return -1
+end
+if redis.call('XACK', KEYS[3], ARGV[1], ARGV[2]) == 0 then
+    return -2
+end
+redis.call('XDEL', KEYS[3], ARGV[2])
+redis.call('HSET', KEYS[1], 'status', 'PENDING')
+redis.call('EXPIRE', KEYS[1], ARGV[4])
+redis.call('XADD', KEYS[2], '*', 'payload', ARGV[3])
+return 1
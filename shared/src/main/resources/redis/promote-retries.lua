@@ -0,0 +1,29 @@
+-- Moves retries whose fire-at time has passed from the retry sets onto the work queue.
+-- Runs atomically, so two promoters (API and worker) can never push the same job twice.
+-- Each retry set feeds one lane: jobs:retry the retry lane, jobs:retry:heavy the heavy lane.
+-- KEYS = pairs of (retry set: zset payload -> fire-at epoch seconds, work queue key)
+-- ARGV[1] = now (epoch seconds), ARGV[2] = max entries to move in this call, across all sets,
+-- ARGV[3] = queue backend ("list" or "stream")
+-- Returns { promoted count, fire-at score of the earliest remaining entry (omitted if none) }
+local promoted = 0
+local earliest
+for i = 1, #KEYS, 2 do
+    local remaining = tonumber(ARGV[2]) - promoted
+    if remaining > 0 then
+        local due = redis.call('ZRANGEBYSCORE', KEYS[i], '-inf', ARGV[1], 'LIMIT', 0, remaining)
+        for _, payload in ipairs(due) do
+            if ARGV[3] == 'stream' then
+                redis.call('XADD', KEYS[i + 1], '*', 'payload', payload)
+            else
+                redis.call('LPUSH', KEYS[i + 1], payload)
+            end
+            redis.call('ZREM', KEYS[i], payload)
+        end
+        promoted = promoted + #due
+    end
+    local next = redis.call('ZRANGE', KEYS[i], 0, 0, 'WITHSCORES')
+    if next[2] and (not earliest or tonumber(next[2]) < tonumber(earliest)) then
+        earliest = next[2]
+    end
+end
+return { promoted, earliest }
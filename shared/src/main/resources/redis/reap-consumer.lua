@@ -0,0 +1,29 @@
+-- Returns one job from the processing list of a process that stopped heartbeating. A worker
+-- that dies between moving a job into its processing list and recording the job's lease
+-- leaves a payload no lease points at; the lease reaper never sees it, so it is swept here.
+-- KEYS[1] = the dead process's processing list, KEYS[2] = jobs:consumers,
+-- KEYS[3] = the job's lane, KEYS[4] = jobs:leases, KEYS[5] = jobs:lease-payloads,
+-- KEYS[6] = jobs:lease-owners, KEYS[7] = jobs:lease-lanes
+-- ARGV[1] = the process's consumer ID, ARGV[2] = heartbeat cutoff (epoch ms),
+-- ARGV[3] = jobId, ARGV[4] = payload (both omitted to only forget an empty list's process)
+-- Returns 1 if the job was requeued.
+local seen = redis.call('ZSCORE', KEYS[2], ARGV[1])
+if seen and tonumber(seen) > tonumber(ARGV[2]) then
+    -- It came back (a long GC pause, say); its jobs are its own again.
+    return 0
+end
+local requeued = 0
+if ARGV[4] and redis.call('LREM', KEYS[1], 1, ARGV[4]) > 0 then
+    redis.call('RPUSH', KEYS[3], ARGV[4])
+    requeued = 1
+    if redis.call('HGET', KEYS[6], ARGV[3]) == KEYS[1] then
+        redis.call('ZREM', KEYS[4], ARGV[3])
+        redis.call('HDEL', KEYS[5], ARGV[3])
+        redis.call('HDEL', KEYS[6], ARGV[3])
+        redis.call('HDEL', KEYS[7], ARGV[3])
+    end
+end
+if redis.call('LLEN', KEYS[1]) == 0 then
+    redis.call('ZREM', KEYS[2], ARGV[1])
+end
+return requeued
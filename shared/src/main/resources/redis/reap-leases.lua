@@ -0,0 +1,25 @@
+-- Returns jobs whose lease has expired (the worker died or stalled) to the work queue.
+-- KEYS[1] = jobs:leases, KEYS[2] = jobs:lease-payloads, KEYS[3] = jobs:lease-owners,
+-- KEYS[4] = default lane (jobs:queue), KEYS[5] = jobs:lease-lanes (jobId -> lane the job came from)
+-- ARGV[1] = now (epoch ms), ARGV[2] = max leases to reap in this call
+local expired = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+local reaped = 0
+for _, jobId in ipairs(expired) do
+    local payload = redis.call('HGET', KEYS[2], jobId)
+    local owner = redis.call('HGET', KEYS[3], jobId)
+    -- Leases recorded before lanes existed have no lane entry; those jobs came from jobs:queue.
+    local lane = redis.call('HGET', KEYS[5], jobId) or KEYS[4]
+    -- Only requeue if the payload is still in the processing list; if it is gone the job
+    -- was already acked and this lease is just a leftover.
+    if payload and owner and redis.call('LREM', owner, 1, payload) > 0 then
+        -- RPUSH puts the job at the tail, which is where BRPOP takes from — reclaimed
+        -- jobs are picked up next instead of waiting behind the whole backlog.
+        redis.call('RPUSH', lane, payload)
+        reaped = reaped + 1
+    end
+    redis.call('ZREM', KEYS[1], jobId)
+    redis.call('HDEL', KEYS[2], jobId)
+    redis.call('HDEL', KEYS[3], jobId)
+    redis.call('HDEL', KEYS[5], jobId)
+end
+return reaped
@@ -0,0 +1,21 @@
+-- Stream counterpart of reap-leases.lua: requeues entries a consumer has held longer than the
+-- lease without renewing (see XCLAIM in RedisStreamJobQueue.renewLeases) or acking.
+-- KEYS[1] = jobs:stream
+-- ARGV[1] = consumer group, ARGV[2] = consumer to claim as, ARGV[3] = lease (min idle ms),
+-- ARGV[4] = max entries to reap in this call
+local claimed = redis.call('XAUTOCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], '0-0', 'COUNT', ARGV[4])
+local reaped = 0
+for _, entry in ipairs(claimed[2]) do
+    -- Entries deleted while pending come back without fields (Redis 6.2) — just drop them.
+    if type(entry) == 'table' then
+        if entry[2] then
+            -- A stream can only grow at the tail, so unlike the list reaper the job goes to
+            -- the back of the queue as a new entry.
+            redis.call('XADD', KEYS[1], '*', unpack(entry[2]))
+            reaped = reaped + 1
+        end
+        redis.call('XACK', KEYS[1], ARGV[1], entry[1])
+        redis.call('XDEL', KEYS[1], entry[1])
+    end
+end
+return reaped
@@ -0,0 +1,13 @@
+-- Called once a leader is finished, whatever the outcome: clears its in-flight marker, so
+-- the next submission of the URL starts a new job, and hands back the followers that
+-- attached to it. Both happen in one step, so a submission either attached in time and is
+-- returned here, or found no marker and was queued on its own.
+-- KEYS[1] = jobs:inflight:{url hash} marker, KEYS[2] = job:{leader}:followers set
+-- ARGV[1] = leader job ID
+-- Returns the followers' job IDs.
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    redis.call('DEL', KEYS[1])
+end
+local followers = redis.call('SMEMBERS', KEYS[2])
+redis.call('DEL', KEYS[2])
+return followers
@@ -0,0 +1,10 @@
+-- Frees a client's Idempotency-Key, but only while it still names the given job: a reservation
+-- made since by another attempt is left alone.
+-- KEYS[1] = jobs:idempotency:{key}
+-- ARGV[1] = "{jobId} " (the prefix the reservation's value starts with)
+-- Returns 1 if the key was deleted, 0 otherwise.
+local existing = redis.call('GET', KEYS[1])
+if existing and string.sub(existing, 1, #ARGV[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,24 @@
+-- Hands leased jobs back to the queue before they were processed (e.g. jobs still sitting in
+-- a worker's local buffer at shutdown), without waiting for their leases to expire.
+-- KEYS[1] = jobs:leases, KEYS[2] = jobs:lease-payloads, KEYS[3] = jobs:lease-owners,
+-- KEYS[4] = default lane (jobs:queue), KEYS[5] = jobs:lease-lanes (jobId -> lane the job came from),
+-- KEYS[6] = the releasing process's processing list
+-- ARGV = jobIds to release
+-- A lease owned by another process (reaped and claimed again meanwhile) is left alone.
+local released = 0
+for _, jobId in ipairs(ARGV) do
+    if redis.call('HGET', KEYS[3], jobId) == KEYS[6] then
+        local payload = redis.call('HGET', KEYS[2], jobId)
+        -- Leases recorded before lanes existed have no lane entry; those jobs came from jobs:queue.
+        local lane = redis.call('HGET', KEYS[5], jobId) or KEYS[4]
+        if payload and redis.call('LREM', KEYS[6], 1, payload) > 0 then
+            redis.call('RPUSH', lane, payload)
+            released = released + 1
+        end
+        redis.call('ZREM', KEYS[1], jobId)
+        redis.call('HDEL', KEYS[2], jobId)
+        redis.call('HDEL', KEYS[3], jobId)
+        redis.call('HDEL', KEYS[5], jobId)
+    end
+end
+return released
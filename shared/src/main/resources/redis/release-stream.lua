@@ -0,0 +1,15 @@
+-- Hands claimed stream entries back before they were processed, without waiting for the
+-- reaper. Each entry is re-added as a new entry and the original acked and deleted.
+-- KEYS[1] = jobs:stream
+-- ARGV[1] = consumer group, ARGV[2..n] = entry IDs to release
+local released = 0
+for i = 2, #ARGV do
+    local entry = redis.call('XRANGE', KEYS[1], ARGV[i], ARGV[i])[1]
+    -- XACK returns 0 if the entry is no longer pending here, e.g. the reaper already took it.
+    if entry and redis.call('XACK', KEYS[1], ARGV[1], ARGV[i]) > 0 then
+        redis.call('XADD', KEYS[1], '*', unpack(entry[2]))
+        redis.call('XDEL', KEYS[1], ARGV[i])
+        released = released + 1
+    end
+end
+return released
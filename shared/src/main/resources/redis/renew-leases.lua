@@ -0,0 +1,13 @@
+-- Extends the leases a process still owns. A lease the reaper has already reclaimed is not
+-- resurrected, and one another process has since claimed is left to that process.
+-- KEYS[1] = jobs:leases, KEYS[2] = jobs:lease-owners
+-- ARGV[1] = the renewing process's processing list, ARGV[2] = new expiry (epoch ms),
+-- ARGV[3..] = jobIds
+local renewed = 0
+for i = 3, #ARGV do
+    if redis.call('HGET', KEYS[2], ARGV[i]) == ARGV[1] then
+        redis.call('ZADD', KEYS[1], 'XX', ARGV[2], ARGV[i])
+        renewed = renewed + 1
+    end
+end
+return renewed
@@ -0,0 +1,10 @@
+-- Records which job a client's Idempotency-Key created, unless it already names one.
+-- KEYS[1] = jobs:idempotency:{key}
+-- ARGV[1] = "{jobId} {request fingerprint}", ARGV[2] = TTL (seconds)
+-- Returns the existing value if the key was already used, or nil if it is now reserved.
+local existing = redis.call('GET', KEYS[1])
+if existing then
+    return existing
+end
+redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2])
+return false
@@ -0,0 +1,8 @@
+-- Gives up a leader lease, but only if the caller still holds it — a leader whose lease
+-- already expired must not delete the key a successor has since written.
+-- KEYS[1] = leader key
+-- ARGV[1] = candidate id
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,26 @@
+-- Adds a retry to the retry set, marks the job PENDING again, and, if the retry is now the
+-- earliest entry, publishes its fire-at time so the leading RetryPromoter can wake up early
+-- instead of sleeping past it. The payload is also kept on the record, so cancel-job.lua can
+-- find and remove the entry. A job cancelled while its attempt was running is not retried, and
+-- nor is one whose record expired meanwhile, which would otherwise come back as a bare hash.
+-- KEYS[1] = jobs:retry, KEYS[2] = job:{id} record hash
+-- ARGV[1] = payload, ARGV[2] = fire-at (epoch seconds), ARGV[3] = wake-up channel,
+-- ARGV[4] = job record TTL (seconds)
+-- Returns 1 if a wake-up was published, 0 if not, -1 if the job was cancelled, -2 if its record
+-- no longer exists.
+local status = redis.call('HGET', KEYS[2], 'status')
+if not status then
+    return -2
+end
+if status == 'CANCELLED' then
+    return -1
+end
+redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])
+redis.call('HSET', KEYS[2], 'status', 'PENDING', 'retryPayload', ARGV[1])
+redis.call('EXPIRE', KEYS[2], ARGV[4])
+local first = redis.call('ZRANGE', KEYS[1], 0, 0)
+if first[1] == ARGV[1] then
+    redis.call('PUBLISH', ARGV[3], ARGV[2])
+    return 1
+end
+return 0
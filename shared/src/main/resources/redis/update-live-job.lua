@@ -0,0 +1,18 @@
+-- Writes fields to a job record only if the record still exists, so a worker picking up a job
+-- whose record has expired never recreates it, half-filled, for nobody to read. A cancelled
+-- record is left as it is, so a worker that has not yet noticed the cancellation cannot
+-- overwrite it. A job whose only record is the status string written by versions before the
+-- record hash counts as expired too: filling in a hash beside it would make a record with no
+-- URL or submission time.
+-- KEYS[1] = job:{id} record hash
+-- ARGV[1] = job record TTL (seconds), ARGV[2..] = field, value pairs
+-- Returns 1 if the record was updated, 0 if it no longer exists, -1 if it was cancelled.
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return 0
+end
+if redis.call('HGET', KEYS[1], 'status') == 'CANCELLED' then
+    return -1
+end
+redis.call('HSET', KEYS[1], unpack(ARGV, 2))
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+return 1
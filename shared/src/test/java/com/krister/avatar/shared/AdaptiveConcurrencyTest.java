@@ -0,0 +1,63 @@
+package com.krister.avatar.shared;
+
+import com.krister.avatar.shared.AdaptiveConcurrency.Signals;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class AdaptiveConcurrencyTest {
+
+    private static AdaptiveConcurrency controller(int min, int max, int initial) {
+        return new AdaptiveConcurrency(min, max, initial, 0.85, 0.85, 2.0);
+    }
+
+    @Test
+    void backlogWithSpareCpu_growsOneStepAtATimeUpToMax() {
+        AdaptiveConcurrency aimd = controller(1, 4, 2);
+
+        assertThat(aimd.update(new Signals(100, 0.5, 0.3, 40))).isEqualTo(3);
+        assertThat(aimd.update(new Signals(100, 0.5, 0.3, 40))).isEqualTo(4);
+        assertThat(aimd.update(new Signals(100, 0.5, 0.3, 40))).isEqualTo(4);
+    }
+
+    @Test
+    void heapPressure_halvesDownToMin() {
+        AdaptiveConcurrency aimd = controller(1, 16, 8);
+
+        assertThat(aimd.update(new Signals(100, 0.2, 0.9, 40))).isEqualTo(4);
+        assertThat(aimd.update(new Signals(100, 0.2, 0.9, 40))).isEqualTo(2);
+        assertThat(aimd.update(new Signals(100, 0.2, 0.9, 40))).isEqualTo(1);
+        assertThat(aimd.update(new Signals(100, 0.2, 0.9, 40))).isEqualTo(1);
+    }
+
+    @Test
+    void saturatedCpuWithSlowJobs_halves() {
+        AdaptiveConcurrency aimd = controller(1, 16, 8);
+        aimd.update(new Signals(100, 0.9, 0.3, 40));
+
+        assertThat(aimd.update(new Signals(100, 0.95, 0.3, 200))).isEqualTo(4);
+    }
+
+    @Test
+    void saturatedCpuAtUsualSpeed_holds() {
+        AdaptiveConcurrency aimd = controller(1, 16, 8);
+        aimd.update(new Signals(100, 0.9, 0.3, 40));
+
+        assertThat(aimd.update(new Signals(100, 0.95, 0.3, 50))).isEqualTo(8);
+    }
+
+    @Test
+    void noBacklog_holdsRatherThanShrinking() {
+        AdaptiveConcurrency aimd = controller(1, 16, 6);
+
+        assertThat(aimd.update(new Signals(0, 0.1, 0.3, Double.NaN))).isEqualTo(6);
+    }
+
+    @Test
+    void initialLimitIsClampedToBounds() {
+        assertThat(controller(2, 4, 12).limit()).isEqualTo(4);
+        assertThat(controller(2, 4, 0).limit()).isEqualTo(2);
+        assertThatIllegalArgumentException().isThrownBy(() -> controller(3, 2, 2));
+    }
+}
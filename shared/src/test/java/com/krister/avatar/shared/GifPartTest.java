@@ -0,0 +1,27 @@
+package com.krister.avatar.shared;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class GifPartTest {
+
+    @Test
+    void url_roundTripsThroughParse() {
+        GifPart part = new GifPart("job-1", 2, 5, 100, 150, 10, 20, 300, 300);
+
+        assertThat(part.url()).isEqualTo("gif-part://job-1/2/5/100-150/10,20,300,300");
+        assertThat(GifPart.parse(part.url())).isEqualTo(part);
+        assertThat(part.jobId()).isEqualTo("job-1-part-2");
+        assertThat(part.frames()).isEqualTo(50);
+    }
+
+    @Test
+    void parse_otherUrls_returnNullAndMalformedPartsAreRejected() {
+        assertThat(GifPart.parse("https://1.1.1.1/anim.gif")).isNull();
+        assertThat(GifPart.parse("s3://uploads/job-1")).isNull();
+        assertThatIllegalArgumentException().isThrownBy(() -> GifPart.parse("gif-part://job-1/2/5/100/1,2,3,4"));
+        assertThatIllegalArgumentException().isThrownBy(() -> GifPart.parse("gif-part://job-1/2"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.krister.avatar.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JobCancellationsTest {
+
+    private final JobCancellations cancellations = new JobCancellations(null);
+
+    @Test
+    void cancelled_setsFlagOfTrackedJobOnly() {
+        AtomicBoolean first = cancellations.track("job-1");
+        AtomicBoolean second = cancellations.track("job-2");
+
+        cancellations.cancelled("job-1");
+        cancellations.cancelled("job-3");
+
+        assertThat(first).isTrue();
+        assertThat(second).isFalse();
+    }
+
+    @Test
+    void untrack_withStaleFlag_keepsLaterRegistration() {
+        AtomicBoolean moved = cancellations.track("job-1");
+        AtomicBoolean heavy = cancellations.track("job-1");
+
+        cancellations.untrack("job-1", moved);
+        cancellations.cancelled("job-1");
+
+        assertThat(heavy).isTrue();
+    }
+
+    @Test
+    void cancelled_afterUntrack_isIgnored() {
+        AtomicBoolean flag = cancellations.track("job-1");
+        cancellations.untrack("job-1", flag);
+
+        cancellations.cancelled("job-1");
+
+        assertThat(flag).isFalse();
+    }
+}
@@ -0,0 +1,137 @@
+package com.krister.avatar.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.krister.avatar.shared.RedisJobStore.DlqEntry;
+import com.krister.avatar.shared.RedisJobStore.JobRequest;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JobCodecTest {
+
+    final ObjectMapper objectMapper = new ObjectMapper();
+    final JobCodec codec = new JobCodec(objectMapper);
+
+    @Test
+    void jobRequest_roundtrip() {
+        var job = new JobRequest("3f2b8c1e-0000-4000-8000-000000000001", "https://1.1.1.1/ünï.png", 3);
+
+        byte[] encoded = codec.encode(job);
+
+        assertThat(encoded[0]).isEqualTo((byte) 2);
+        assertThat(codec.decodeJob(encoded)).isEqualTo(job);
+    }
+
+    @Test
+    void jobRequest_binaryIsSmallerThanJson() throws Exception {
+        var job = new JobRequest("3f2b8c1e-0000-4000-8000-000000000001", "https://1.1.1.1/img.png", 1);
+
+        assertThat(codec.encode(job).length).isLessThan(objectMapper.writeValueAsBytes(job).length);
+    }
+
+    @Test
+    void jobRequest_longUrlNeedsMultiByteLength() {
+        var job = new JobRequest("job-1", "https://1.1.1.1/" + "a".repeat(300) + ".png", 1);
+
+        assertThat(codec.decodeJob(codec.encode(job))).isEqualTo(job);
+    }
+
+    @Test
+    void decodeJob_acceptsLegacyJson() {
+        byte[] json = "{\"jobId\":\"job-1\",\"url\":\"https://1.1.1.1/img.png\",\"attempt\":2}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        assertThat(codec.decodeJob(json))
+                .isEqualTo(new JobRequest("job-1", "https://1.1.1.1/img.png", 2, JobLane.INTERACTIVE, 0));
+    }
+
+    @Test
+    void jobRequest_laneAndEnqueuedAt_roundtrip() {
+        var job = new JobRequest("job-1", "https://1.1.1.1/img.png", 2, JobLane.BULK, 1_700_000_000_123L);
+
+        byte[] encoded = codec.encode(job);
+
+        assertThat(encoded[0]).isEqualTo((byte) 2);
+        assertThat(codec.decodeJob(encoded)).isEqualTo(job);
+    }
+
+    @Test
+    void jobRequest_withDeadline_roundtripsAsV3() {
+        var job = new JobRequest("job-1", "https://1.1.1.1/img.png", 1, JobLane.INTERACTIVE,
+                1_700_000_000_123L, 1_700_000_060_000L);
+
+        byte[] encoded = codec.encode(job);
+
+        assertThat(encoded[0]).isEqualTo((byte) 3);
+        assertThat(codec.decodeJob(encoded)).isEqualTo(job);
+    }
+
+    @Test
+    void decodeJob_acceptsV1Payload() {
+        // [v1][attempt 3][jobId "job-1"][url "u"]
+        byte[] v1 = {1, 3, 5, 'j', 'o', 'b', '-', '1', 1, 'u'};
+
+        assertThat(codec.decodeJob(v1)).isEqualTo(new JobRequest("job-1", "u", 3, JobLane.INTERACTIVE, 0));
+    }
+
+    @Test
+    void jsonFormat_writesJson() {
+        ReflectionTestUtils.setField(codec, "format", "json");
+        var job = new JobRequest("job-1", "https://1.1.1.1/img.png", 1);
+
+        byte[] encoded = codec.encode(job);
+
+        assertThat(new String(encoded, StandardCharsets.UTF_8)).startsWith("{");
+        assertThat(codec.decodeJob(encoded)).isEqualTo(job);
+    }
+
+    @Test
+    void binaryV1Format_writesV1ForOlderReaders() {
+        ReflectionTestUtils.setField(codec, "format", "binary-v1");
+        var job = new JobRequest("job-1", "https://1.1.1.1/img.png", 2, JobLane.BULK,
+                1_700_000_000_123L, 1_700_000_060_000L);
+
+        byte[] encoded = codec.encode(job);
+
+        assertThat(encoded[0]).isEqualTo((byte) 1);
+        assertThat(codec.decodeJob(encoded))
+                .isEqualTo(new JobRequest("job-1", "https://1.1.1.1/img.png", 2, JobLane.INTERACTIVE, 0));
+    }
+
+    @Test
+    void binaryV2Format_dropsDeadlineButKeepsLane() {
+        ReflectionTestUtils.setField(codec, "format", "binary-v2");
+        var job = new JobRequest("job-1", "https://1.1.1.1/img.png", 2, JobLane.BULK,
+                1_700_000_000_123L, 1_700_000_060_000L);
+
+        byte[] encoded = codec.encode(job);
+
+        assertThat(encoded[0]).isEqualTo((byte) 2);
+        assertThat(codec.decodeJob(encoded))
+                .isEqualTo(new JobRequest("job-1", "https://1.1.1.1/img.png", 2, JobLane.BULK, 1_700_000_000_123L));
+    }
+
+    @Test
+    void dlqEntry_roundtrip() {
+        var entry = new DlqEntry("job-1", "https://1.1.1.1/img.png", 3, 1700000000L, "network error");
+
+        assertThat(codec.decodeDlqEntry(codec.encode(entry))).isEqualTo(entry);
+    }
+
+    @Test
+    void dlqEntry_nullError_roundtrip() {
+        var entry = new DlqEntry("job-1", "https://1.1.1.1/img.png", 3, 1700000000L, null);
+
+        assertThat(codec.decodeDlqEntry(codec.encode(entry))).isEqualTo(entry);
+    }
+
+    @Test
+    void decode_unknownVersion_throws() {
+        assertThatThrownBy(() -> codec.decodeJob(new byte[] {9, 1, 0, 0}))
+                .hasMessageContaining("Unsupported payload version");
+    }
+}
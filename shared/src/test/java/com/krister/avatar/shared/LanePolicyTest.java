@@ -0,0 +1,62 @@
+package com.krister.avatar.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class LanePolicyTest {
+
+    @Test
+    void strict_alwaysPollsInPriorityOrder() {
+        LanePolicy policy = LanePolicy.of("strict", "");
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(policy.nextOrder()).containsExactly(JobLane.INTERACTIVE, JobLane.RETRY, JobLane.BULK);
+        }
+    }
+
+    @Test
+    void weighted_leadsWithEachLaneInProportionToItsWeight() {
+        LanePolicy policy = LanePolicy.weighted("interactive:8,retry:3,bulk:1");
+
+        Map<JobLane, Integer> leads = new EnumMap<>(JobLane.class);
+        for (int i = 0; i < 120; i++) {
+            leads.merge(policy.nextOrder().get(0), 1, Integer::sum);
+        }
+
+        assertThat(leads).containsEntry(JobLane.INTERACTIVE, 80)
+                .containsEntry(JobLane.RETRY, 30)
+                .containsEntry(JobLane.BULK, 10);
+    }
+
+    @Test
+    void weighted_followsLeadWithRemainingLanesInPriorityOrder() {
+        LanePolicy policy = LanePolicy.weighted("interactive:1,retry:1,bulk:5");
+
+        assertThat(policy.nextOrder()).containsExactly(JobLane.BULK, JobLane.INTERACTIVE, JobLane.RETRY);
+    }
+
+    @Test
+    void weighted_missingLaneDefaultsToWeightOne() {
+        LanePolicy policy = LanePolicy.weighted("interactive:2");
+
+        Map<JobLane, Integer> leads = new EnumMap<>(JobLane.class);
+        for (int i = 0; i < 40; i++) {
+            leads.merge(policy.nextOrder().get(0), 1, Integer::sum);
+        }
+
+        assertThat(leads).containsEntry(JobLane.INTERACTIVE, 20).containsEntry(JobLane.BULK, 10);
+    }
+
+    @Test
+    void invalidConfig_throws() {
+        assertThatIllegalArgumentException().isThrownBy(() -> LanePolicy.of("fifo", ""));
+        assertThatIllegalArgumentException().isThrownBy(() -> LanePolicy.weighted("bulk"));
+        assertThatIllegalArgumentException().isThrownBy(() -> LanePolicy.weighted("bulk:0"));
+        assertThatIllegalArgumentException().isThrownBy(() -> LanePolicy.weighted("heavy:2"));
+    }
+}
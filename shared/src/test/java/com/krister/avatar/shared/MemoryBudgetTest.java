@@ -0,0 +1,67 @@
+package com.krister.avatar.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class MemoryBudgetTest {
+
+    @Test
+    void reserve_tracksBytesUntilClosed() throws Exception {
+        MemoryBudget budget = new MemoryBudget(4 * 1024 * 1024);
+
+        try (MemoryBudget.Reservation ignored = budget.reserve(1024 * 1024)) {
+            assertThat(budget.reservedBytes()).isEqualTo(1024 * 1024);
+        }
+
+        assertThat(budget.reservedBytes()).isZero();
+    }
+
+    @Test
+    void reserve_waitsForEarlierReservationToBeReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(4 * 1024 * 1024);
+        MemoryBudget.Reservation first = budget.reserve(3 * 1024 * 1024);
+
+        CompletableFuture<MemoryBudget.Reservation> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(2 * 1024 * 1024);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(second).isNotDone();
+        assertThat(budget.waiting()).isEqualTo(1);
+
+        first.close();
+
+        second.get(5, TimeUnit.SECONDS).close();
+        assertThat(budget.reservedBytes()).isZero();
+    }
+
+    @Test
+    void reservationLargerThanBudget_neverFitsAndIsRefused() {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+
+        assertThat(budget.fits(1024 * 1024)).isTrue();
+        assertThat(budget.fits(1024 * 1024 + 1)).isFalse();
+        assertThatIllegalArgumentException().isThrownBy(() -> budget.reserve(2 * 1024 * 1024));
+    }
+
+    @Test
+    void closeTwice_releasesOnce() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        MemoryBudget.Reservation reservation = budget.reserve(512 * 1024);
+        MemoryBudget.Reservation other = budget.reserve(512 * 1024);
+
+        reservation.close();
+        reservation.close();
+
+        assertThat(budget.reservedBytes()).isEqualTo(512 * 1024);
+        other.close();
+    }
+}
@@ -8,9 +8,11 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
 import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
 import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutBucketLifecycleConfigurationRequest;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -62,4 +64,32 @@ class S3ResultStoreTest {
         assertThat(rule.filter().prefix()).isEqualTo("results/");
         assertThat(rule.expiration().days()).isEqualTo(1);
     }
+
+    @Test
+    void initBucket_lifecycleRules_expireCachedResultsWithResults() {
+        var captor = ArgumentCaptor.forClass(PutBucketLifecycleConfigurationRequest.class);
+
+        store.initBucket();
+
+        verify(s3Client).putBucketLifecycleConfiguration(captor.capture());
+        assertThat(captor.getValue().lifecycleConfiguration().rules())
+                .anySatisfy(rule -> {
+                    assertThat(rule.filter().prefix()).isEqualTo("cache/");
+                    assertThat(rule.expiration().days()).isEqualTo(1);
+                });
+    }
+
+    @Test
+    void copyCached_copiesInsideBucketAndReportsMissingSource() {
+        var captor = ArgumentCaptor.forClass(CopyObjectRequest.class);
+
+        assertThat(store.copyCached("abc", "job-1")).isTrue();
+        verify(s3Client).copyObject(captor.capture());
+        assertThat(captor.getValue().sourceKey()).isEqualTo("cache/abc");
+        assertThat(captor.getValue().destinationKey()).isEqualTo("results/job-1");
+
+        when(s3Client.copyObject(any(CopyObjectRequest.class)))
+                .thenThrow(NoSuchKeyException.builder().statusCode(404).build());
+        assertThat(store.copyCached("abc", "job-2")).isFalse();
+    }
 }
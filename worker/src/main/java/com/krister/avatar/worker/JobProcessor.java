@@ -1,11 +1,20 @@
 package com.krister.avatar.worker;
 
 import com.krister.avatar.core.AnimatedGifProcessor;
+import com.krister.avatar.core.CropMemory;
 import com.krister.avatar.core.DiscordImageResizer;
+import com.krister.avatar.core.ImageProbe;
+import com.krister.avatar.core.SmartCropper;
+import com.krister.avatar.shared.GifPart;
+import com.krister.avatar.shared.JobCancellations;
+import com.krister.avatar.shared.JobLane;
 import com.krister.avatar.shared.JobStatus;
+import com.krister.avatar.shared.MemoryBudget;
 import com.krister.avatar.shared.ProcessingResult;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.S3ResultStore;
+import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
@@ -18,11 +27,61 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.imageio.ImageIO;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+// Processes a job in three stages, so the worker pool can run each on the kind of thread that
+// suits it (see JobWorkerPool):
+//
+//   download  → fetch the source image (HTTP, or S3 for uploads)   — I/O
+//   transform → decode, face-detect, crop, resize and encode       — CPU
+//   store     → upload the result to S3 and mark the job COMPLETED  — I/O
+//
+// A stage that throws ends the job there: it is retried with backoff or dead-lettered.
+//
+// Before any work, download checks the job is still wanted: a job past its client deadline,
+// or whose record has expired (nobody can poll for or claim its result any more), is dropped
+// and counted in jobs.expired. After a backlog, workers then spend their time only on results
+// someone will collect.
+//
+// A job cancelled through the API stops at the next check: markStarted reports a job
+// cancelled while queued, and a running job's JobCancellations flag is checked before each
+// stage, after decoding and between GIF frames. Each check is a memory read, so cancelled
+// work stops within one frame or one stage.
+//
+// Decoded pixels, not the compressed bytes, are what fill the heap: a 1000×1000 GIF with 300
+// frames is a few MB on the wire and over 1 GB once every frame is composited. So the
+// download stage sizes each job from its header (width × height × frames × 4 bytes of ARGB),
+// and transform reserves that much from a process-wide MemoryBudget
+// (job.worker.decode-budget-mb) before decoding, waiting while other jobs hold it. A job
+// that needs more than the whole budget could never run here; it fails at once, without
+// retries.
+//
+// With job.worker.gif-split-frames set, a GIF with at least that many frames is not processed
+// on one thread. Its transform only detects the crop on the first frame, and its store stage
+// stages the source in S3 and queues one part per job.worker.gif-frames-per-part frames
+// (RedisJobStore.splitJob). Any worker's general threads pick the parts up. Each part
+// processes its own frame range and stores it as a result of its own. The worker that
+// finishes the last part stitches them into the parent's result and completes the parent.
+// A huge GIF then takes about as long as its largest part, given enough workers.
+//
+// Right after download, the source bytes are hashed and looked up in the ResultCache. On a
+// hit the cached result is copied to the job in S3 and the job completes there, skipping
+// decode, face detection, resize and encode; on a miss the result is cached once stored.
+// Near-duplicates that the exact hash misses (re-encodes, rescales) still skip face detection
+// through SmartCropper's CropMemory, sized by job.worker.crop-reuse.*.
+//
+// A job may have followers: later submissions of the same URL that waited on it rather than
+// being queued (RedisJobStore.attachFollower). They get copies of its result before it is
+// marked COMPLETED, and are queued on their own if it fails, expires or is cancelled.
 @Component
 public class JobProcessor {
 
@@ -32,6 +91,8 @@ public class JobProcessor {
     private final S3ResultStore s3ResultStore;
     private final MeterRegistry meterRegistry;
     private final Tracer tracer;
+    private final JobCancellations cancellations;
+    private final ResultCache resultCache;
 
     @Value("${job.retry.max-attempts:3}")
     private int maxAttempts;
@@ -39,107 +100,562 @@ public class JobProcessor {
     @Value("${job.retry.base-delay-seconds:10}")
     private long baseDelaySeconds;
 
+    // With heavy threads, an animated GIF claimed from a general lane is moved to the HEAVY
+    // lane rather than processed on the general thread; with 0 it runs where it was claimed.
+    @Value("${job.worker.heavy-thread-count:1}")
+    private int heavyThreadCount;
+
+    // 0 disables splitting.
+    @Value("${job.worker.gif-split-frames:0}")
+    private int gifSplitFrames;
+
+    @Value("${job.worker.gif-frames-per-part:50}")
+    private int gifFramesPerPart;
+
     // AtomicInteger is a thread-safe integer — increment/decrement are guaranteed to be
     // seen correctly by all threads without synchronization blocks.
     private final AtomicInteger activeJobs = new AtomicInteger(0);
+    private final AtomicInteger activeHeavyJobs = new AtomicInteger(0);
+    private final MemoryBudget decodeBudget;
 
+    // decodeBudgetMb is "auto" for half the max heap, leaving the rest for everything else.
     public JobProcessor(RedisJobStore jobStore, S3ResultStore s3ResultStore,
-                        MeterRegistry meterRegistry, Tracer tracer) {
+                        MeterRegistry meterRegistry, Tracer tracer, JobCancellations cancellations,
+                        ResultCache resultCache,
+                        @Value("${job.worker.decode-budget-mb:auto}") String decodeBudgetMb,
+                        @Value("${job.worker.crop-reuse.capacity:0}") int cropReuseCapacity,
+                        @Value("${job.worker.crop-reuse.max-distance:4}") int cropReuseMaxDistance) {
         this.jobStore = jobStore;
         this.s3ResultStore = s3ResultStore;
         this.meterRegistry = meterRegistry;
         this.tracer = tracer;
+        this.cancellations = cancellations;
+        this.resultCache = resultCache;
+        this.decodeBudget = new MemoryBudget("auto".equalsIgnoreCase(decodeBudgetMb.trim())
+                ? Runtime.getRuntime().maxMemory() / 2
+                : Long.parseLong(decodeBudgetMb.trim()) * 1024 * 1024);
         // Gauge is a metric that reflects a current value (like a fuel gauge), as opposed
         // to a Counter (ever-increasing) or Timer (duration histogram). This makes the
         // "currently active jobs" number visible in Grafana in real time.
         Gauge.builder("jobs.active", activeJobs, AtomicInteger::get)
                 .description("Jobs currently being processed by the worker pool")
                 .register(meterRegistry);
+        Gauge.builder("jobs.heavy.active", activeHeavyJobs, AtomicInteger::get)
+                .description("Jobs currently being processed by the heavy pool")
+                .register(meterRegistry);
+        Gauge.builder("jobs.decode.budget", decodeBudget, MemoryBudget::capacityBytes)
+                .description("Bytes of decoded pixels all jobs may hold at once").baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("jobs.decode.reserved", decodeBudget, MemoryBudget::reservedBytes)
+                .description("Bytes of the decode budget reserved by running jobs").baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("jobs.decode.waiting", decodeBudget, MemoryBudget::waiting)
+                .description("Jobs waiting for room in the decode budget")
+                .register(meterRegistry);
+        // Near-duplicate crop reuse lives in core, which has no metrics of its own, so its
+        // counts are read from the CropMemory on each scrape.
+        CropMemory cropMemory = new CropMemory(cropReuseCapacity, cropReuseMaxDistance);
+        SmartCropper.setCropMemory(cropMemory);
+        FunctionCounter.builder("jobs.crop.reused", cropMemory, CropMemory::reused)
+                .description("Crops reused from a near-duplicate image instead of running face detection")
+                .register(meterRegistry);
+        FunctionCounter.builder("jobs.crop.detected", cropMemory, CropMemory::detected)
+                .description("Crops chosen by running face detection")
+                .register(meterRegistry);
+        FunctionCounter.builder("jobs.crop.inference.saved", cropMemory, memory -> memory.savedNanos() / 1e9)
+                .description("Estimated face-detection time skipped by reused crops").baseUnit("seconds")
+                .register(meterRegistry);
+        // Queue-wide numbers read from Redis on each scrape. With the stream backend
+        // jobs.queue.waiting is the consumer group's lag.
+        Gauge.builder("jobs.queue.waiting", jobStore, store -> store.queueStats().waiting())
+                .description("Jobs in the queue not yet claimed by any worker")
+                .register(meterRegistry);
+        Gauge.builder("jobs.queue.in_flight", jobStore, store -> store.queueStats().inFlight())
+                .description("Jobs claimed by a worker and not yet acked (reliable mode or stream backend)")
+                .register(meterRegistry);
+        for (JobLane lane : JobLane.values()) {
+            Gauge.builder("jobs.queue.lane.waiting", jobStore,
+                            store -> store.queueStats().waitingByLane().getOrDefault(lane.tag(), 0L))
+                    .description("Jobs waiting in one priority lane")
+                    .tag("lane", lane.tag())
+                    .register(meterRegistry);
+        }
+        // Tenants with jobs held back in their fair share sub-queues; always 0 with fair share off.
+        Gauge.builder("jobs.queue.tenants.active", jobStore,
+                        store -> store.activeTenants(JobLane.INTERACTIVE) + store.activeTenants(JobLane.BULK))
+                .description("Tenants with jobs waiting for their fair share of the queue")
+                .register(meterRegistry);
     }
 
-    public void process(String jobId, String url, int attempt) {
-        // MDC (Mapped Diagnostic Context) attaches key-value pairs to the current thread's
-        // log context. Every log.info/warn/error call below will automatically include
-        // jobId and attempt in the log output, making it easy to trace a job across log lines.
-        MDC.put("jobId", jobId);
-        MDC.put("attempt", String.valueOf(attempt));
-        // Timer.Sample captures the start timestamp; .stop() records the elapsed duration.
-        Timer.Sample sample = Timer.start(meterRegistry);
-        activeJobs.incrementAndGet();
+    // What a stage left the job ready for: NEXT hands it to the following stage; DONE means it
+    // finished here — completed, or failed and scheduled for retry or dead-lettered; MOVED
+    // means it was moved to the heavy lane and its claim already acked.
+    public enum Outcome { NEXT, DONE, MOVED }
+
+    // A job on its way through the stages. Each field is written by one stage and read by the
+    // next; handing the Job over through a BlockingQueue or Thread.start publishes the writes
+    // to whichever thread runs that next stage.
+    static final class Job {
+        final RedisJobStore.JobRequest request;
+        // Non-null when this job is one frame range of a split GIF.
+        final GifPart part;
+        final Timer.Sample sample;
+        final Span span;
+        // Set from any thread when the job is cancelled while it runs.
+        final AtomicBoolean cancelled;
+        byte[] rawBytes;
+        boolean animated;
+        int frames;
+        // SHA-256 of the source, set when the result is to be cached.
+        String contentHash;
+        // The parts a GIF is to be split into, planned by transform and queued by store.
+        List<GifPart> split;
+        ProcessingResult result;
+        // Estimated bytes of decoded pixels, reserved from the decode budget during transform.
+        long decodeBytes;
+        // KiB of the pool's prefetch budget this job holds while it waits for a CPU thread.
+        int prefetchKb;
+
+        private Job(RedisJobStore.JobRequest request, Timer.Sample sample, Span span, AtomicBoolean cancelled) {
+            this.request = request;
+            this.part = GifPart.parse(request.url());
+            this.sample = sample;
+            this.span = span;
+            this.cancelled = cancelled;
+        }
+
+        boolean heavy() {
+            return request.lane() == JobLane.HEAVY;
+        }
+
+        // Uploads arrive via s3://uploads/{jobId}; regular jobs are HTTP/HTTPS URLs.
+        String uploadKey() {
+            return request.url().startsWith("s3://uploads/") ? request.url().substring("s3://uploads/".length()) : null;
+        }
+    }
 
+    @FunctionalInterface
+    private interface Stage {
+        Outcome run() throws Exception;
+    }
+
+    // Runs every stage on the calling thread. The heavy pool works this way, and so does
+    // anything that just wants a job done. request is the job as claimed, so its deadline and
+    // enqueue time carry through to the stages and any retry; its lane is the lane it was
+    // claimed from, and HEAVY means this is a heavy pool thread.
+    // Returns false if the job was moved to the heavy lane instead of finished here — its
+    // claim has then already been acked (see RedisJobStore.moveToLane).
+    public boolean process(RedisJobStore.JobRequest request) {
+        Job job = start(request);
+        Outcome outcome = download(job);
+        if (outcome == Outcome.NEXT) outcome = transform(job);
+        if (outcome == Outcome.NEXT) outcome = store(job);
+        return outcome != Outcome.MOVED;
+    }
+
+    // Opens the job's span and timer. Every Job started must end in a stage returning DONE or
+    // MOVED, or in abandon().
+    Job start(RedisJobStore.JobRequest request) {
+        activeJobs.incrementAndGet();
+        if (request.lane() == JobLane.HEAVY) activeHeavyJobs.incrementAndGet();
         // Distributed tracing: a Span represents a unit of work. This span covers the entire
         // job processing step. In Jaeger, it appears as a child of the /api/jobs HTTP span
         // that submitted the job, showing the full request → queue → process timeline.
+        // Each stage adds an event to it, so time spent waiting between stages shows up too.
         Span span = tracer.nextSpan().name("job.process").start();
-        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
-            span.tag("job.id", jobId);
-            span.tag("job.attempt", String.valueOf(attempt));
+        span.tag("job.id", request.jobId());
+        span.tag("job.attempt", String.valueOf(request.attempt()));
+        // Timer.Sample captures the start timestamp; .stop() records the elapsed duration.
+        // Tracked before markStarted, so a cancellation published after it is not missed.
+        return new Job(request, Timer.start(meterRegistry), span, cancellations.track(request.jobId()));
+    }
 
-            try {
-                jobStore.setStatus(jobId, JobStatus.PROCESSING);
-                log.info("Job processing started");
+    // I/O stage: fetches the source image.
+    Outcome download(Job job) {
+        return inStage(job, () -> {
+            RedisJobStore.JobRequest req = job.request;
+            // The deadline costs nothing to check; the record's existence is checked by the
+            // status write every job makes anyway.
+            if (req.expired(System.currentTimeMillis())) {
+                jobStore.markExpired(req.jobId());
+                return drop(job, "deadline");
+            }
+            JobStatus started = jobStore.markStarted(req.jobId(), req.attempt());
+            if (started == null) return drop(job, "record_expired");
+            if (started == JobStatus.CANCELLED) return stopCancelled(job);
+            log.info("Job processing started");
 
-                // Uploads arrive via s3://uploads/{jobId}; regular jobs are HTTP/HTTPS URLs.
-                boolean isUpload = url.startsWith("s3://uploads/");
-                byte[] rawBytes = isUpload
-                        ? s3ResultStore.downloadUpload(url.substring("s3://uploads/".length()))
-                        : DiscordImageResizer.downloadRaw(url);
+            String uploadKey = job.uploadKey();
+            if (job.part != null) {
+                job.rawBytes = s3ResultStore.downloadUpload(job.part.parentId());
+            } else if (uploadKey != null) {
+                job.rawBytes = s3ResultStore.downloadUpload(uploadKey);
+            } else {
+                job.rawBytes = DiscordImageResizer.downloadRaw(req.url());
+            }
+            // A part's result is only a slice of a GIF, so parts are neither looked up nor cached.
+            if (job.part == null && resultCache.isEnabled()) {
+                job.contentHash = ResultCache.hash(job.rawBytes);
+                long cached = resultCache.copyTo(job.contentHash, req.jobId());
+                meterRegistry.counter("jobs.cache", "result", cached >= 0 ? "hit" : "miss").increment();
+                if (cached >= 0) return completeFromCache(job, cached);
+            }
+            job.animated = job.part != null || AnimatedGifProcessor.isAnimatedGif(job.rawBytes);
+            ImageProbe.Estimate estimate = ImageProbe.probe(job.rawBytes);
+            job.frames = estimate.frames();
+            // A part holds its own frames plus the canvas they are composited on; a GIF about
+            // to be split only ever decodes its first frame.
+            int framesHeld = job.part != null ? job.part.frames() + 1 : splits(job) ? 1 : estimate.frames();
+            job.decodeBytes = decodedSize(estimate, job.rawBytes.length, framesHeld);
+            if (!decodeBudget.fits(job.decodeBytes)) {
+                // Checked before the heavy lane move, so a GIF that can never fit isn't
+                // downloaded a second time just to be refused there.
+                meterRegistry.counter("jobs.decode.rejected").increment();
+                fail(job, new IOException("Image too large to process: needs about "
+                        + job.decodeBytes / (1024 * 1024) + " MB decoded, the worker's decode budget is "
+                        + decodeBudget.capacityBytes() / (1024 * 1024) + " MB"), false);
+                return Outcome.DONE;
+            }
+            if (job.cancelled.get()) return stopCancelled(job);
+            // Parts and GIFs about to be split are bounded by their part size, so they stay on
+            // the general threads.
+            if (job.animated && job.part == null && !splits(job) && !job.heavy() && heavyThreadCount > 0) {
+                // Costs the heavy thread a second download, but a general thread never
+                // holds a GIF's frames in memory and goes straight back to still images.
+                JobStatus moved = jobStore.moveToLane(req, JobLane.HEAVY);
+                if (moved == null) return drop(job, "record_expired");
+                if (moved == JobStatus.CANCELLED) return stopCancelled(job);
+                if (moved == JobStatus.PROCESSING) {
+                    // The lease lapsed and the job was claimed elsewhere; it is that claim's now.
+                    job.span.tag("job.outcome", "lease_lost");
+                    log.info("Lease lost before the move to the heavy lane, left to its new owner");
+                    finish(job);
+                    return Outcome.DONE;
+                }
+                meterRegistry.counter("jobs.moved.heavy").increment();
+                job.span.tag("job.outcome", "moved");
+                log.info("Detected animated GIF, moved to the heavy lane");
+                finish(job);
+                return Outcome.MOVED;
+            }
+            job.span.event("downloaded");
+            return Outcome.NEXT;
+        });
+    }
 
-                ProcessingResult result;
-                if (AnimatedGifProcessor.isAnimatedGif(rawBytes)) {
+    // CPU stage: decodes, crops, resizes and encodes. Touches neither the network nor Redis.
+    // Holds the job's share of the decode budget from before decoding until the result is
+    // encoded, by which point the decoded frames are garbage.
+    Outcome transform(Job job) {
+        return inStage(job, () -> {
+            try (MemoryBudget.Reservation ignored = decodeBudget.reserve(job.decodeBytes)) {
+                if (job.part != null) {
+                    GifPart part = job.part;
+                    job.result = new ProcessingResult(AnimatedGifProcessor.processRange(job.rawBytes,
+                            part.fromFrame(), part.toFrame(),
+                            new Rectangle(part.cropX(), part.cropY(), part.cropWidth(), part.cropHeight()),
+                            job.cancelled::get), "image/gif");
+                } else if (splits(job)) {
+                    job.split = planParts(job, AnimatedGifProcessor.cropRect(job.rawBytes));
+                    job.span.event("split");
+                    return Outcome.NEXT;
+                } else if (job.animated) {
                     log.info("Detected animated GIF, processing all frames");
-                    result = new ProcessingResult(AnimatedGifProcessor.process(rawBytes), "image/gif");
+                    job.result = new ProcessingResult(
+                            AnimatedGifProcessor.process(job.rawBytes, job.cancelled::get), "image/gif");
                 } else {
                     // ImageIO.read decodes the raw bytes into a BufferedImage (in-memory pixel grid).
-                    BufferedImage img = ImageIO.read(new ByteArrayInputStream(rawBytes));
-                    if (img == null) throw new java.io.IOException("URL did not return a recognized image");
+                    BufferedImage img = ImageIO.read(new ByteArrayInputStream(job.rawBytes));
+                    if (img == null) throw new IOException("URL did not return a recognized image");
+                    // Face detection is the expensive part; don't start it for a cancelled job.
+                    if (job.cancelled.get()) throw new CancellationException();
                     BufferedImage resized = DiscordImageResizer.resizeImage(img, 128, 128);
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     ImageIO.write(resized, "png", baos);
-                    result = new ProcessingResult(baos.toByteArray(), "image/png");
+                    job.result = new ProcessingResult(baos.toByteArray(), "image/png");
                 }
-                s3ResultStore.storeResult(jobId, result);
+            }
+            // The source can be collected while the result waits for an upload slot.
+            job.rawBytes = null;
+            job.span.event("transformed");
+            return Outcome.NEXT;
+        });
+    }
 
-                // Delete upload only after result is safely stored so retries can re-read the source.
-                if (isUpload) {
-                    s3ResultStore.deleteUpload(url.substring("s3://uploads/".length()));
-                }
+    // I/O stage: stores the result and completes the job.
+    Outcome store(Job job) {
+        return inStage(job, () -> {
+            if (job.split != null) return queueParts(job);
+            if (job.part != null) return storePart(job);
+            RedisJobStore.JobRequest req = job.request;
+            s3ResultStore.storeResult(req.jobId(), job.result);
+            if (job.contentHash != null) resultCache.put(job.contentHash, job.result);
+            shareResult(req.jobId(), req.url(), job.result.data().length);
 
-                jobStore.setStatus(jobId, JobStatus.COMPLETED);
+            // Delete upload only after result is safely stored so retries can re-read the source.
+            String uploadKey = job.uploadKey();
+            if (uploadKey != null) {
+                s3ResultStore.deleteUpload(uploadKey);
+            }
 
-                log.info("Job completed");
-                span.tag("job.outcome", "completed");
-                sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "completed"));
+            jobStore.markCompleted(req.jobId(), job.result.data().length);
 
-            } catch (Exception e) {
-                span.error(e);
-
-                if (attempt < maxAttempts) {
-                    // Exponential backoff: delay doubles with each attempt to avoid hammering
-                    // a temporarily unavailable resource. Formula: baseDelay * 2^(attempt-1)
-                    // With defaults (base=10s): attempt 1→10s, attempt 2→20s, attempt 3→40s.
-                    // "1L << (attempt - 1)" is a left bit-shift — equivalent to 2^(attempt-1)
-                    // but avoids floating-point conversion.
-                    long delaySeconds = baseDelaySeconds * (1L << (attempt - 1));
-                    jobStore.scheduleRetry(jobId, url, attempt + 1, delaySeconds);
-                    jobStore.setStatus(jobId, JobStatus.PENDING);
-                    meterRegistry.counter("jobs.retried").increment();
-                    span.tag("job.outcome", "retrying");
-                    log.warn("Job failed, scheduling retry nextAttempt={} delaySeconds={}", attempt + 1, delaySeconds, e);
-                } else {
-                    jobStore.setStatus(jobId, JobStatus.FAILED);
-                    jobStore.pushToDlq(jobId, url, attempt, e.getMessage());
-                    span.tag("job.outcome", "failed");
-                    log.error("Job failed after max attempts attempt={}", attempt, e);
-                }
+            log.info("Job completed");
+            job.span.tag("job.outcome", "completed");
+            job.sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "completed", "pool", pool(job)));
+            finish(job);
+            return Outcome.DONE;
+        });
+    }
 
-                sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "failed"));
+    // Completes the jobs that attached to this one while it ran (RedisJobStore.attachFollower)
+    // with copies of its result. Runs before the leader itself is marked COMPLETED: from then
+    // on its client may claim, and so delete, the result being copied. A follower whose copy
+    // fails is queued to run on its own rather than failing the leader.
+    private void shareResult(String leaderId, String url, long outputBytes) {
+        List<String> followers = jobStore.releaseFollowers(leaderId, url);
+        if (followers.isEmpty()) return;
+        List<String> unserved = new ArrayList<>();
+        for (String follower : followers) {
+            try {
+                s3ResultStore.copyResult(leaderId, follower);
+                jobStore.markCompleted(follower, outputBytes);
+            } catch (RuntimeException e) {
+                log.warn("Could not share result with follower followerId={}", follower, e);
+                unserved.add(follower);
+            }
+        }
+        if (!unserved.isEmpty()) jobStore.requeueFollowers(unserved);
+        meterRegistry.counter("jobs.singleflight.served").increment(followers.size() - unserved.size());
+        log.info("Shared result with followers served={} requeued={}", followers.size() - unserved.size(),
+                unserved.size());
+    }
+
+    // The result is already in place under the job's ID (ResultCache.copyTo).
+    private Outcome completeFromCache(Job job, long outputBytes) {
+        String uploadKey = job.uploadKey();
+        if (uploadKey != null) s3ResultStore.deleteUpload(uploadKey);
+        job.rawBytes = null;
+        shareResult(job.request.jobId(), job.request.url(), outputBytes);
+        jobStore.markCompleted(job.request.jobId(), outputBytes);
+        log.info("Job completed from the result cache");
+        job.span.tag("job.outcome", "cached");
+        job.sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "cached", "pool", pool(job)));
+        finish(job);
+        return Outcome.DONE;
+    }
+
+    // Stages the source where the parts read it (an upload is there already) and queues the
+    // parts. The parent stays PROCESSING until its last part stitches it.
+    private Outcome queueParts(Job job) {
+        RedisJobStore.JobRequest req = job.request;
+        if (job.uploadKey() == null) s3ResultStore.storeUpload(req.jobId(), job.rawBytes, "image/gif");
+        job.rawBytes = null;
+        jobStore.splitJob(req, job.split);
+        meterRegistry.counter("jobs.gif.split").increment();
+        meterRegistry.counter("jobs.gif.parts").increment(job.split.size());
+        log.info("Split animated GIF across workers frames={} parts={}", job.frames, job.split.size());
+        job.span.tag("job.outcome", "split");
+        job.sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "split", "pool", pool(job)));
+        finish(job);
+        return Outcome.DONE;
+    }
+
+    // Stores a part's frames and, if it was the last part to finish, stitches the parent.
+    private Outcome storePart(Job job) throws IOException {
+        GifPart part = job.part;
+        s3ResultStore.storeResult(part.jobId(), job.result);
+        if (jobStore.completePart(part)) stitch(part);
+        log.info("GIF part completed part={}/{} frames={}-{}", part.index() + 1, part.parts(),
+                part.fromFrame(), part.toFrame());
+        job.span.tag("job.outcome", "completed");
+        job.sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "completed", "pool", pool(job)));
+        finish(job);
+        return Outcome.DONE;
+    }
+
+    // Joins the parts' 128×128 frames into the parent's result. Cheap next to processing
+    // them, so it runs here rather than as a job of its own. The parts are deleted only once
+    // the parent is complete: if the stitch fails, this part is retried, and the retry
+    // stitches again (see RedisJobStore.completePart).
+    private void stitch(GifPart part) throws IOException {
+        List<byte[]> parts = new ArrayList<>(part.parts());
+        for (int i = 0; i < part.parts(); i++) {
+            byte[] data = s3ResultStore.readResult(GifPart.jobId(part.parentId(), i));
+            if (data == null) throw new IOException("GIF part " + i + " of " + part.parentId() + " is missing");
+            parts.add(data);
+        }
+        ProcessingResult result = new ProcessingResult(AnimatedGifProcessor.stitch(parts), "image/gif");
+        s3ResultStore.storeResult(part.parentId(), result);
+        s3ResultStore.deleteUpload(part.parentId());
+        RedisJobStore.JobRecord parent = jobStore.getJob(part.parentId());
+        if (parent != null) shareResult(part.parentId(), parent.url(), result.data().length);
+        jobStore.markCompleted(part.parentId(), result.data().length);
+        for (int i = 0; i < part.parts(); i++) {
+            s3ResultStore.deleteResult(GifPart.jobId(part.parentId(), i));
+        }
+        log.info("Stitched split GIF parentId={} parts={}", part.parentId(), part.parts());
+    }
+
+    private boolean splits(Job job) {
+        return job.part == null && job.animated && gifSplitFrames > 0 && job.frames >= gifSplitFrames;
+    }
+
+    private List<GifPart> planParts(Job job, Rectangle crop) {
+        int count = (job.frames + gifFramesPerPart - 1) / gifFramesPerPart;
+        List<GifPart> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int from = i * gifFramesPerPart;
+            parts.add(new GifPart(job.request.jobId(), i, count, from, Math.min(from + gifFramesPerPart, job.frames),
+                    crop.x, crop.y, crop.width, crop.height));
+        }
+        return parts;
+    }
+
+    // Ends a job nobody is waiting for any more without processing it. The pool acks it, and
+    // an upload's source is left to the bucket's lifecycle rule.
+    private Outcome drop(Job job, String reason) {
+        // Followers may have later deadlines of their own, or none.
+        jobStore.requeueFollowers(job.request.jobId(), job.request.url());
+        meterRegistry.counter("jobs.expired", "reason", reason).increment();
+        job.span.tag("job.outcome", "expired");
+        log.info("Job expired before processing, dropped reason={}", reason);
+        finish(job);
+        return Outcome.DONE;
+    }
+
+    // Ends a cancelled job where it stands. The record already reads CANCELLED; the pool acks
+    // the job, and an upload's source is left to the bucket's lifecycle rule.
+    private Outcome stopCancelled(Job job) {
+        meterRegistry.counter("jobs.cancelled").increment();
+        job.span.tag("job.outcome", "cancelled");
+        log.info("Job cancelled, stopped processing");
+        finish(job);
+        return Outcome.DONE;
+    }
+
+    // Ends a job that was claimed and started but will not run to the end here, e.g. one still
+    // waiting between stages when the pool shuts down. The caller hands it back to the queue;
+    // the record goes back to PENDING so it doesn't read as PROCESSING while it waits there.
+    void abandon(Job job) {
+        try {
+            jobStore.markPending(job.request.jobId());
+        } finally {
+            job.span.tag("job.outcome", "released");
+            finish(job);
+        }
+    }
+
+    // Each stage may run on a different thread, so the log context and span scope are set up
+    // again around every one.
+    private Outcome inStage(Job job, Stage stage) {
+        // MDC (Mapped Diagnostic Context) attaches key-value pairs to the current thread's
+        // log context. Every log.info/warn/error call in the stage will automatically include
+        // jobId and attempt in the log output, making it easy to trace a job across log lines.
+        MDC.put("jobId", job.request.jobId());
+        MDC.put("attempt", String.valueOf(job.request.attempt()));
+        try (Tracer.SpanInScope ignored = tracer.withSpan(job.span)) {
+            // Also catches a job cancelled while it waited between stages.
+            if (job.cancelled.get()) return stopCancelled(job);
+            try {
+                return stage.run();
+            } catch (Exception e) {
+                // Whatever failed, a cancelled job is neither retried nor dead-lettered.
+                if (job.cancelled.get() || e instanceof CancellationException) return stopCancelled(job);
+                fail(job, e);
+                return Outcome.DONE;
             }
         } finally {
-            span.end();
-            activeJobs.decrementAndGet();
             // Clear MDC so the next job processed by this thread starts with a clean context.
             MDC.clear();
         }
     }
+
+    // Pixel memory the decoded image will occupy: 4 bytes of ARGB per pixel, per frame (the
+    // GIF decoder keeps a full-canvas copy of every frame). When the header can't be read the
+    // decode will most likely fail anyway; the compressed size stands in until it does.
+    static long decodedSize(byte[] rawBytes) {
+        ImageProbe.Estimate estimate = ImageProbe.probe(rawBytes);
+        return decodedSize(estimate, rawBytes.length, estimate.frames());
+    }
+
+    private static long decodedSize(ImageProbe.Estimate estimate, long rawLength, int frames) {
+        if (estimate.width() <= 0 || estimate.height() <= 0) return rawLength;
+        return (long) estimate.width() * estimate.height() * frames * 4;
+    }
+
+    private void fail(Job job, Exception e) {
+        fail(job, e, true);
+    }
+
+    // retryable is false for failures a later attempt would hit again, e.g. an image too large
+    // for this worker; those go straight to the DLQ.
+    private void fail(Job job, Exception e, boolean retryable) {
+        try {
+            job.span.error(e);
+            job.span.tag("job.outcome", retryOrFail(job.request, job.part, e, retryable));
+            job.sample.stop(meterRegistry.timer("jobs.processing.duration", "status", "failed", "pool", pool(job)));
+        } finally {
+            finish(job);
+        }
+    }
+
+    // For a job whose stage threw past fail() — a bug, or Redis failing while the failure was
+    // being recorded. It takes the same retry path, so a job that keeps failing this way still
+    // backs off and is dead-lettered once out of attempts. Throws if Redis is still failing;
+    // the caller then leaves the job to its lease.
+    void failAfterError(RedisJobStore.JobRequest req, Exception e) {
+        GifPart part;
+        try {
+            part = GifPart.parse(req.url());
+        } catch (IllegalArgumentException malformed) {
+            // What threw in the first place; fail it as the plain job it claims to be.
+            part = null;
+        }
+        retryOrFail(req, part, e, true);
+    }
+
+    // Schedules the next attempt with backoff, or dead-letters the job once it is out of
+    // attempts (for a part, the whole GIF). Returns the outcome to tag the span with.
+    private String retryOrFail(RedisJobStore.JobRequest req, GifPart part, Exception e, boolean retryable) {
+        int attempt = req.attempt();
+        if (retryable && attempt < maxAttempts) {
+            // Exponential backoff: delay doubles with each attempt to avoid hammering
+            // a temporarily unavailable resource. Formula: baseDelay * 2^(attempt-1)
+            // With defaults (base=10s): attempt 1→10s, attempt 2→20s, attempt 3→40s.
+            // "1L << (attempt - 1)" is a left bit-shift — equivalent to 2^(attempt-1)
+            // but avoids floating-point conversion.
+            long delaySeconds = baseDelaySeconds * (1L << (attempt - 1));
+            // Also flips the job record back to PENDING, in the same script call.
+            jobStore.scheduleRetry(req.jobId(), req.url(), attempt + 1, delaySeconds, req.deadline(),
+                    req.lane());
+            meterRegistry.counter("jobs.retried").increment();
+            log.warn("Job failed, scheduling retry nextAttempt={} delaySeconds={}", attempt + 1, delaySeconds, e);
+            return "retrying";
+        }
+        if (part != null) {
+            jobStore.failSplitJob(part, attempt, e.getMessage());
+            log.error("GIF part failed, failing the whole GIF parentId={} attempt={}",
+                    part.parentId(), attempt, e);
+        } else {
+            jobStore.markFailed(req.jobId(), req.url(), attempt, e.getMessage());
+            if (retryable) {
+                log.error("Job failed after max attempts attempt={}", attempt, e);
+            } else {
+                log.error("Job failed and will not be retried attempt={}", attempt, e);
+            }
+        }
+        return "failed";
+    }
+
+    private void finish(Job job) {
+        cancellations.untrack(job.request.jobId(), job.cancelled);
+        job.span.end();
+        activeJobs.decrementAndGet();
+        if (job.heavy()) activeHeavyJobs.decrementAndGet();
+    }
+
+    private static String pool(Job job) {
+        return job.heavy() ? "heavy" : "general";
+    }
 }
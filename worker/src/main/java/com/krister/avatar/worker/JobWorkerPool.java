@@ -1,6 +1,12 @@
 package com.krister.avatar.worker;
 
+import com.krister.avatar.shared.AdaptiveConcurrency;
+import com.krister.avatar.shared.JobLane;
+import com.krister.avatar.shared.LanePolicy;
 import com.krister.avatar.shared.RedisJobStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
@@ -8,11 +14,72 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-// Manages a fixed pool of threads that each block on the Redis queue waiting for jobs.
-// Running multiple threads (default: 2) allows jobs to be processed in parallel —
-// while one thread is waiting for an image to download, another can be processing.
+// Runs jobs from the Redis queue as a staged pipeline, so CPU threads never sit blocked on
+// the network:
+//
+//   fetcher ─claim─▶ download (virtual thread per job, up to io-concurrency at once)
+//           ─bounded queue (cpu-queue-capacity)─▶ CPU stage (thread-count platform threads)
+//           ─▶ upload (virtual thread per job, up to io-concurrency at once)
+//
+// Virtual threads are cheap enough to park one per in-flight download or upload, however slow
+// the origin CDN or S3 is, while the CPU stage is a fixed pool of job.worker.thread-count
+// platform threads (default 2; "auto" sizes it to the cores). Every hand-off is bounded: a
+// download waits for room in the CPU queue while holding its slot, and a CPU thread waits for
+// an upload slot, so when one stage falls behind the ones before it slow down instead of
+// piling up images in memory, and the fetcher stops claiming jobs once every download slot is
+// taken.
+//
+// The download stage is the pool's prefetch: while a CPU thread works on one job, the next
+// ones are already claimed and downloading. Prefetched bytes are bounded as well as counted —
+// a finished download reserves its size from job.worker.prefetch-budget-mb before it may join
+// the CPU queue, and gives it back when a CPU thread takes it. A few 20 MB originals therefore
+// hold the rest of the downloads back rather than the queue filling with them.
+//
+// The fetcher claims up to job.worker.dequeue-batch-size jobs per round-trip, never more than
+// there are free download slots. Each claim polls the priority lanes in the order the
+// LanePolicy picks (job.queue.lane-policy: strict, or weighted by job.queue.lane-weights), so
+// interactive jobs are not stuck behind a bulk backlog. How long each claimed job waited in its
+// lane is recorded as jobs.queue.wait.
+//
+// Animated GIFs run on a separate set of heavy threads (job.worker.heavy-thread-count), which
+// claim only from the HEAVY lane, one job at a time, and run all three stages themselves. A
+// download that turns out to be a GIF moves the job to that lane (see JobProcessor), so
+// however many GIFs are queued, at most heavy-thread-count of them are decoded in this JVM at
+// once and still images keep every CPU thread.
+//
+// With job.worker.adaptive.enabled the CPU stage is resized at runtime: max-threads platform
+// threads are started, but only as many as the current limit may hold a job at once. Every
+// adaptive.interval-ms a controller thread samples the backlog (Redis and the CPU queue), the
+// process CPU load, the old-generation heap left after the last GC and the mean CPU-stage time,
+// and AdaptiveConcurrency moves the limit between min-threads and max-threads — one step up
+// while work is waiting and cores are free, halved when memory runs short or jobs slow down
+// on a saturated CPU. The current limit is exported as jobs.worker.concurrency.
+//
+// Shutdown drains rather than drops: stop() stops claiming, waits up to
+// job.worker.drain-timeout-seconds for the jobs already claimed to finish, and hands whatever
+// is still unfinished back to its lane at the same attempt (at the front with the list
+// backend, the back with streams), so a rolling deploy neither loses a job nor sends it
+// through the retry backoff.
 @Component
 public class JobWorkerPool {
 
@@ -21,54 +88,573 @@ public class JobWorkerPool {
     private final RedisJobStore jobStore;
     private final JobProcessor processor;
     private final int threadCount;
+    private final int heavyThreadCount;
+    private final int ioConcurrency;
+    private final int batchSize;
+    private final LanePolicy lanePolicy;
+    private final Map<JobLane, Timer> waitTimers = new EnumMap<>(JobLane.class);
 
     // volatile ensures that when stop() sets running=false on one thread, all worker threads
     // immediately see the updated value. Without volatile, the JVM could cache the value in
     // a CPU register and worker threads might never observe the change.
     private volatile boolean running = true;
+    // Set once stop() has finished draining; the lease renewer keeps going until then.
+    private volatile boolean drained = false;
 
-    public JobWorkerPool(RedisJobStore jobStore, JobProcessor processor,
-                         @Value("${job.worker.thread-count:2}") int threadCount) {
+    // A permit per download or upload that may be in progress at once.
+    private final Semaphore downloadSlots;
+    private final Semaphore uploadSlots;
+    // Downloaded jobs waiting for a CPU thread.
+    private final BlockingQueue<JobProcessor.Job> cpuQueue;
+    private final AtomicInteger cpuActive = new AtomicInteger();
+    // A permit per job the CPU stage may run at once; resized by the concurrency controller.
+    private final ResizableSemaphore cpuPermits = new ResizableSemaphore();
+    private final AtomicInteger cpuLimit = new AtomicInteger();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder cpuJobs = new LongAdder();
+    // A permit per KiB of downloaded image waiting for a CPU thread.
+    private final Semaphore prefetchBudget;
+    private final int prefetchBudgetKb;
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+
+    // Jobs claimed by this pool, in any stage, by job ID. In reliable-queue mode the lease
+    // renewer extends the lease of every job in here so the reaper leaves them alone; on
+    // shutdown whatever is still here when the drain deadline passes is handed back.
+    private final Map<String, RedisJobStore.JobRequest> claimed = new ConcurrentHashMap<>();
+    // The fetcher and heavy threads — everything that claims from Redis. stop() waits for them
+    // to exit so a claim that was in flight when it began is not cut off by the JVM exiting.
+    private final List<Thread> claimers = new ArrayList<>();
+
+    @Value("${job.worker.drain-timeout-seconds:20}")
+    private long drainTimeoutSeconds;
+
+    @Value("${job.worker.adaptive.enabled:false}")
+    private boolean adaptive;
+
+    @Value("${job.worker.min-threads:1}")
+    private int minThreads;
+
+    // "auto" allows up to twice the cores, for jobs that spend part of the CPU stage blocked.
+    @Value("${job.worker.max-threads:auto}")
+    private String maxThreads;
+
+    @Value("${job.worker.adaptive.interval-ms:2000}")
+    private long adaptiveIntervalMs;
+
+    @Value("${job.worker.adaptive.cpu-target:0.85}")
+    private double cpuTarget;
+
+    @Value("${job.worker.adaptive.heap-high:0.85}")
+    private double heapHigh;
+
+    @Value("${job.worker.adaptive.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    private AdaptiveConcurrency concurrency;
+
+    public JobWorkerPool(RedisJobStore jobStore, JobProcessor processor, MeterRegistry meterRegistry,
+                         @Value("${job.worker.thread-count:2}") String threadCount,
+                         @Value("${job.worker.heavy-thread-count:1}") int heavyThreadCount,
+                         @Value("${job.worker.io-concurrency:16}") int ioConcurrency,
+                         @Value("${job.worker.cpu-queue-capacity:4}") int cpuQueueCapacity,
+                         @Value("${job.worker.prefetch-budget-mb:64}") int prefetchBudgetMb,
+                         @Value("${job.worker.dequeue-batch-size:1}") int batchSize,
+                         @Value("${job.queue.lane-policy:strict}") String lanePolicy,
+                         @Value("${job.queue.lane-weights:interactive:8,retry:3,bulk:1}") String laneWeights) {
         this.jobStore = jobStore;
         this.processor = processor;
-        this.threadCount = threadCount;
+        this.threadCount = resolveThreadCount(threadCount);
+        this.heavyThreadCount = Math.max(0, heavyThreadCount);
+        this.ioConcurrency = Math.max(1, ioConcurrency);
+        this.batchSize = Math.max(1, batchSize);
+        this.lanePolicy = LanePolicy.of(lanePolicy, laneWeights);
+        this.downloadSlots = new Semaphore(this.ioConcurrency);
+        this.uploadSlots = new Semaphore(this.ioConcurrency);
+        this.cpuQueue = new ArrayBlockingQueue<>(Math.max(1, cpuQueueCapacity));
+        this.prefetchBudgetKb = Math.max(1, prefetchBudgetMb) * 1024;
+        this.prefetchBudget = new Semaphore(prefetchBudgetKb);
+        for (JobLane lane : JobLane.values()) {
+            waitTimers.put(lane, Timer.builder("jobs.queue.wait")
+                    .description("Time from a job becoming runnable to a worker claiming it")
+                    .tag("lane", lane.tag())
+                    .register(meterRegistry));
+        }
+        // A download blocked on a full CPU queue still holds its slot, so it counts as active.
+        Gauge.builder("jobs.stage.active", downloadSlots, slots -> this.ioConcurrency - slots.availablePermits())
+                .description("Jobs in a pipeline stage").tag("stage", "download").register(meterRegistry);
+        Gauge.builder("jobs.stage.active", cpuActive, AtomicInteger::get)
+                .description("Jobs in a pipeline stage").tag("stage", "cpu").register(meterRegistry);
+        Gauge.builder("jobs.stage.active", uploadSlots, slots -> this.ioConcurrency - slots.availablePermits())
+                .description("Jobs in a pipeline stage").tag("stage", "upload").register(meterRegistry);
+        Gauge.builder("jobs.stage.queued", cpuQueue, BlockingQueue::size)
+                .description("Downloaded jobs waiting for a CPU thread").tag("stage", "cpu").register(meterRegistry);
+        Gauge.builder("jobs.worker.concurrency", cpuLimit, AtomicInteger::get)
+                .description("Jobs the CPU stage may run at once").register(meterRegistry);
+        Gauge.builder("jobs.prefetch.bytes", prefetchedBytes, AtomicLong::get)
+                .description("Bytes of downloaded images waiting for a CPU thread").baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    // "auto" sizes the CPU stage to the machine — one thread per available core.
+    static int resolveThreadCount(String threadCount) {
+        String value = threadCount.trim();
+        return "auto".equalsIgnoreCase(value) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value);
     }
 
     @PostConstruct
     public void start() {
-        for (int i = 0; i < threadCount; i++) {
-            int idx = i;
+        // A thread count of 0 disables processing in this process entirely — no fetcher
+        // either, so nothing is claimed from the queue that no thread would ever run.
+        if (threadCount <= 0) {
+            log.info("Job worker pool disabled threads={}", threadCount);
+            return;
+        }
+        int cpuThreads = threadCount;
+        if (adaptive) {
+            int max = "auto".equalsIgnoreCase(maxThreads.trim())
+                    ? 2 * Runtime.getRuntime().availableProcessors()
+                    : Integer.parseInt(maxThreads.trim());
+            concurrency = new AdaptiveConcurrency(minThreads, Math.max(minThreads, max), threadCount,
+                    cpuTarget, heapHigh, latencyTolerance);
+            cpuThreads = Math.max(minThreads, max);
+        }
+        cpuLimit.set(adaptive ? concurrency.limit() : threadCount);
+        cpuPermits.release(cpuLimit.get());
+        for (int i = 0; i < cpuThreads; i++) {
             // Thread.ofPlatform() is the Java 21 API for creating OS-level threads.
             // daemon(true) means these threads won't prevent the JVM from shutting down
             // if the main Spring context closes — the JVM exits even if they're still running.
+            // stop() holds the shutdown until they have drained, up to its deadline.
+            Thread.ofPlatform()
+                    .name("job-cpu-" + i)
+                    .daemon(true)
+                    .start(this::cpuLoop);
+        }
+        for (int i = 0; i < heavyThreadCount; i++) {
+            claimers.add(Thread.ofPlatform()
+                    .name("job-heavy-worker-" + i)
+                    .daemon(true)
+                    .start(this::heavyWorkerLoop));
+        }
+        claimers.add(Thread.ofPlatform()
+                .name("job-fetcher")
+                .daemon(true)
+                .start(this::fetchLoop));
+        if (jobStore.isReliable()) {
             Thread.ofPlatform()
-                    .name("job-worker-" + idx)
+                    .name("job-lease-renewer")
                     .daemon(true)
-                    .start(this::workerLoop);
+                    .start(this::leaseRenewLoop);
+        }
+        if (adaptive) {
+            Thread.ofPlatform()
+                    .name("job-concurrency-controller")
+                    .daemon(true)
+                    .start(this::concurrencyLoop);
+        }
+        log.info("Job worker pool started cpuThreads={} cpuLimit={} concurrency={} heavyThreads={} "
+                        + "ioConcurrency={} cpuQueueCapacity={} prefetchBudgetKb={} dequeueBatchSize={} "
+                        + "reliable={} lanePolicy={}",
+                cpuThreads, cpuLimit.get(), adaptive ? concurrency : "fixed", heavyThreadCount,
+                ioConcurrency, cpuQueue.remainingCapacity(), prefetchBudgetKb, batchSize,
+                jobStore.isReliable(), lanePolicy);
+    }
+
+    private void fetchLoop() {
+        while (running) {
+            try {
+                // Wait for at least one free download slot, then take as many as the batch
+                // allows. Slots not filled by the claim are handed straight back.
+                downloadSlots.acquire();
+                int slots = 1 + downloadSlots.drainPermits();
+                int wanted = Math.min(batchSize, slots);
+                downloadSlots.release(slots - wanted);
+                List<RedisJobStore.JobRequest> jobs = List.of();
+                try {
+                    // dequeueBatch takes a whole batch in one round-trip (RPOP with a count,
+                    // pipelined LMOVEs or XREADGROUP) and only blocks inside Redis, for up to 2
+                    // seconds, when every lane is empty, then returns nothing. The 2-second timeout
+                    // means the fetcher checks the `running` flag at least every 2 seconds, so
+                    // shutdown completes quickly.
+                    if (running) {
+                        jobs = jobStore.dequeueBatch(wanted, Duration.ofSeconds(2), lanePolicy.nextOrder());
+                    }
+                } finally {
+                    downloadSlots.release(wanted - jobs.size());
+                }
+                if (!running) {
+                    // Claimed while stop() was starting: give them straight back.
+                    downloadSlots.release(jobs.size());
+                    jobStore.release(jobs);
+                    break;
+                }
+                for (RedisJobStore.JobRequest req : jobs) {
+                    recordClaim(req);
+                    Thread.ofVirtual().name("job-download-" + req.jobId()).start(() -> downloadStage(req));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Job fetcher error", e);
+            }
+        }
+    }
+
+    // Holds a download slot from claim until the job is in the CPU queue (or finished early).
+    private void downloadStage(RedisJobStore.JobRequest req) {
+        try {
+            JobProcessor.Job job = processor.start(req);
+            JobProcessor.Outcome outcome = processor.download(job);
+            if (outcome != JobProcessor.Outcome.NEXT) {
+                complete(req, outcome);
+            } else if (!handOffToCpu(job)) {
+                abandon(List.of(job));
+            }
+        } catch (Exception e) {
+            log.error("Download stage error jobId={}", req.jobId(), e);
+            failAfterError(req, e);
+        } finally {
+            downloadSlots.release();
+        }
+    }
+
+    // Waits for its share of the prefetch budget, then for room in the CPU queue. Returns
+    // false if the pool stops first, leaving the job with the caller. A job that lands in the
+    // queue after the CPU threads have drained it on their way out is released here instead.
+    private boolean handOffToCpu(JobProcessor.Job job) {
+        try {
+            if (!reservePrefetch(job)) return false;
+            while (running) {
+                if (cpuQueue.offer(job, 1, TimeUnit.SECONDS)) {
+                    if (!running) releaseQueued();
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // An image bigger than the whole budget reserves all of it, so it still runs — alone.
+    private boolean reservePrefetch(JobProcessor.Job job) throws InterruptedException {
+        int kb = (int) Math.min(prefetchBudgetKb, Math.max(1, (job.rawBytes.length + 1023L) / 1024));
+        while (running) {
+            if (prefetchBudget.tryAcquire(kb, 1, TimeUnit.SECONDS)) {
+                job.prefetchKb = kb;
+                prefetchedBytes.addAndGet(job.rawBytes.length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void releasePrefetch(JobProcessor.Job job) {
+        if (job.prefetchKb == 0) return;
+        prefetchBudget.release(job.prefetchKb);
+        prefetchedBytes.addAndGet(-job.rawBytes.length);
+        job.prefetchKb = 0;
+    }
+
+    // A thread only takes a job while it holds a permit, so threads beyond the current limit
+    // sit parked on the semaphore.
+    private void cpuLoop() {
+        while (running) {
+            try {
+                if (!cpuPermits.tryAcquire(2, TimeUnit.SECONDS)) continue;
+                try {
+                    JobProcessor.Job job = cpuQueue.poll(2, TimeUnit.SECONDS);
+                    if (job != null) cpuStage(job);
+                } finally {
+                    cpuPermits.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("CPU stage error", e);
+            }
+        }
+        releaseQueued();
+    }
+
+    private void cpuStage(JobProcessor.Job job) throws InterruptedException {
+        JobProcessor.Outcome outcome;
+        releasePrefetch(job);
+        cpuActive.incrementAndGet();
+        long started = System.nanoTime();
+        try {
+            outcome = processor.transform(job);
+        } catch (Exception e) {
+            log.error("CPU stage error jobId={}", job.request.jobId(), e);
+            failAfterError(job.request, e);
+            return;
+        } finally {
+            cpuActive.decrementAndGet();
+            cpuNanos.add(System.nanoTime() - started);
+            cpuJobs.increment();
+        }
+        if (outcome != JobProcessor.Outcome.NEXT) {
+            complete(job.request, outcome);
+            return;
+        }
+        try {
+            uploadSlots.acquire();
+        } catch (InterruptedException e) {
+            abandon(List.of(job));
+            throw e;
+        }
+        Thread.ofVirtual().name("job-upload-" + job.request.jobId()).start(() -> uploadStage(job));
+    }
+
+    // Uploads are never abandoned: the result is already computed, so even during shutdown
+    // finishing it is cheaper than redoing the job elsewhere.
+    private void uploadStage(JobProcessor.Job job) {
+        JobProcessor.Outcome outcome;
+        try {
+            outcome = processor.store(job);
+        } catch (Exception e) {
+            log.error("Upload stage error jobId={}", job.request.jobId(), e);
+            failAfterError(job.request, e);
+            return;
+        } finally {
+            uploadSlots.release();
+        }
+        complete(job.request, outcome);
+    }
+
+    // Heavy jobs are claimed one per thread straight from Redis: claiming ahead would only
+    // hold GIFs back from another process's idle heavy thread.
+    private void heavyWorkerLoop() {
+        while (running) {
+            try {
+                List<RedisJobStore.JobRequest> jobs = jobStore.dequeueBatch(
+                        1, Duration.ofSeconds(2), List.of(JobLane.HEAVY));
+                if (!running) {
+                    jobStore.release(jobs);
+                    break;
+                }
+                for (RedisJobStore.JobRequest req : jobs) {
+                    recordClaim(req);
+                    boolean finished;
+                    try {
+                        finished = processor.process(req);
+                    } catch (Exception e) {
+                        log.error("Heavy job error jobId={}", req.jobId(), e);
+                        failAfterError(req, e);
+                        continue;
+                    }
+                    complete(req, finished ? JobProcessor.Outcome.DONE : JobProcessor.Outcome.MOVED);
+                }
+            } catch (Exception e) {
+                log.error("Heavy worker loop error", e);
+            }
+        }
+    }
+
+    private void recordClaim(RedisJobStore.JobRequest req) {
+        claimed.put(req.jobId(), req);
+        // enqueuedAt is 0 for payloads written before it existed.
+        if (req.enqueuedAt() > 0) {
+            long waited = Math.max(0, System.currentTimeMillis() - req.enqueuedAt());
+            waitTimers.get(req.lane()).record(waited, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // A stage threw past the processor's own failure handling: a bug, or Redis failing while
+    // the failure itself was being recorded. The job was neither retried nor dead-lettered, so
+    // it goes down the retry path now: the next attempt, with backoff, or the DLQ once it is
+    // out of attempts. Handing it straight back to its lane would loop a poison job hot
+    // forever. If Redis is still failing, the job is left to its lease.
+    private void failAfterError(RedisJobStore.JobRequest req, Exception error) {
+        if (!claimed.remove(req.jobId(), req)) return;
+        try {
+            processor.failAfterError(req, error);
+            jobStore.ack(req.jobId());
+        } catch (Exception e) {
+            log.error("Failed to record stage error, leaving the job to its lease jobId={}", req.jobId(), e);
+        }
+    }
+
+    private void complete(RedisJobStore.JobRequest req, JobProcessor.Outcome outcome) {
+        // Removed by value: a GIF this pool moved to the heavy lane may already have been
+        // claimed again by one of its own heavy threads under the same job ID. If the entry is
+        // gone, the drain deadline passed and the job was handed back to the queue; acking now
+        // would release the lease of whichever worker has claimed it since.
+        if (!claimed.remove(req.jobId(), req)) return;
+        // A job moved to another lane was acked before it was pushed there.
+        if (outcome == JobProcessor.Outcome.MOVED) return;
+        try {
+            jobStore.ack(req.jobId());
+        } catch (Exception e) {
+            log.error("Failed to ack job jobId={}", req.jobId(), e);
         }
-        log.info("Job worker pool started threads={}", threadCount);
     }
 
-    private void workerLoop() {
+    private void concurrencyLoop() {
         while (running) {
             try {
-                // dequeue blocks inside Redis (BRPOP) for up to 2 seconds, then returns null.
-                // The 2-second timeout means each worker checks the `running` flag at least
-                // every 2 seconds, so shutdown completes quickly after stop() is called.
-                RedisJobStore.JobRequest req = jobStore.dequeue(Duration.ofSeconds(2));
-                if (req == null) continue;
-                processor.process(req.jobId(), req.url(), req.attempt());
+                Thread.sleep(adaptiveIntervalMs);
+                int before = cpuLimit.get();
+                int after = concurrency.update(sampleSignals());
+                if (after > before) {
+                    cpuPermits.release(after - before);
+                } else if (after < before) {
+                    // Running jobs keep their permits; the limit takes effect as they finish.
+                    cpuPermits.shrink(before - after);
+                }
+                if (after != before) {
+                    cpuLimit.set(after);
+                    log.info("CPU stage concurrency changed from={} to={}", before, after);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Concurrency controller error", e);
+            }
+        }
+    }
+
+    private AdaptiveConcurrency.Signals sampleSignals() {
+        long backlog = cpuQueue.size();
+        try {
+            backlog += jobStore.queueStats().waiting();
+        } catch (Exception e) {
+            log.warn("Could not read queue depth for the concurrency controller", e);
+        }
+        long jobs = cpuJobs.sumThenReset();
+        long nanos = cpuNanos.sumThenReset();
+        double latencyMs = jobs == 0 ? Double.NaN : nanos / 1e6 / jobs;
+        return new AdaptiveConcurrency.Signals(backlog, cpuLoad(), heapUsed(), latencyMs);
+    }
+
+    // Negative when the platform cannot report it, which the controller reads as headroom.
+    private static double cpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean sunOs ? sunOs.getProcessCpuLoad() : -1;
+    }
+
+    // Live heap usage includes garbage not yet collected, so it reads "nearly full" just before
+    // every GC. The old generation's usage after its last collection is what is really retained.
+    private static double heapUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // Of the heap pools, only the old generation supports a usage threshold.
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) continue;
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0) return (double) usage.getUsed() / usage.getMax();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+
+    // Semaphore can only shrink from a subclass.
+    private static final class ResizableSemaphore extends Semaphore {
+        ResizableSemaphore() {
+            super(0);
+        }
+
+        void shrink(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    // Renews leases three times per lease period, so a single slow Redis call can't let a
+    // healthy job's lease lapse. If this process dies, renewals stop and the LeaseReaper
+    // returns its jobs to the queue once the lease runs out.
+    // Keeps renewing through the drain, or a long drain would let the leases of the very jobs
+    // it is waiting for lapse.
+    private void leaseRenewLoop() {
+        long intervalMs = jobStore.leaseDuration().toMillis() / 3;
+        while (!drained) {
+            try {
+                Thread.sleep(intervalMs);
+                jobStore.renewLeases(Set.copyOf(claimed.keySet()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Lease renewal error", e);
+            }
+        }
+    }
+
+    private void releaseQueued() {
+        List<JobProcessor.Job> unstarted = new ArrayList<>();
+        cpuQueue.drainTo(unstarted);
+        abandon(unstarted);
+    }
+
+    // Jobs downloaded but not yet transformed when the pool stops. Hand them straight back so
+    // another worker can pick them up immediately rather than waiting for a lease to lapse.
+    private void abandon(List<JobProcessor.Job> jobs) {
+        if (jobs.isEmpty()) return;
+        List<RedisJobStore.JobRequest> requests = new ArrayList<>(jobs.size());
+        for (JobProcessor.Job job : jobs) {
+            releasePrefetch(job);
+            try {
+                processor.abandon(job);
             } catch (Exception e) {
-                log.error("Worker loop error", e);
+                log.error("Failed to reset abandoned job jobId={}", job.request.jobId(), e);
             }
+            requests.add(job.request);
+        }
+        try {
+            jobStore.release(requests);
+            requests.forEach(req -> claimed.remove(req.jobId(), req));
+            log.info("Released unstarted jobs back to the queue count={}", requests.size());
+        } catch (Exception e) {
+            log.error("Failed to release unstarted jobs count={}", requests.size(), e);
         }
     }
 
-    // @PreDestroy runs just before Spring shuts the bean down (e.g. on SIGTERM).
-    // Setting running=false lets each worker thread finish its current job and then exit cleanly.
+    // @PreDestroy runs just before Spring shuts the bean down (e.g. on SIGTERM), and before
+    // the Redis connection it depends on is closed.
+    // Setting running=false stops the fetcher claiming more jobs. Each CPU thread finishes
+    // its current job and then exits, handing back any downloaded jobs still queued for the
+    // CPU stage; uploads already under way are finished. This method blocks until every
+    // claimed job has been finished or handed back, or until the drain deadline, and then
+    // hands back the rest so the JVM exiting cuts off nothing still owned by this process.
     @PreDestroy
     public void stop() {
         running = false;
-        log.info("Job worker pool shutting down");
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+        log.info("Job worker pool draining inFlight={} timeoutSeconds={}", claimed.size(), drainTimeoutSeconds);
+        try {
+            while ((!claimed.isEmpty() || claimers.stream().anyMatch(Thread::isAlive))
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int handedBack = handBack();
+        drained = true;
+        log.info("Job worker pool stopped handedBack={} drainMs={}", handedBack,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    // Jobs still running at the drain deadline go back to their lane (see JobQueue.release) at
+    // the same attempt, as if never claimed. Their threads may still finish before the JVM exits; the
+    // result is then simply written twice, which is harmless, and complete() skips the ack.
+    private int handBack() {
+        List<RedisJobStore.JobRequest> unfinished = new ArrayList<>();
+        for (RedisJobStore.JobRequest req : List.copyOf(claimed.values())) {
+            if (claimed.remove(req.jobId(), req)) unfinished.add(req);
+        }
+        if (unfinished.isEmpty()) return 0;
+        try {
+            for (RedisJobStore.JobRequest req : unfinished) {
+                jobStore.markPending(req.jobId());
+            }
+            jobStore.release(unfinished);
+            log.warn("Handed unfinished jobs back to the queue at the drain deadline count={}", unfinished.size());
+        } catch (Exception e) {
+            // In reliable mode their leases lapse and the reaper requeues them.
+            log.error("Failed to hand back unfinished jobs count={}", unfinished.size(), e);
+        }
+        return unfinished.size();
     }
 }
@@ -5,48 +5,124 @@ import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-// Polls the Redis retry sorted set every 5 seconds and moves any jobs whose delay
-// has elapsed back into the main work queue. This decouples retry scheduling from
-// job processing — the worker threads don't need to know anything about retries.
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+// Moves jobs whose retry delay has elapsed from the Redis retry sorted set back into the
+// main work queue. This decouples retry scheduling from job processing — the worker threads
+// don't need to know anything about retries.
+//
+// Every API and worker instance runs a promoter, but only the elected leader does any work:
+// leadership is a Redis key with a TTL that the leader keeps renewing, so N instances
+// produce one promoter's worth of Redis traffic, and another instance takes over within one
+// lease period if the leader dies. The leader sleeps until the earliest retry is due rather
+// than polling on a fixed interval; scheduleRetry publishes a wake-up when it adds a retry
+// that is due sooner than anything already scheduled.
 //
 // An alternative would be Spring's @Scheduled annotation, but a plain thread is simpler
-// here since we need manual lifecycle control (stop() on shutdown) anyway.
+// here since we need manual lifecycle control (stop() on shutdown) and variable sleeps anyway.
 @Component
 public class RetryPromoter {
 
     private static final Logger log = LoggerFactory.getLogger(RetryPromoter.class);
-    private static final long POLL_INTERVAL_MS = 5_000;
+    private static final String LEADER_ROLE = "retry-promoter";
 
     private final RedisJobStore jobStore;
+    private final RedisConnectionFactory connectionFactory;
+    private final int batchSize;
+    private final Duration leaderLease;
+    // Unique per process so a restarted instance never mistakes an old lease for its own.
+    private final String candidateId = UUID.randomUUID().toString();
+    // Wait/notify monitor: the promoter sleeps on it, and wake-up messages notify it.
+    private final Object wakeup = new Object();
+    private RedisMessageListenerContainer listener;
     private volatile boolean running = true;
+    private volatile boolean leader = false;
 
-    public RetryPromoter(RedisJobStore jobStore) {
+    public RetryPromoter(RedisJobStore jobStore, RedisConnectionFactory connectionFactory,
+                         @Value("${job.retry.promote-batch-size:500}") int batchSize,
+                         @Value("${job.retry.leader-lease-seconds:15}") long leaderLeaseSeconds) {
         this.jobStore = jobStore;
+        this.connectionFactory = connectionFactory;
+        this.batchSize = batchSize;
+        this.leaderLease = Duration.ofSeconds(leaderLeaseSeconds);
     }
 
     @PostConstruct
     public void start() {
+        listener = new RedisMessageListenerContainer();
+        listener.setConnectionFactory(connectionFactory);
+        listener.addMessageListener((message, pattern) -> {
+            // Only the leader is sleeping on a retry deadline; everyone else ignores it.
+            if (!leader) return;
+            synchronized (wakeup) {
+                wakeup.notifyAll();
+            }
+        }, new ChannelTopic(RedisJobStore.RETRY_WAKEUP_CHANNEL));
+        listener.afterPropertiesSet();
+        listener.start();
+
         Thread.ofPlatform()
                 .name("retry-promoter")
                 .daemon(true)
                 .start(this::loop);
-        log.info("Retry promoter started pollIntervalMs={}", POLL_INTERVAL_MS);
+        log.info("Retry promoter started candidateId={} leaderLeaseSeconds={}",
+                candidateId, leaderLease.toSeconds());
     }
 
     private void loop() {
+        // The leader must renew well before its lease runs out, so no sleep may exceed a
+        // third of the lease. Followers re-check at half the lease, so a dead leader is
+        // replaced within about 1.5 lease periods.
+        long renewIntervalMs = leaderLease.toMillis() / 3;
+        long followerIntervalMs = leaderLease.toMillis() / 2;
         while (running) {
             try {
-                int promoted = jobStore.promoteRetries();
-                if (promoted > 0) log.info("Promoted retry jobs count={}", promoted);
-                Thread.sleep(POLL_INTERVAL_MS);
+                boolean wasLeader = leader;
+                leader = jobStore.tryAcquireLeadership(LEADER_ROLE, candidateId, leaderLease);
+                if (leader != wasLeader) log.info("Retry promoter leadership changed leader={}", leader);
+                if (!leader) {
+                    Thread.sleep(followerIntervalMs);
+                    continue;
+                }
+
+                RedisJobStore.RetryPromotion result;
+                // A full batch means more retries are already due (e.g. a burst of failures
+                // during a CDN outage) — keep draining instead of sleeping.
+                do {
+                    result = jobStore.promoteRetries(batchSize);
+                    if (result.promoted() > 0) log.info("Promoted retry jobs count={}", result.promoted());
+                } while (running && result.promoted() == batchSize);
+
+                long sleepMs = renewIntervalMs;
+                if (result.nextDueAt() != null) {
+                    long untilDue = Duration.between(Instant.now(), result.nextDueAt()).toMillis();
+                    sleepMs = Math.max(0, Math.min(untilDue, renewIntervalMs));
+                }
+                if (sleepMs > 0) {
+                    synchronized (wakeup) {
+                        wakeup.wait(sleepMs);
+                    }
+                }
             } catch (InterruptedException e) {
                 // Re-interrupt the thread so callers higher up the stack can also observe it.
                 Thread.currentThread().interrupt();
                 break;
             } catch (Exception e) {
                 log.error("Retry promoter error", e);
+                try {
+                    Thread.sleep(renewIntervalMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }
         }
     }
@@ -54,6 +130,16 @@ public class RetryPromoter {
     @PreDestroy
     public void stop() {
         running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            listener.stop();
+            listener.destroy();
+            if (leader) jobStore.resignLeadership(LEADER_ROLE, candidateId);
+        } catch (Exception e) {
+            log.warn("Retry promoter shutdown cleanup failed: {}", e.getMessage());
+        }
         log.info("Retry promoter shutting down");
     }
 }
@@ -0,0 +1,156 @@
+package com.krister.avatar.worker;
+
+import com.krister.avatar.shared.RedisJobStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.UUID;
+
+// Feeds the interactive and bulk lanes from the staged per-tenant sub-queues when fair share
+// (job.queue.fair-share.enabled) or shortest-job-first scheduling (job.queue.scheduling=sjf)
+// is on. See RedisJobStore.submitJobs and dispatchStaged for the scheduling itself.
+//
+// Like the RetryPromoter, every instance runs one and only the elected leader works. While
+// any tenant is waiting the leader tops the lanes up every poll-interval-ms, which must stay
+// shorter than the workers take to drain target-depth jobs or they will sit idle between
+// refills. With nothing waiting it sleeps until submitJobs publishes a wake-up.
+//
+// With both off, the dispatcher only runs one pass at startup to move any jobs left staged
+// from when they were on onto the lanes, so switching them off strands nothing.
+@Component
+public class StagedJobDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(StagedJobDispatcher.class);
+    private static final String LEADER_ROLE = "staged-job-dispatcher";
+
+    private final RedisJobStore jobStore;
+    private final RedisConnectionFactory connectionFactory;
+    private final boolean enabled;
+    private final int quantum;
+    private final int targetDepth;
+    private final long pollIntervalMs;
+    private final Duration leaderLease;
+    private final String candidateId = UUID.randomUUID().toString();
+    private final Object wakeup = new Object();
+    // Set by the listener and cleared before each dispatch, so a submission that arrives
+    // while the dispatch is running is not missed by the wait that follows it.
+    private volatile boolean woken = false;
+    private RedisMessageListenerContainer listener;
+    private volatile boolean running = true;
+    private volatile boolean leader = false;
+
+    public StagedJobDispatcher(RedisJobStore jobStore, RedisConnectionFactory connectionFactory,
+                               @Value("${job.queue.fair-share.enabled:false}") boolean fairShare,
+                               @Value("${job.queue.scheduling:fifo}") String scheduling,
+                               @Value("${job.queue.fair-share.quantum:4}") int quantum,
+                               @Value("${job.queue.staging.target-depth:32}") int targetDepth,
+                               @Value("${job.queue.staging.poll-interval-ms:50}") long pollIntervalMs,
+                               @Value("${job.retry.leader-lease-seconds:15}") long leaderLeaseSeconds) {
+        this.jobStore = jobStore;
+        this.connectionFactory = connectionFactory;
+        this.enabled = fairShare || "sjf".equalsIgnoreCase(scheduling);
+        this.quantum = quantum;
+        this.targetDepth = targetDepth;
+        this.pollIntervalMs = pollIntervalMs;
+        this.leaderLease = Duration.ofSeconds(leaderLeaseSeconds);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            drainLeftovers();
+            return;
+        }
+        listener = new RedisMessageListenerContainer();
+        listener.setConnectionFactory(connectionFactory);
+        listener.addMessageListener((message, pattern) -> {
+            if (!leader) return;
+            synchronized (wakeup) {
+                woken = true;
+                wakeup.notifyAll();
+            }
+        }, new ChannelTopic(RedisJobStore.STAGED_WAKEUP_CHANNEL));
+        listener.afterPropertiesSet();
+        listener.start();
+
+        Thread.ofPlatform()
+                .name("staged-job-dispatcher")
+                .daemon(true)
+                .start(this::loop);
+        log.info("Staged job dispatcher started candidateId={} quantum={} targetDepth={} pollIntervalMs={}",
+                candidateId, quantum, targetDepth, pollIntervalMs);
+    }
+
+    private void drainLeftovers() {
+        try {
+            int moved = jobStore.dispatchStaged(Integer.MAX_VALUE, Integer.MAX_VALUE).dispatched();
+            if (moved > 0) log.info("Moved jobs left staged onto the lanes count={}", moved);
+        } catch (Exception e) {
+            log.warn("Could not drain staged jobs: {}", e.getMessage());
+        }
+    }
+
+    private void loop() {
+        long renewIntervalMs = leaderLease.toMillis() / 3;
+        long followerIntervalMs = leaderLease.toMillis() / 2;
+        while (running) {
+            try {
+                boolean wasLeader = leader;
+                leader = jobStore.tryAcquireLeadership(LEADER_ROLE, candidateId, leaderLease);
+                if (leader != wasLeader) log.info("Staged job dispatcher leadership changed leader={}", leader);
+                if (!leader) {
+                    Thread.sleep(followerIntervalMs);
+                    continue;
+                }
+
+                woken = false;
+                RedisJobStore.StagedDispatch result = jobStore.dispatchStaged(quantum, targetDepth);
+                if (result.dispatched() > 0) {
+                    log.debug("Dispatched staged jobs count={} activeTenants={}",
+                            result.dispatched(), result.activeTenants());
+                }
+
+                long sleepMs = result.activeTenants() > 0 ? pollIntervalMs : renewIntervalMs;
+                synchronized (wakeup) {
+                    if (!woken) wakeup.wait(sleepMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Staged job dispatcher error", e);
+                try {
+                    Thread.sleep(renewIntervalMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (listener == null) return;
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            listener.stop();
+            listener.destroy();
+            if (leader) jobStore.resignLeadership(LEADER_ROLE, candidateId);
+        } catch (Exception e) {
+            log.warn("Staged job dispatcher shutdown cleanup failed: {}", e.getMessage());
+        }
+        log.info("Staged job dispatcher shutting down");
+    }
+}
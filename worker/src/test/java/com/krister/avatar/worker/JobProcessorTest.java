@@ -2,9 +2,14 @@ package com.krister.avatar.worker;
 
 import com.krister.avatar.core.AnimatedGifProcessor;
 import com.krister.avatar.core.DiscordImageResizer;
+import com.krister.avatar.core.ImageProbe;
+import com.krister.avatar.shared.GifPart;
+import com.krister.avatar.shared.JobCancellations;
+import com.krister.avatar.shared.JobLane;
 import com.krister.avatar.shared.JobStatus;
 import com.krister.avatar.shared.ProcessingResult;
 import com.krister.avatar.shared.RedisJobStore;
+import com.krister.avatar.shared.ResultCache;
 import com.krister.avatar.shared.S3ResultStore;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import io.micrometer.tracing.Span;
@@ -12,16 +17,22 @@ import io.micrometer.tracing.Tracer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.imageio.ImageIO;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -30,6 +41,7 @@ class JobProcessorTest {
 
     @Mock RedisJobStore jobStore;
     @Mock S3ResultStore s3ResultStore;
+    @Mock ResultCache resultCache;
     @Mock Tracer tracer;
 
     JobProcessor processor;
@@ -39,8 +51,10 @@ class JobProcessorTest {
         Span mockSpan = mock(Span.class, RETURNS_DEEP_STUBS);
         lenient().when(tracer.nextSpan()).thenReturn(mockSpan);
         lenient().when(tracer.withSpan(any())).thenReturn(mock(Tracer.SpanInScope.class));
+        lenient().when(jobStore.markStarted(anyString(), anyInt())).thenReturn(JobStatus.PROCESSING);
 
-        processor = new JobProcessor(jobStore, s3ResultStore, new SimpleMeterRegistry(), tracer);
+        processor = new JobProcessor(jobStore, s3ResultStore, new SimpleMeterRegistry(), tracer,
+                new JobCancellations(null), resultCache, "64", 0, 4);
         ReflectionTestUtils.setField(processor, "maxAttempts", 3);
         ReflectionTestUtils.setField(processor, "baseDelaySeconds", 10L);
     }
@@ -59,13 +73,384 @@ class JobProcessorTest {
             mockResizer.when(() -> DiscordImageResizer.resizeImage(any(), eq(128), eq(128))).thenReturn(img);
             // ImageIO.write is also mocked (no-op); baos stays empty, which is fine for this test
 
-            processor.process("job-1", "https://1.1.1.1/img.png", 1);
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
         }
 
-        verify(jobStore).setStatus("job-1", JobStatus.PROCESSING);
+        verify(jobStore).markStarted("job-1", 1);
         verify(s3ResultStore).storeResult(eq("job-1"), any(ProcessingResult.class));
-        verify(jobStore).setStatus("job-1", JobStatus.COMPLETED);
-        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong());
+        verify(jobStore).markCompleted("job-1", 0);
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
+    }
+
+    @Test
+    void process_animatedGifOnGeneralLane_movesItToHeavyLane() throws Exception {
+        ReflectionTestUtils.setField(processor, "heavyThreadCount", 1);
+        when(jobStore.moveToLane(any(), eq(JobLane.HEAVY))).thenReturn(JobStatus.PENDING);
+        boolean finished;
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[0]);
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(true);
+
+            finished = processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 2, JobLane.BULK));
+
+            mockGif.verify(() -> AnimatedGifProcessor.process(any(), any()), never());
+        }
+
+        assertThat(finished).isFalse();
+        verify(jobStore).moveToLane(argThat(job -> job.jobId().equals("job-1") && job.attempt() == 2), eq(JobLane.HEAVY));
+        verify(s3ResultStore, never()).storeResult(any(), any());
+        verify(jobStore, never()).markCompleted(any(), anyLong());
+    }
+
+    @Test
+    void process_gifMovedToHeavyLane_keepsDeadlineAndExpiresThere() {
+        ReflectionTestUtils.setField(processor, "heavyThreadCount", 1);
+        when(jobStore.moveToLane(any(), eq(JobLane.HEAVY))).thenReturn(JobStatus.PENDING);
+        long deadline = System.currentTimeMillis() + 60_000;
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[0]);
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(true);
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 1, JobLane.INTERACTIVE,
+                    System.currentTimeMillis(), deadline));
+
+            ArgumentCaptor<RedisJobStore.JobRequest> moved = ArgumentCaptor.forClass(RedisJobStore.JobRequest.class);
+            verify(jobStore).moveToLane(moved.capture(), eq(JobLane.HEAVY));
+            assertThat(moved.getValue().deadline()).isEqualTo(deadline);
+
+            // Claimed from the heavy lane after the client stopped waiting.
+            boolean finished = processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 1,
+                    JobLane.HEAVY, System.currentTimeMillis(), System.currentTimeMillis() - 1));
+
+            assertThat(finished).isTrue();
+            mockResizer.verify(() -> DiscordImageResizer.downloadRaw(anyString()), times(1));
+            mockGif.verify(() -> AnimatedGifProcessor.process(any(), any()), never());
+        }
+        verify(jobStore).markExpired("job-1");
+        verify(jobStore, never()).markCompleted(any(), anyLong());
+    }
+
+    @Test
+    void process_gifCancelledBeforeMove_finishesHereWithoutMoving() throws Exception {
+        ReflectionTestUtils.setField(processor, "heavyThreadCount", 1);
+        when(jobStore.moveToLane(any(), eq(JobLane.HEAVY))).thenReturn(JobStatus.CANCELLED);
+        boolean finished;
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[0]);
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(true);
+
+            finished = processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 1, JobLane.BULK));
+
+            mockGif.verify(() -> AnimatedGifProcessor.process(any(), any()), never());
+        }
+
+        // The pool acks the claim as for any finished job.
+        assertThat(finished).isTrue();
+        verify(s3ResultStore, never()).storeResult(any(), any());
+        verify(jobStore, never()).markCompleted(any(), anyLong());
+    }
+
+    @Test
+    void process_animatedGifOnHeavyLane_processesFrames() throws Exception {
+        ReflectionTestUtils.setField(processor, "heavyThreadCount", 1);
+        boolean finished;
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[0]);
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(true);
+            mockGif.when(() -> AnimatedGifProcessor.process(any(), any())).thenReturn(new byte[]{1, 2, 3});
+
+            finished = processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 1, JobLane.HEAVY));
+        }
+
+        assertThat(finished).isTrue();
+        verify(jobStore, never()).moveToLane(any(), any());
+        verify(jobStore).markCompleted("job-1", 3);
+    }
+
+    @Test
+    void process_leaderWithFollowers_sharesResultBeforeCompletingItself() throws Exception {
+        BufferedImage img = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        when(jobStore.releaseFollowers("job-1", "https://1.1.1.1/img.png")).thenReturn(List.of("job-2", "job-3"));
+        lenient().doThrow(new RuntimeException("S3 down")).when(s3ResultStore).copyResult("job-1", "job-3");
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<ImageIO> mockImageIO = mockStatic(ImageIO.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[0]);
+            mockImageIO.when(() -> ImageIO.read(any(InputStream.class))).thenReturn(img);
+            mockResizer.when(() -> DiscordImageResizer.resizeImage(any(), eq(128), eq(128))).thenReturn(img);
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+        }
+
+        var inOrder = inOrder(s3ResultStore, jobStore);
+        inOrder.verify(s3ResultStore).storeResult(eq("job-1"), any(ProcessingResult.class));
+        inOrder.verify(s3ResultStore).copyResult("job-1", "job-2");
+        inOrder.verify(jobStore).markCompleted("job-2", 0);
+        inOrder.verify(jobStore).requeueFollowers(List.of("job-3"));
+        inOrder.verify(jobStore).markCompleted("job-1", 0);
+        verify(jobStore, never()).markCompleted(eq("job-3"), anyLong());
+    }
+
+    @Test
+    void process_sourceSeenBefore_copiesCachedResultWithoutProcessing() throws Exception {
+        byte[] source = {1, 2, 3};
+        when(resultCache.isEnabled()).thenReturn(true);
+        when(resultCache.copyTo(ResultCache.hash(source), "job-1")).thenReturn(2048L);
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(source);
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+
+            mockGif.verify(() -> AnimatedGifProcessor.process(any(), any()), never());
+            mockResizer.verify(() -> DiscordImageResizer.resizeImage(any(), anyInt(), anyInt()), never());
+        }
+
+        verify(jobStore).markCompleted("job-1", 2048L);
+        verify(s3ResultStore, never()).storeResult(any(), any());
+        verify(resultCache, never()).put(any(), any());
+    }
+
+    @Test
+    void process_sourceNotSeenBefore_cachesResultAfterStoringIt() throws Exception {
+        BufferedImage img = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        byte[] source = {1, 2, 3};
+        when(resultCache.isEnabled()).thenReturn(true);
+        when(resultCache.copyTo(anyString(), eq("job-1"))).thenReturn(-1L);
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<ImageIO> mockImageIO = mockStatic(ImageIO.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(source);
+            mockImageIO.when(() -> ImageIO.read(any(InputStream.class))).thenReturn(img);
+            mockResizer.when(() -> DiscordImageResizer.resizeImage(any(), eq(128), eq(128))).thenReturn(img);
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+        }
+
+        var inOrder = inOrder(s3ResultStore, resultCache, jobStore);
+        inOrder.verify(s3ResultStore).storeResult(eq("job-1"), any(ProcessingResult.class));
+        inOrder.verify(resultCache).put(eq(ResultCache.hash(source)), any(ProcessingResult.class));
+        inOrder.verify(jobStore).markCompleted("job-1", 0);
+    }
+
+    @Test
+    void process_longGifWithSplittingOn_queuesFrameRangePartsInsteadOfProcessing() throws Exception {
+        ReflectionTestUtils.setField(processor, "heavyThreadCount", 1);
+        ReflectionTestUtils.setField(processor, "gifSplitFrames", 100);
+        ReflectionTestUtils.setField(processor, "gifFramesPerPart", 50);
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class);
+             MockedStatic<ImageProbe> mockProbe = mockStatic(ImageProbe.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[]{1});
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(true);
+            mockGif.when(() -> AnimatedGifProcessor.cropRect(any())).thenReturn(new Rectangle(5, 0, 90, 90));
+            mockProbe.when(() -> ImageProbe.probe(any(byte[].class))).thenReturn(new ImageProbe.Estimate(100, 90, 120, 1));
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 1, JobLane.BULK));
+
+            mockGif.verify(() -> AnimatedGifProcessor.process(any(), any()), never());
+        }
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<GifPart>> parts = ArgumentCaptor.forClass(List.class);
+        verify(jobStore, never()).moveToLane(any(), any());
+        verify(s3ResultStore).storeUpload(eq("job-1"), any(), eq("image/gif"));
+        verify(jobStore).splitJob(argThat(job -> job.jobId().equals("job-1")), parts.capture());
+        assertThat(parts.getValue()).containsExactly(
+                new GifPart("job-1", 0, 3, 0, 50, 5, 0, 90, 90),
+                new GifPart("job-1", 1, 3, 50, 100, 5, 0, 90, 90),
+                new GifPart("job-1", 2, 3, 100, 120, 5, 0, 90, 90));
+        verify(jobStore, never()).markCompleted(any(), anyLong());
+    }
+
+    @Test
+    void process_lastGifPartToFinish_stitchesAndCompletesParent() throws Exception {
+        GifPart part = new GifPart("job-1", 1, 2, 50, 100, 5, 0, 90, 90);
+        when(s3ResultStore.downloadUpload("job-1")).thenReturn(new byte[]{1});
+        when(jobStore.completePart(part)).thenReturn(true);
+        when(s3ResultStore.readResult(anyString())).thenReturn(new byte[]{9});
+
+        try (MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+            mockGif.when(() -> AnimatedGifProcessor.processRange(any(), eq(50), eq(100), eq(new Rectangle(5, 0, 90, 90)), any()))
+                    .thenReturn(new byte[]{1, 2});
+            mockGif.when(() -> AnimatedGifProcessor.stitch(any())).thenReturn(new byte[]{1, 2, 3, 4});
+
+            processor.process(new RedisJobStore.JobRequest(part.jobId(), part.url(), 1));
+        }
+
+        verify(s3ResultStore).storeResult(eq("job-1-part-1"), any(ProcessingResult.class));
+        verify(s3ResultStore).storeResult(eq("job-1"), any(ProcessingResult.class));
+        verify(jobStore).markCompleted("job-1", 4);
+        verify(s3ResultStore).deleteUpload("job-1");
+        verify(s3ResultStore).deleteResult("job-1-part-0");
+        verify(s3ResultStore).deleteResult("job-1-part-1");
+        verify(jobStore, never()).markCompleted(eq("job-1-part-1"), anyLong());
+    }
+
+    @Test
+    void process_gifPartOutOfAttempts_failsWholeGif() throws Exception {
+        GifPart part = new GifPart("job-1", 0, 2, 0, 50, 5, 0, 90, 90);
+        when(s3ResultStore.downloadUpload("job-1")).thenThrow(new RuntimeException("S3 down"));
+
+        processor.process(new RedisJobStore.JobRequest(part.jobId(), part.url(), 3));
+
+        verify(jobStore).failSplitJob(eq(part), eq(3), anyString());
+        verify(jobStore, never()).markFailed(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void process_imageLargerThanDecodeBudget_failsWithoutRetryOrDecode() throws Exception {
+        // 3000×3000 ARGB is ~34 MB decoded; the budget is 16 MB. Compressed it is tiny.
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(3000, 3000, BufferedImage.TYPE_INT_RGB), "png", png);
+        processor = new JobProcessor(jobStore, s3ResultStore, new SimpleMeterRegistry(), tracer,
+                new JobCancellations(null), resultCache, "16", 0, 4);
+        ReflectionTestUtils.setField(processor, "maxAttempts", 3);
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class)) {
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(png.toByteArray());
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/huge.png", 1));
+
+            mockResizer.verify(() -> DiscordImageResizer.resizeImage(any(), anyInt(), anyInt()), never());
+        }
+
+        verify(jobStore).markFailed(eq("job-1"), anyString(), eq(1), contains("too large"));
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
+        verify(s3ResultStore, never()).storeResult(any(), any());
+    }
+
+    @Test
+    void decodedSize_countsEveryFrameAtFourBytesPerPixel() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB), "png", png);
+
+        assertThat(JobProcessor.decodedSize(png.toByteArray())).isEqualTo(200L * 100 * 4);
+        assertThat(JobProcessor.decodedSize(new byte[]{1, 2, 3})).isEqualTo(3);
+    }
+
+    @Test
+    void stages_decodeFailureInCpuStage_schedulesRetryWithoutUploading() throws Exception {
+        JobProcessor.Job job = processor.start(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class);
+             MockedStatic<ImageIO> mockImageIO = mockStatic(ImageIO.class)) {
+
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[]{1});
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(false);
+            mockImageIO.when(() -> ImageIO.read(any(InputStream.class))).thenReturn(null);
+
+            assertThat(processor.download(job)).isEqualTo(JobProcessor.Outcome.NEXT);
+            assertThat(processor.transform(job)).isEqualTo(JobProcessor.Outcome.DONE);
+        }
+
+        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 10L, 0L, JobLane.INTERACTIVE);
+        verify(s3ResultStore, never()).storeResult(any(), any());
+    }
+
+    @Test
+    void download_recordAlreadyExpired_dropsJobWithoutFetching() {
+        when(jobStore.markStarted("job-1", 1)).thenReturn(null);
+        JobProcessor.Job job = processor.start(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class)) {
+            assertThat(processor.download(job)).isEqualTo(JobProcessor.Outcome.DONE);
+
+            mockResizer.verify(() -> DiscordImageResizer.downloadRaw(anyString()), never());
+        }
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
+        verify(jobStore, never()).markFailed(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void download_pastClientDeadline_marksExpiredWithoutFetching() {
+        long past = System.currentTimeMillis() - 1000;
+        JobProcessor.Job job = processor.start(
+                new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1, JobLane.INTERACTIVE, past - 5000, past));
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class)) {
+            assertThat(processor.download(job)).isEqualTo(JobProcessor.Outcome.DONE);
+
+            mockResizer.verify(() -> DiscordImageResizer.downloadRaw(anyString()), never());
+        }
+        verify(jobStore).markExpired("job-1");
+        verify(jobStore, never()).markStarted(anyString(), anyInt());
+    }
+
+    @Test
+    void download_cancelledWhileQueued_stopsWithoutFetching() {
+        when(jobStore.markStarted("job-1", 1)).thenReturn(JobStatus.CANCELLED);
+        JobProcessor.Job job = processor.start(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class)) {
+            assertThat(processor.download(job)).isEqualTo(JobProcessor.Outcome.DONE);
+
+            mockResizer.verify(() -> DiscordImageResizer.downloadRaw(anyString()), never());
+        }
+        verify(jobStore, never()).markFailed(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void stages_cancelledWhileRunning_stopsBeforeNextStageWithoutRetryOrUpload() throws Exception {
+        JobProcessor.Job job = processor.start(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+
+        try (MockedStatic<DiscordImageResizer> mockResizer = mockStatic(DiscordImageResizer.class);
+             MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+            mockResizer.when(() -> DiscordImageResizer.downloadRaw(anyString())).thenReturn(new byte[]{1});
+            mockGif.when(() -> AnimatedGifProcessor.isAnimatedGif(any())).thenReturn(false);
+
+            assertThat(processor.download(job)).isEqualTo(JobProcessor.Outcome.NEXT);
+            job.cancelled.set(true);
+            assertThat(processor.transform(job)).isEqualTo(JobProcessor.Outcome.DONE);
+
+            mockResizer.verify(() -> DiscordImageResizer.resizeImage(any(), anyInt(), anyInt()), never());
+        }
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
+        verify(jobStore, never()).markFailed(any(), any(), anyInt(), any());
+        verify(s3ResultStore, never()).storeResult(any(), any());
+    }
+
+    @Test
+    void transform_gifCancelledBetweenFrames_isNotRetried() throws Exception {
+        JobProcessor.Job job = processor.start(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/anim.gif", 1, JobLane.HEAVY));
+        job.rawBytes = new byte[]{1};
+        job.animated = true;
+
+        try (MockedStatic<AnimatedGifProcessor> mockGif = mockStatic(AnimatedGifProcessor.class)) {
+            mockGif.when(() -> AnimatedGifProcessor.process(any(), any())).thenThrow(new CancellationException());
+
+            assertThat(processor.transform(job)).isEqualTo(JobProcessor.Outcome.DONE);
+        }
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
+        verify(jobStore, never()).markFailed(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void abandon_setsJobBackToPending() {
+        JobProcessor.Job job = processor.start(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
+
+        processor.abandon(job);
+
+        verify(jobStore).markPending("job-1");
     }
 
     @Test
@@ -74,13 +459,26 @@ class JobProcessorTest {
             mocked.when(() -> DiscordImageResizer.downloadRaw(anyString()))
                     .thenThrow(new IOException("network error"));
 
-            processor.process("job-1", "https://1.1.1.1/img.png", 1);
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1));
         }
 
         // attempt 1 failed → retry at attempt 2, delay = 10s * 2^0 = 10s
-        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 10L);
-        verify(jobStore).setStatus("job-1", JobStatus.PENDING);
-        verify(jobStore, never()).setStatus("job-1", JobStatus.FAILED);
+        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 10L, 0L, JobLane.INTERACTIVE);
+        verify(jobStore, never()).markFailed(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void process_heavyFailureWithDeadline_retriesOnHeavyLaneKeepingDeadline() {
+        long deadline = System.currentTimeMillis() + 60_000;
+        try (MockedStatic<DiscordImageResizer> mocked = mockStatic(DiscordImageResizer.class)) {
+            mocked.when(() -> DiscordImageResizer.downloadRaw(anyString()))
+                    .thenThrow(new IOException("network error"));
+
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1, JobLane.HEAVY,
+                    System.currentTimeMillis(), deadline));
+        }
+
+        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 10L, deadline, JobLane.HEAVY);
     }
 
     @Test
@@ -89,11 +487,11 @@ class JobProcessorTest {
             mocked.when(() -> DiscordImageResizer.downloadRaw(anyString()))
                     .thenThrow(new IOException("network error"));
 
-            processor.process("job-1", "https://1.1.1.1/img.png", 2);
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 2));
         }
 
         // attempt 2 failed → retry at attempt 3, delay = 10s * 2^1 = 20s
-        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 3, 20L);
+        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 3, 20L, 0L, JobLane.INTERACTIVE);
     }
 
     @Test
@@ -102,11 +500,27 @@ class JobProcessorTest {
             mocked.when(() -> DiscordImageResizer.downloadRaw(anyString()))
                     .thenThrow(new IOException("network error"));
 
-            processor.process("job-1", "https://1.1.1.1/img.png", 3);
+            processor.process(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 3));
         }
 
-        verify(jobStore).setStatus("job-1", JobStatus.FAILED);
-        verify(jobStore).pushToDlq(eq("job-1"), eq("https://1.1.1.1/img.png"), eq(3), anyString());
-        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong());
+        verify(jobStore).markFailed(eq("job-1"), eq("https://1.1.1.1/img.png"), eq(3), anyString());
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
+    }
+
+    @Test
+    void failAfterError_schedulesNextAttemptWithBackoff() {
+        processor.failAfterError(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 1, JobLane.BULK),
+                new IllegalStateException("bug"));
+
+        verify(jobStore).scheduleRetry("job-1", "https://1.1.1.1/img.png", 2, 10L, 0L, JobLane.BULK);
+    }
+
+    @Test
+    void failAfterError_onFinalAttempt_deadLettersInsteadOfLooping() {
+        processor.failAfterError(new RedisJobStore.JobRequest("job-1", "https://1.1.1.1/img.png", 3),
+                new IllegalStateException("bug"));
+
+        verify(jobStore).markFailed("job-1", "https://1.1.1.1/img.png", 3, "bug");
+        verify(jobStore, never()).scheduleRetry(any(), any(), anyInt(), anyLong(), anyLong(), any());
     }
 }